@@ -0,0 +1,31 @@
+package pose.estimator;
+
+import java.lang.management.ManagementFactory;
+
+/** Checks that warmed up benchmark code does not allocate, for the benchmarks' tear downs. */
+final class Allocations {
+    private Allocations() {}
+
+    /**
+     * Runs a tick over and over and fails if the calling thread allocated anything while doing it.
+
+     * @param what - what one tick is, for the error message
+     * @param ticks - how many times to run it
+     * @param tick - the code to check, created before the call so making it is not counted
+     * @throws IllegalStateException if anything was allocated
+     */
+    static void assertNoAllocation(String what, int ticks, Runnable tick) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        // Measure the measuring first so only the ticks are counted
+        long start = threads.getCurrentThreadAllocatedBytes();
+        long overhead = threads.getCurrentThreadAllocatedBytes() - start;
+        start = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ticks; i++) {
+            tick.run();
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - start - overhead;
+        if (allocated > 0) {
+            throw new IllegalStateException(ticks + " " + what + " allocated " + allocated + " bytes, expected none");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package pose.estimator;
+
+import java.util.Locale;
+import java.util.Random;
+
+/** Builds synthetic Astrolabe replies so the benchmarks run without a coprocessor. */
+final class BenchmarkFrames {
+    private BenchmarkFrames() {}
+
+    /**
+     * Builds an "fa" reply with the given number of tags, laid out the way the server writes them.
+
+     * @param tagCount - how many tags are in the frame
+     * @param seed - seed for the random poses, so runs are repeatable
+     * @return json - the reply
+     */
+    static String apriltags(int tagCount, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < tagCount; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(String.format(Locale.ROOT,
+                "{\"tag_id\": %d, \"position\": [%.6f, %.6f, %.6f], \"orientation\": [%.6f, %.6f, %.6f], "
+                    + "\"distance\": %.6f, \"horizontal_angle\": %.6f, \"vertical_angle\": %.6f}",
+                1 + random.nextInt(22),
+                random.nextDouble() * 4 - 2, random.nextDouble() - 0.5, 0.5 + random.nextDouble() * 5,
+                random.nextDouble() * 20 - 10, random.nextDouble() * 90 - 45, random.nextDouble() * 20 - 10,
+                0.5 + random.nextDouble() * 5, random.nextDouble() - 0.5, random.nextDouble() * 0.4 - 0.2));
+        }
+        return builder.append("]").toString();
+    }
+
+    /**
+     * Builds an "fp" reply for one piece.
+
+     * @param seed - seed for the random piece, so runs are repeatable
+     * @return json - the reply
+     */
+    static String piece(long seed) {
+        Random random = new Random(seed);
+        return String.format(Locale.ROOT,
+            "{\"distance\": %.6f, \"angle\": %.6f, \"center\": [%.1f, %.1f], \"piece_angle\": %.6f}",
+            0.3 + random.nextDouble() * 3, random.nextDouble() - 0.5,
+            random.nextDouble() * 640, random.nextDouble() * 480, random.nextDouble() * Math.PI);
+    }
+}
@@ -0,0 +1,76 @@
+package pose.estimator;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import pose.estimator.Utils.ChassisSpeeds;
+import pose.estimator.Vision.DriveStatus;
+import pose.estimator.Vision.Side;
+
+/**
+ * Benchmarks one control tick through the output holder API, both fetching detections and driving
+ * off the predicted targets, and fails the run if either allocates anything once it is warmed up,
+ * since garbage there turns into jitter in the drive loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ControlTickBenchmark {
+    private static final int CHECKED_TICKS = 10_000;
+
+    @Param({"1", "16"})
+    public int tagCount;
+
+    private Vision vision;
+    private BitSet tagIds;
+    private final ChassisSpeeds tagOutput = new ChassisSpeeds();
+    private final ChassisSpeeds pieceOutput = new ChassisSpeeds();
+    private final ChassisSpeeds lockonOutput = new ChassisSpeeds();
+
+    @Setup
+    public void setup() {
+        CameraWebsocketClient[] cameras = {new SyntheticCamera(tagCount, 42, 0), new SyntheticCamera(tagCount, 43, 90)};
+        FieldLayout layout = new FieldLayout();
+        for (int id = 1; id <= 22; id++) {
+            layout.setTag(id, id, 2 * id, 0, id % 4);
+        }
+        vision = new Vision(cameras, layout);
+        tagIds = FieldLayout.idSet("3", cameras[0].getApriltags().get(0).tagId, "11");
+        // Start the tracks off, the predicted ticks then run between vision ticks like they do live
+        vision.beginTick();
+        vision.updatePoseEstimate();
+        vision.updateTargets();
+    }
+
+    @Benchmark
+    public DriveStatus controlTick() {
+        vision.beginTick();
+        vision.getPieceDrive(0, 0, 0, 0, pieceOutput);
+        vision.lockonTagSpeeds(1, null, lockonOutput);
+        return vision.getTagDrive(0, tagIds, Side.LEFT, 0, 0, 0, tagOutput);
+    }
+
+    @Benchmark
+    public DriveStatus predictedControlTick() {
+        vision.getPredictedPieceDrive(0, 0, 0, 0, pieceOutput);
+        return vision.getPredictedTagDrive(0, tagIds, Side.LEFT, 0, 0, 0, tagOutput);
+    }
+
+    @TearDown
+    public void checkNoAllocation() {
+        Allocations.assertNoAllocation("control tick pairs", CHECKED_TICKS, () -> {
+            controlTick();
+            predictedControlTick();
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package pose.estimator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.ApriltagList;
+import pose.estimator.CameraWebsocketClient.Piece;
+
+/**
+ * Compares the streaming decoder with building a Gson tree, which is what the client used to do, and
+ * measures the client's own getApriltagsFromString and getPieceFromString.
+ * Run with the gc profiler and check gc.alloc.rate.norm: the streaming path should be close to zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DetectionDecoderBenchmark {
+    @Param({"1", "4", "16"})
+    public int tagCount;
+
+    private String apriltagFrame;
+    private String pieceFrame;
+    private final DetectionDecoder decoder = new DetectionDecoder();
+    private final ApriltagList tags = new ApriltagList();
+    private final Piece piece = new Piece();
+    private final CameraWebsocketClient client = new CameraWebsocketClient();
+
+    @Setup
+    public void setup() {
+        apriltagFrame = BenchmarkFrames.apriltags(tagCount, 42);
+        pieceFrame = BenchmarkFrames.piece(42);
+    }
+
+    @Benchmark
+    public ApriltagList streamingApriltags() {
+        decoder.decodeApriltags(apriltagFrame, tags);
+        return tags;
+    }
+
+    @Benchmark
+    public JsonArray gsonTreeApriltags() {
+        return new Gson().fromJson(apriltagFrame, JsonArray.class);
+    }
+
+    @Benchmark
+    public boolean streamingPiece() {
+        return decoder.decodePiece(pieceFrame, piece);
+    }
+
+    /** The full reply path in the client, including the frame pool. */
+    @Benchmark
+    public List<Apriltag> clientApriltagsFromString() {
+        return client.getApriltagsFromString(apriltagFrame);
+    }
+
+    @Benchmark
+    public Piece clientPieceFromString() {
+        return client.getPieceFromString(pieceFrame);
+    }
+}
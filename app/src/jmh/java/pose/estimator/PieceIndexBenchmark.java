@@ -0,0 +1,83 @@
+package pose.estimator;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import pose.estimator.CameraWebsocketClient.Piece;
+import pose.estimator.CameraWebsocketClient.PieceList;
+import pose.estimator.Constants.VisionConstants;
+
+/**
+ * Benchmarks one tick of the piece index with every camera sending a new frame, so each tick pays
+ * for transforming and re-sorting everything before the intake and k nearest queries, against
+ * checking every piece one by one. Fails the run if the index allocates once it is warmed up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PieceIndexBenchmark {
+    private static final int CAMERAS = 6;
+    private static final int NEAREST = 5;
+    private static final int CHECKED_TICKS = 10_000;
+
+    @Param({"1", "10", "40"})
+    public int piecesPerCamera;
+
+    private final PieceList[] frames = new PieceList[CAMERAS];
+    private final double[] rotations = new double[CAMERAS];
+    private final PieceIndex index = new PieceIndex(VisionConstants.pieceCellSize, VisionConstants.pieceIndexRange);
+    private final int[] nearest = new int[NEAREST];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int c = 0; c < CAMERAS; c++) {
+            rotations[c] = 2 * Math.PI * c / CAMERAS;
+            frames[c] = new PieceList();
+            for (int i = 0; i < piecesPerCamera; i++) {
+                Piece piece = frames[c].add();
+                piece.distance = 0.3 + random.nextDouble() * 10;
+                piece.angle = (random.nextDouble() - 0.5) * Math.PI / 2;
+            }
+        }
+    }
+
+    @Benchmark
+    public int indexTick() {
+        for (int c = 0; c < CAMERAS; c++) {
+            index.setCamera(c, frames[c], rotations[c]);
+        }
+        int intake = index.nearest(VisionConstants.maxIntakeAngle);
+        return intake + index.nearest(NEAREST, Math.PI, nearest);
+    }
+
+    @Benchmark
+    public double bruteForceTick() {
+        double cosIntake = Math.cos(VisionConstants.maxIntakeAngle);
+        double best = Double.MAX_VALUE;
+        for (int c = 0; c < CAMERAS; c++) {
+            for (int i = 0; i < frames[c].size(); i++) {
+                Piece piece = frames[c].get(i);
+                double heading = piece.angle + rotations[c];
+                double x = Math.cos(heading) * piece.distance;
+                if (x >= piece.distance * cosIntake && piece.distance < best) best = piece.distance;
+            }
+        }
+        return best;
+    }
+
+    @TearDown
+    public void checkNoAllocation() {
+        Allocations.assertNoAllocation("piece index ticks", CHECKED_TICKS, this::indexTick);
+    }
+}
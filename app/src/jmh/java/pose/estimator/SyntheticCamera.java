@@ -0,0 +1,49 @@
+package pose.estimator;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import pose.estimator.CameraWebsocketClient.ApriltagList;
+
+/** A camera that always reports the same pre-decoded frame, so Vision can be benchmarked offline. */
+class SyntheticCamera extends CameraWebsocketClient {
+    private final ApriltagList tags = new ApriltagList();
+    private final CompletableFuture<List<Apriltag>> tagsFuture = CompletableFuture.completedFuture(tags);
+    private final Piece piece;
+    private final CompletableFuture<Piece> pieceFuture;
+
+    SyntheticCamera(int tagCount, long seed, double rotation) {
+        super("ws://localhost:0", 0);
+        DetectionDecoder decoder = new DetectionDecoder();
+        decoder.decodeApriltags(BenchmarkFrames.apriltags(tagCount, seed), tags);
+        piece = new Piece();
+        decoder.decodePiece(BenchmarkFrames.piece(seed), piece);
+        pieceFuture = CompletableFuture.completedFuture(piece);
+        setRotation(rotation);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public List<Apriltag> getApriltags() {
+        return tags;
+    }
+
+    @Override
+    public CompletableFuture<List<Apriltag>> getApriltagsAsync() {
+        return tagsFuture;
+    }
+
+    @Override
+    public Piece getPiece() {
+        return piece;
+    }
+
+    @Override
+    public CompletableFuture<Piece> getPieceAsync() {
+        return pieceFuture;
+    }
+}
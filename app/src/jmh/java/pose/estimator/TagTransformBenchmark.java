@@ -0,0 +1,84 @@
+package pose.estimator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.ApriltagList;
+
+/**
+ * Compares turning every tag in a tick into a field pose one tag at a time, the way Vision used to,
+ * against the batched TagBatch transform with and without the Vector API. Each batch benchmark
+ * includes filling the batch so the comparison is end to end.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TagTransformBenchmark {
+    @Param({"4", "16", "64"})
+    public int tagCount;
+
+    private Vision vision;
+    private FieldLayout layout;
+    private final ApriltagList tags = new ApriltagList();
+    private final TagBatch batch = new TagBatch();
+    private final double[] fieldPose = new double[3];
+
+    @Setup
+    public void setup() {
+        layout = new FieldLayout();
+        for (int id = 0; id < 64; id++) {
+            layout.setTag(id, id * 0.5, id * 0.25, 0.5, (id % 8) * Math.PI / 4 - Math.PI);
+        }
+        vision = new Vision(new CameraWebsocketClient[0], layout);
+        new DetectionDecoder().decodeApriltags(BenchmarkFrames.apriltags(tagCount, 42), tags);
+    }
+
+    @Benchmark
+    public void perTag(Blackhole blackhole) {
+        for (int t = 0; t < tags.size(); t++) {
+            Apriltag tag = tags.get(t);
+            if (vision.tagToFieldPose(tag, 90, fieldPose)) {
+                blackhole.consume(fieldPose[0] + fieldPose[1] + fieldPose[2]);
+            }
+        }
+    }
+
+    @Benchmark
+    public double batchScalar() {
+        fill();
+        batch.transformScalar(0);
+        return sum();
+    }
+
+    @Benchmark
+    public double batchVector() {
+        fill();
+        batch.transform();
+        return sum();
+    }
+
+    private void fill() {
+        batch.clear();
+        for (int t = 0; t < tags.size(); t++) {
+            batch.add(tags.get(t), 90, 0, layout);
+        }
+    }
+
+    private double sum() {
+        double sum = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            sum += batch.getFieldX(row) + batch.getFieldY(row) + batch.getHeading(row);
+        }
+        return sum;
+    }
+}
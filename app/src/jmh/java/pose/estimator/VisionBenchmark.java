@@ -0,0 +1,103 @@
+package pose.estimator;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.Utils.ChassisSpeeds;
+import pose.estimator.Vision.Side;
+
+/**
+ * Benchmarks the per tick Vision math against synthetic cameras, so network time is left out and
+ * only decoding, tag selection and control math are measured. Run with the gc profiler for allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VisionBenchmark {
+    @Param({"1", "4", "16"})
+    public int tagCount;
+
+    @Param({"2"})
+    public int cameraCount;
+
+    private Vision vision;
+    private String[] tagIds;
+    private BitSet tagIdSet;
+    private String tagId;
+    private ChassisSpeeds speeds;
+
+    @Setup
+    public void setup() {
+        CameraWebsocketClient[] cameras = new CameraWebsocketClient[cameraCount];
+        for (int i = 0; i < cameraCount; i++) {
+            cameras[i] = new SyntheticCamera(tagCount, 42 + i, 90 * i);
+        }
+        HashMap<String, Integer[]> apriltagPoses = new HashMap<>();
+        for (int id = 1; id <= 22; id++) {
+            apriltagPoses.put(Integer.toString(id), new Integer[]{id % 4, id, 2 * id});
+        }
+        vision = new Vision(cameras, apriltagPoses);
+
+        Apriltag first = cameras[0].getApriltags().get(0);
+        tagId = first.tagId;
+        tagIds = new String[]{"3", tagId, "11"};
+        tagIdSet = FieldLayout.idSet(tagIds);
+        speeds = new ChassisSpeeds(0.5, -0.25, 0.1);
+    }
+
+    @Benchmark
+    public Apriltag decideTagNearest() {
+        return vision.decideTag(0);
+    }
+
+    @Benchmark
+    public Apriltag decideTagById() {
+        return vision.decideTag(0, tagId);
+    }
+
+    @Benchmark
+    public Apriltag decideTagFromSet() {
+        return vision.decideTag(0, tagIds);
+    }
+
+    @Benchmark
+    public Apriltag decideTagFromIdSet() {
+        return vision.decideTag(0, tagIdSet);
+    }
+
+    @Benchmark
+    public ChassisSpeeds tagDrive() {
+        return vision.getTagDrive(0, tagIds, Side.FRONT, 0, 0, 0);
+    }
+
+    @Benchmark
+    public ChassisSpeeds pieceDrive() {
+        return vision.getPieceDrive(0, 0, 0, 0);
+    }
+
+    @Benchmark
+    public double zAngle() {
+        return vision.getZAngle(tagCount * cameraCount);
+    }
+
+    @Benchmark
+    public ChassisSpeeds frontToSide() {
+        return vision.frontToSide(speeds, Side.LEFT);
+    }
+
+    @Benchmark
+    public int poseFusion() {
+        return vision.updatePoseEstimate();
+    }
+}
@@ -0,0 +1,208 @@
+package pose.estimator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.ApriltagList;
+import pose.estimator.CameraWebsocketClient.Piece;
+import pose.estimator.CameraWebsocketClient.PieceList;
+
+/**
+ * The compact binary detection format that servers can send instead of JSON once the
+ * {@link #SUBPROTOCOL} has been agreed on during the websocket handshake.
+ *
+ * <p>Everything is little endian. A frame is a 16 byte header followed by {@code count} fixed size records:
+ * <pre>
+ * header: u8 kind, u8 version, u16 count, u32 sequence, i64 capture timestamp (microseconds)
+ * tag:    i32 id, f32 position x y z, f32 orientation x y z, f32 distance, f32 horizontal angle, f32 vertical angle
+ * piece:  f32 distance, f32 angle, f32 center x y, f32 piece angle
+ * </pre>
+ * A piece frame with a count of zero means no piece was seen, and one with more holds every piece.
+ */
+public final class BinaryFrames {
+    /** The websocket subprotocol a client offers when it can read binary frames. */
+    public static final String SUBPROTOCOL = "astrolabe.binary.v1";
+
+    public static final byte KIND_APRILTAGS = 1;
+    public static final byte KIND_PIECE = 2;
+    public static final byte VERSION = 1;
+
+    public static final int HEADER_BYTES = 16;
+    public static final int APRILTAG_BYTES = 40;
+    public static final int PIECE_BYTES = 20;
+
+    private BinaryFrames() {}
+
+    /**
+     * Returns the kind of the frame at the buffer's position without moving it.
+
+     * @param buffer - the received frame
+     * @return kind - {@link #KIND_APRILTAGS}, {@link #KIND_PIECE} or something this client does not know
+     */
+    public static byte kind(ByteBuffer buffer) {
+        return buffer.get(buffer.position());
+    }
+
+    /**
+     * Decodes an apriltag frame straight out of the buffer into a reusable list.
+
+     * @param buffer - the received frame, read from its position without changing it
+     * @param out - the list to fill, it is cleared first
+     * @param frame - receives the sequence and capture time from the header, may be null
+     * @throws IllegalArgumentException if the frame is not a complete apriltag frame
+     */
+    public static void decodeApriltags(ByteBuffer buffer, ApriltagList out, CameraWebsocketClient.DetectionFrame<?> frame) {
+        int count = readHeader(buffer, KIND_APRILTAGS, APRILTAG_BYTES, frame);
+        int offset = buffer.position() + HEADER_BYTES;
+        out.clear();
+        for (int i = 0; i < count; i++, offset += APRILTAG_BYTES) {
+            Apriltag tag = out.add();
+            tag.id = buffer.getInt(offset);
+            tag.tagId = DetectionDecoder.tagIdString(tag.id);
+            tag.position[0] = buffer.getFloat(offset + 4);
+            tag.position[1] = buffer.getFloat(offset + 8);
+            tag.position[2] = buffer.getFloat(offset + 12);
+            tag.orientation[0] = buffer.getFloat(offset + 16);
+            tag.orientation[1] = buffer.getFloat(offset + 20);
+            tag.orientation[2] = buffer.getFloat(offset + 24);
+            tag.distance = buffer.getFloat(offset + 28);
+            tag.horizontalAngle = buffer.getFloat(offset + 32);
+            tag.verticalAngle = buffer.getFloat(offset + 36);
+            tag.fullString = null;
+        }
+    }
+
+    /**
+     * Decodes a piece frame straight out of the buffer into a reusable piece.
+
+     * @param buffer - the received frame, read from its position without changing it
+     * @param out - the piece to fill
+     * @param frame - receives the sequence and capture time from the header, may be null
+     * @return found - false if the frame says no piece was seen
+     * @throws IllegalArgumentException if the frame is not a complete piece frame
+     */
+    public static boolean decodePiece(ByteBuffer buffer, Piece out, CameraWebsocketClient.DetectionFrame<?> frame) {
+        int count = readHeader(buffer, KIND_PIECE, PIECE_BYTES, frame);
+        if (count == 0) return false;
+        int offset = buffer.position() + HEADER_BYTES;
+        out.distance = buffer.getFloat(offset);
+        out.angle = buffer.getFloat(offset + 4);
+        out.center[0] = buffer.getFloat(offset + 8);
+        out.center[1] = buffer.getFloat(offset + 12);
+        out.pieceAngle = buffer.getFloat(offset + 16);
+        return true;
+    }
+
+    /**
+     * Decodes every piece in a piece frame into a reusable list.
+
+     * @param buffer - the received frame, read from its position without changing it
+     * @param out - the list to fill, it is cleared first
+     * @param frame - receives the sequence and capture time from the header, may be null
+     * @throws IllegalArgumentException if the frame is not a complete piece frame
+     */
+    public static void decodePieces(ByteBuffer buffer, PieceList out, CameraWebsocketClient.DetectionFrame<?> frame) {
+        int count = readHeader(buffer, KIND_PIECE, PIECE_BYTES, frame);
+        int offset = buffer.position() + HEADER_BYTES;
+        out.clear();
+        for (int i = 0; i < count; i++, offset += PIECE_BYTES) {
+            Piece piece = out.add();
+            piece.distance = buffer.getFloat(offset);
+            piece.angle = buffer.getFloat(offset + 4);
+            piece.center[0] = buffer.getFloat(offset + 8);
+            piece.center[1] = buffer.getFloat(offset + 12);
+            piece.pieceAngle = buffer.getFloat(offset + 16);
+        }
+    }
+
+    /**
+     * Writes an apriltag frame. Used by servers and tools that produce binary frames.
+
+     * @param out - where to write, must have room for the whole frame
+     * @param tags - the tags to write
+     * @param sequence - the frame number
+     * @param captureMicros - when the image was captured
+     */
+    public static void encodeApriltags(ByteBuffer out, List<Apriltag> tags, long sequence, long captureMicros) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(out, KIND_APRILTAGS, tags.size(), sequence, captureMicros);
+        for (int i = 0; i < tags.size(); i++) {
+            Apriltag tag = tags.get(i);
+            out.putInt(tag.id);
+            out.putFloat((float) tag.position[0]);
+            out.putFloat((float) tag.position[1]);
+            out.putFloat((float) tag.position[2]);
+            out.putFloat((float) tag.orientation[0]);
+            out.putFloat((float) tag.orientation[1]);
+            out.putFloat((float) tag.orientation[2]);
+            out.putFloat((float) tag.distance);
+            out.putFloat((float) tag.horizontalAngle);
+            out.putFloat((float) tag.verticalAngle);
+        }
+    }
+
+    /**
+     * Writes a piece frame. Used by servers and tools that produce binary frames.
+
+     * @param out - where to write, must have room for the whole frame
+     * @param piece - the piece to write, or null if none was seen
+     * @param sequence - the frame number
+     * @param captureMicros - when the image was captured
+     */
+    public static void encodePiece(ByteBuffer out, Piece piece, long sequence, long captureMicros) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(out, KIND_PIECE, piece == null ? 0 : 1, sequence, captureMicros);
+        if (piece != null) putPiece(out, piece);
+    }
+
+    /**
+     * Writes a piece frame with any number of pieces.
+
+     * @param out - where to write, must have room for the whole frame
+     * @param pieces - the pieces to write, empty if none were seen
+     * @param sequence - the frame number
+     * @param captureMicros - when the image was captured
+     */
+    public static void encodePieces(ByteBuffer out, List<Piece> pieces, long sequence, long captureMicros) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(out, KIND_PIECE, pieces.size(), sequence, captureMicros);
+        for (int i = 0; i < pieces.size(); i++) {
+            putPiece(out, pieces.get(i));
+        }
+    }
+
+    private static void putPiece(ByteBuffer out, Piece piece) {
+        out.putFloat((float) piece.distance);
+        out.putFloat((float) piece.angle);
+        out.putFloat((float) piece.center[0]);
+        out.putFloat((float) piece.center[1]);
+        out.putFloat((float) piece.pieceAngle);
+    }
+
+    private static void writeHeader(ByteBuffer out, byte kind, int count, long sequence, long captureMicros) {
+        out.put(kind);
+        out.put(VERSION);
+        out.putShort((short) count);
+        out.putInt((int) sequence);
+        out.putLong(captureMicros);
+    }
+
+    private static int readHeader(ByteBuffer buffer, byte kind, int recordBytes, CameraWebsocketClient.DetectionFrame<?> frame) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_BYTES || buffer.get(start) != kind || buffer.get(start + 1) != VERSION) {
+            throw new IllegalArgumentException("Not a version " + VERSION + " binary frame of kind " + kind);
+        }
+        int count = Short.toUnsignedInt(buffer.getShort(start + 2));
+        if (buffer.remaining() < HEADER_BYTES + count * recordBytes) {
+            throw new IllegalArgumentException("Binary frame is cut short");
+        }
+        if (frame != null) {
+            frame.serverSequence = Integer.toUnsignedLong(buffer.getInt(start + 4));
+            frame.captureMicros = buffer.getLong(start + 8);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,137 @@
+package pose.estimator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing histograms and event counters for one camera. Everything can be recorded from any thread
+ * without locks or allocation, so it stays on all the time. Call {@link #snapshot()} to read it.
+ */
+public class CameraMetrics {
+    /** Time from a request being sent to its reply arriving. */
+    public final LatencyHistogram roundTrip = new LatencyHistogram();
+    /** Time spent decoding a reply or pushed frame. */
+    public final LatencyHistogram parse = new LatencyHistogram();
+    /** Time from a request being made to it going out on the socket, spent behind earlier sends. */
+    public final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong streamFrames = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong streamDrops = new AtomicLong();
+
+    void recordRequest() {
+        requests.incrementAndGet();
+    }
+
+    void recordReply() {
+        replies.incrementAndGet();
+    }
+
+    void recordStreamFrame() {
+        streamFrames.incrementAndGet();
+    }
+
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    void recordReconnect() {
+        reconnects.incrementAndGet();
+    }
+
+    void recordParseError() {
+        parseErrors.incrementAndGet();
+    }
+
+    void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    void recordStreamDrop() {
+        streamDrops.incrementAndGet();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getReplies() {
+        return replies.get();
+    }
+
+    public long getStreamFrames() {
+        return streamFrames.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public long getParseErrors() {
+        return parseErrors.get();
+    }
+
+    /** Returns how many detection calls shared a fetch instead of sending their own request. */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /** Returns how many pushed frames were dropped undecoded because newer ones arrived first. */
+    public long getStreamDrops() {
+        return streamDrops.get();
+    }
+
+    /**
+     * Copies every counter and histogram. Values recorded during the copy may or may not be included.
+
+     * @return snapshot - an unchanging copy of the metrics
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /** A copy of a camera's metrics at one moment. */
+    public static class Snapshot {
+        public final long timestampMillis = System.currentTimeMillis();
+        public final long requests;
+        public final long replies;
+        public final long streamFrames;
+        public final long timeouts;
+        public final long reconnects;
+        public final long parseErrors;
+        public final long cacheHits;
+        public final long streamDrops;
+        public final LatencyHistogram.Snapshot roundTrip;
+        public final LatencyHistogram.Snapshot parse;
+        public final LatencyHistogram.Snapshot queueWait;
+
+        Snapshot(CameraMetrics metrics) {
+            requests = metrics.getRequests();
+            replies = metrics.getReplies();
+            streamFrames = metrics.getStreamFrames();
+            timeouts = metrics.getTimeouts();
+            reconnects = metrics.getReconnects();
+            parseErrors = metrics.getParseErrors();
+            cacheHits = metrics.getCacheHits();
+            streamDrops = metrics.getStreamDrops();
+            roundTrip = metrics.roundTrip.snapshot();
+            parse = metrics.parse.snapshot();
+            queueWait = metrics.queueWait.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d replies, %d stream frames, %d timeouts, %d reconnects, %d parse errors, %d cache hits, %d stream drops%n"
+                + "  rtt: %s%n  parse: %s%n  queue: %s",
+                requests, replies, streamFrames, timeouts, reconnects, parseErrors, cacheHits, streamDrops, roundTrip, parse, queueWait);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package pose.estimator;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pose.estimator.Constants.VisionConstants;
+
+/**
+ * Every camera on every coprocessor, each under a logical id like "front" that stays the same no
+ * matter which host or port it is on or which cameras are up. Cameras are grouped by host, and each
+ * host gets its own I/O executor, {@link HttpClient} and {@link ConnectionManager}, so a slow or
+ * reconnecting coprocessor only ties up its own threads and adding one does not slow down the rest.
+ *
+ * <p>Add every camera, then {@link #connect()} once. Cameras keep the index they were added in, which
+ * is also their camera index in {@link Vision}, whether or not they were reachable at startup.
+ */
+public class CameraRegistry {
+    /** Where one camera is and which way it faces. */
+    public static class CameraConfig {
+        public final String id;
+        public final String host; // The websocket address without a port, for example "ws://10.54.80.123"
+        public final int port;
+        public final double rotation; // Degrees, 0 faces forward
+
+        public CameraConfig(String id, String host, int port, double rotation) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.rotation = rotation;
+        }
+    }
+
+    /** The cameras on one coprocessor and the threads that talk to them. */
+    public class Host {
+        private final String address;
+        private final BitSet cameras = new BitSet();
+        private final ExecutorService executor;
+        private final HttpClient httpClient;
+        private final ConnectionManager connectionManager = new ConnectionManager(
+            VisionConstants.connectionCheckPeriodMs, VisionConstants.reconnectBaseDelayMs, VisionConstants.reconnectMaxDelayMs);
+
+        Host(String address) {
+            this.address = address;
+            String name = "camera-io-" + address.replaceFirst("^ws://", "");
+            // Cached so a connect blocking on its handshake can never starve the threads the handshake needs
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            httpClient = HttpClient.newBuilder()
+                .executor(executor)
+                .connectTimeout(Duration.ofMillis(VisionConstants.connectTimeoutMs))
+                .build();
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /** Returns the indexes of the cameras on this host. */
+        public BitSet getCameras() {
+            return (BitSet) cameras.clone();
+        }
+
+        public ConnectionManager getConnectionManager() {
+            return connectionManager;
+        }
+    }
+
+    private final List<CameraWebsocketClient> cameras = new ArrayList<>();
+    private final List<String> ids = new ArrayList<>();
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final Map<String, Host> hosts = new LinkedHashMap<>();
+    private boolean connected = false;
+
+    public CameraRegistry() {}
+
+    public CameraRegistry(CameraConfig[] configs) {
+        for (CameraConfig config : configs) {
+            register(config);
+        }
+    }
+
+    /**
+     * Adds a camera. Only call this before {@link #connect()}.
+
+     * @param config - the camera's id, address and rotation
+     * @return index - the camera's index, which never changes
+     */
+    public int addCamera(CameraConfig config) {
+        if (connected) throw new IllegalStateException("Cameras must be added before connecting");
+        return register(config);
+    }
+
+    private int register(CameraConfig config) {
+        if (indexes.containsKey(config.id)) throw new IllegalArgumentException("Duplicate camera id " + config.id);
+        Host host = hosts.computeIfAbsent(config.host, Host::new);
+        CameraWebsocketClient camera = new CameraWebsocketClient(config.host + ":" + config.port, VisionConstants.connectTimeoutMs);
+        camera.setHttpClient(host.httpClient);
+        camera.setRotation(config.rotation);
+
+        int index = cameras.size();
+        cameras.add(camera);
+        ids.add(config.id);
+        indexes.put(config.id, index);
+        host.cameras.set(index);
+        host.connectionManager.addCamera(camera);
+        return index;
+    }
+
+    /**
+     * Connects every camera on every host at once and waits for the attempts to finish, which takes
+     * about as long as the slowest single connect. Then each host's manager starts keeping its cameras
+     * connected, including the ones that did not answer.
+
+     * @return connected - how many cameras connected
+     */
+    public int connect() {
+        connected = true;
+        CompletableFuture<?>[] attempts = new CompletableFuture<?>[cameras.size()];
+        for (Host host : hosts.values()) {
+            for (int i = host.cameras.nextSetBit(0); i >= 0; i = host.cameras.nextSetBit(i + 1)) {
+                attempts[i] = CompletableFuture.runAsync(cameras.get(i)::setupConnection, host.executor);
+            }
+        }
+        CompletableFuture.allOf(attempts).join();
+
+        int count = 0;
+        for (CameraWebsocketClient camera : cameras) {
+            if (camera.isConnected()) count++;
+        }
+        for (Host host : hosts.values()) {
+            host.connectionManager.start();
+        }
+        System.out.println("Connected to " + count + " of " + cameras.size() + " cameras on " + hosts.size() + " hosts");
+        return count;
+    }
+
+    /** Returns every camera in index order. */
+    public List<CameraWebsocketClient> getCameras() {
+        return Collections.unmodifiableList(cameras);
+    }
+
+    public int size() {
+        return cameras.size();
+    }
+
+    public String getId(int index) {
+        return ids.get(index);
+    }
+
+    /**
+     * Looks up a camera's index from its id.
+
+     * @param id - the logical id it was added with
+     * @return index - its index, or -1 if there is no such camera
+     */
+    public int indexOf(String id) {
+        Integer index = indexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Builds the set of camera indexes for some ids, to pass to the {@link Vision} queries that take one.
+
+     * @param ids - the logical ids, unknown ones are left out
+     * @return cameras - their indexes
+     */
+    public BitSet cameraSet(String... ids) {
+        BitSet set = new BitSet(cameras.size());
+        for (String id : ids) {
+            int index = indexOf(id);
+            if (index >= 0) set.set(index);
+        }
+        return set;
+    }
+
+    /** Returns the hosts in the order their first camera was added. */
+    public List<Host> getHosts() {
+        return new ArrayList<>(hosts.values());
+    }
+
+    /** Returns a host by its address, or null. */
+    public Host getHost(String address) {
+        return hosts.get(address);
+    }
+
+    /** Stops reconnecting, closes every camera and shuts the I/O threads down. */
+    public void close() {
+        for (Host host : hosts.values()) {
+            host.connectionManager.stop();
+        }
+        for (CameraWebsocketClient camera : cameras) {
+            if (camera.isConnected()) camera.disconnect();
+        }
+        for (Host host : hosts.values()) {
+            host.executor.shutdown();
+        }
+    }
+}
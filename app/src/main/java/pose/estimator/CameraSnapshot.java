@@ -0,0 +1,171 @@
+package pose.estimator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import pose.estimator.CameraWebsocketClient.Info;
+
+/**
+ * Which port each camera was found on last time, and the info it sent, keyed by the camera's
+ * identifier. Loading one lets {@link Vision} connect straight to the known ports and serve each
+ * camera's focal lengths, resolution and colors before the camera has answered a single request.
+ *
+ * <p>Info is stored as the exact reply the camera sent and decoded with {@link DetectionDecoder},
+ * so the file never drifts from what a live camera would give.
+ */
+public class CameraSnapshot {
+    private static final int VERSION = 1;
+
+    private final String host;
+    private final Map<String, Entry> cameras = new LinkedHashMap<>();
+
+    private static class Entry {
+        final int port;
+        final String info;
+
+        Entry(int port, String info) {
+            this.port = port;
+            this.info = info;
+        }
+    }
+
+    public CameraSnapshot(String host) {
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int size() {
+        return cameras.size();
+    }
+
+    /**
+     * Records a camera. A camera that was already recorded, on any port, is replaced.
+
+     * @param port - the port it answered on
+     * @param info - its info, with the identifier and the raw reply filled in
+     * @return added - false if the info has no identifier or raw reply to key and store it by
+     */
+    public boolean put(int port, Info info) {
+        if (info == null || info.identifier == null || info.fullString == null) return false;
+        // Only one camera can be on a port, so whatever was there before has moved or gone
+        cameras.values().removeIf(entry -> entry.port == port);
+        cameras.put(info.identifier, new Entry(port, info.fullString));
+        return true;
+    }
+
+    /**
+     * Returns the ports in the snapshot, in the order they were recorded.
+
+     * @return ports - one per camera
+     */
+    public int[] getPorts() {
+        int[] ports = new int[cameras.size()];
+        int i = 0;
+        for (Entry entry : cameras.values()) {
+            ports[i++] = entry.port;
+        }
+        return ports;
+    }
+
+    /**
+     * Decodes the info of whichever camera was on a port.
+
+     * @param port - the port
+     * @return info - the info, or null if no camera was recorded there
+     */
+    public Info getInfo(int port) {
+        for (Entry entry : cameras.values()) {
+            if (entry.port == port) return new DetectionDecoder().decodeInfo(entry.info);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the identifier of the camera that was on a port.
+
+     * @param port - the port
+     * @return identifier - the identifier, or null if no camera was recorded there
+     */
+    public String getIdentifier(int port) {
+        for (Map.Entry<String, Entry> entry : cameras.entrySet()) {
+            if (entry.getValue().port == port) return entry.getKey();
+        }
+        return null;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.add("version", new JsonPrimitive(VERSION));
+        json.add("host", new JsonPrimitive(host));
+        JsonObject cameraJson = new JsonObject();
+        for (Map.Entry<String, Entry> entry : cameras.entrySet()) {
+            JsonObject camera = new JsonObject();
+            camera.add("port", new JsonPrimitive(entry.getValue().port));
+            camera.add("info", new JsonPrimitive(entry.getValue().info));
+            cameraJson.add(entry.getKey(), camera);
+        }
+        json.add("cameras", cameraJson);
+        return json;
+    }
+
+    static CameraSnapshot parse(JsonObject json) throws IOException {
+        int version = json.get("version").getAsInt();
+        if (version != VERSION) throw new IOException("Unsupported camera snapshot version " + version);
+        CameraSnapshot snapshot = new CameraSnapshot(json.get("host").getAsString());
+        for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("cameras").entrySet()) {
+            JsonObject camera = entry.getValue().getAsJsonObject();
+            snapshot.cameras.put(entry.getKey(), new Entry(camera.get("port").getAsInt(), camera.get("info").getAsString()));
+        }
+        return snapshot;
+    }
+
+    public static CameraSnapshot load(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(JsonParser.parseReader(reader).getAsJsonObject());
+        } catch (RuntimeException e) {
+            // Gson throws unchecked exceptions for bad json, which is the same thing as a bad file here
+            throw new IOException("Could not read the camera snapshot " + file, e);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and moves it into place, so a crash part way through
+     * never leaves a half written snapshot for the next start to trip over.
+
+     * @param file - where to save it
+     */
+    public void save(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(toJson().toString());
+        }
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof CameraSnapshot)) return false;
+        return toJson().equals(((CameraSnapshot) other).toJson());
+    }
+
+    @Override
+    public int hashCode() {
+        return toJson().hashCode();
+    }
+}
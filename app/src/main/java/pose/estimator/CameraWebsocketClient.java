@@ -4,15 +4,31 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.WebSocket;
 import java.net.http.WebSocket.Listener;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
@@ -22,11 +38,96 @@ import com.google.gson.JsonPrimitive;
 public class CameraWebsocketClient {
     private String ip = "ws://10.42.0.118:50000";
     private WebSocket webSocket;
+    private volatile HttpClient httpClient; // Shared with the other cameras on the same host, null for one of its own per connect
     private double rotation;
     private volatile String latestReply = "";
-    private CountDownLatch messageLatch = new CountDownLatch(1);
     private final int TIMEOUT;
 
+    // Requests that have been sent but not answered yet, oldest first. Replies without a
+    // correlation id are matched to the head of this queue, so it must stay in send order.
+    private final ConcurrentLinkedQueue<PendingRequest<?>> pendingRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Integer, PendingRequest<?>> pendingById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Object sendLock = new Object();
+    private CompletableFuture<WebSocket> sendChain = CompletableFuture.completedFuture(null);
+    private volatile boolean correlationIds = false;
+    private volatile boolean offerBinaryFrames = true;
+    private volatile boolean binaryFrames = false;
+    private volatile ConnectionState connectionState = ConnectionState.DISCONNECTED;
+
+    // Server push mode. The newest decoded frame of each kind is published here and read without locks.
+    private volatile WebSocket streamSocket;
+    private volatile boolean wantsStream = false; // Whether to subscribe again after a reconnect
+    private volatile StreamOverflowPolicy streamOverflowPolicy = StreamOverflowPolicy.BACKPRESSURE;
+    private volatile DetectionFrame<ApriltagList> latestApriltagFrame;
+    private volatile DetectionFrame<Piece> latestPieceFrame; // The nearest piece, null if the last frame had none
+    private volatile DetectionFrame<PieceList> latestPiecesFrame; // Every piece in the last frame
+
+    // Each socket's listener thread decodes into its own ring of reusable frames
+    private final DecodeContext replyContext = new DecodeContext();
+    private final DecodeContext streamContext = new DecodeContext();
+    private byte lastStreamKind = BinaryFrames.KIND_APRILTAGS; // What an empty "[]" push clears, stream thread only
+
+    private final CameraMetrics metrics = new CameraMetrics();
+    private volatile int telemetrySource = -1; // Which camera this is in the telemetry log
+    private volatile Info info; // The last info the server sent, or one loaded from a camera snapshot
+    private final AtomicInteger colorChanges = new AtomicInteger(); // Bumped by saveColors and switchColors
+    private volatile int infoColorChanges = 0; // colorChanges when the known info was asked for
+
+    // The newest polled detections. Callers that ask while a fetch is in flight, or within the ttl
+    // after it finished, share it instead of sending another request.
+    private final AtomicReference<SharedFetch<List<Apriltag>>> apriltagFetch = new AtomicReference<>();
+    private final AtomicReference<SharedFetch<Piece>> pieceFetch = new AtomicReference<>();
+    private final AtomicReference<SharedFetch<PieceList>> piecesFetch = new AtomicReference<>();
+    private volatile long detectionCacheTtlNanos = 0;
+    private volatile boolean batchSupported = true; // Cleared the first time the server turns a batch down
+    private volatile boolean batchAnswered = false; // Set by the first batch reply, until then a timeout means no batches
+
+    // Request timeouts follow the measured round trip, and a camera that keeps timing out is skipped until a probe gets through
+    private final RttEstimator rtt;
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 100, 2000);
+
+    /** The most requests that can be waiting on one socket before the oldest is failed. */
+    public static final int MAX_PENDING_REQUESTS = 64;
+    private static final String REQUEST_ID_ARGUMENT = " -request_id=";
+    private static final String REQUEST_ID_KEY = "\"request_id\"";
+    /** Asks the server to push every processed apriltag and piece frame on this socket. */
+    public static final String SUBSCRIBE_COMMAND = "subscribe -streams=fa,fp";
+    /** Sends several commands in one frame, "batch fa;fp;info". The reply is an object keyed by command. */
+    public static final String BATCH_COMMAND = "batch";
+    /** How many decoded frames of each kind are recycled. A frame stays valid until this many newer ones arrive. */
+    public static final int FRAME_POOL_SIZE = 8;
+    /** How many undecoded frames the stream socket holds with {@link StreamOverflowPolicy#DROP_OLDEST}. */
+    public static final int STREAM_QUEUE_SIZE = 8;
+    // How many messages the stream socket asks for at a time when it is reading ahead
+    private static final int STREAM_DEMAND = 16;
+    /** What a probe sends to a camera whose circuit breaker is open. Every server answers it. */
+    public static final String PROBE_COMMAND = "info";
+    public static final long DEFAULT_MIN_TIMEOUT_MS = 20;
+
+    // One thread is plenty, probes only send and schedule, they never wait on a reply
+    private static final ScheduledExecutorService PROBES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "camera-probes");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Where a camera's connection is at. {@link ConnectionManager} moves cameras between these. */
+    public static enum ConnectionState {
+        DISCONNECTED, // Never connected, or the socket dropped and nobody has tried again yet
+        CONNECTING,
+        CONNECTED,
+        BACKING_OFF, // The last attempt failed, waiting before the next one
+        CLOSED // disconnect() was called, will not reconnect
+    }
+
+    /** What the stream socket does when frames come in faster than they can be decoded. */
+    public static enum StreamOverflowPolicy {
+        BACKPRESSURE, // Decode each frame on the socket's thread before reading the next, which slows the server down
+        DROP_OLDEST, // Keep reading, queue up to STREAM_QUEUE_SIZE frames and drop the oldest when the queue is full
+        LATEST_ONLY // Keep reading and only ever decode the newest frame
+    }
+
     /** Simple class representing a color object. */
     public static class Color {
         public double red;
@@ -57,8 +158,9 @@ public class CameraWebsocketClient {
     /** Simple class that represents an Apriltag. */
     public static class Apriltag {
         public String tagId;
-        public double[] position;
-        public double[] orientation;
+        public int id; // -1 if the server sent a non numeric id
+        public double[] position = new double[3];
+        public double[] orientation = new double[3];
         public double distance;
         public double horizontalAngle;
         public double verticalAngle;
@@ -69,17 +171,277 @@ public class CameraWebsocketClient {
     public static class Piece {
         public double distance;
         public double angle; // radians
-        public double[] center;
+        public double[] center = new double[2];
         public double pieceAngle; // radians
+
+        /** Copies another piece into this one. */
+        public Piece set(Piece other) {
+            distance = other.distance;
+            angle = other.angle;
+            center[0] = other.center[0];
+            center[1] = other.center[1];
+            pieceAngle = other.pieceAngle;
+            return this;
+        }
+    }
+
+    /**
+     * Every piece from one frame, reusing its piece objects like {@link ApriltagList} does. Servers
+     * that only ever see one piece send a list of one.
+     */
+    public static class PieceList extends AbstractList<Piece> implements RandomAccess {
+        private Piece[] pieces = new Piece[4];
+        private int size = 0;
+
+        Piece add() {
+            if (size == pieces.length) {
+                pieces = Arrays.copyOf(pieces, size * 2);
+            }
+            Piece piece = pieces[size];
+            if (piece == null) {
+                piece = pieces[size] = new Piece();
+            }
+            size++;
+            return piece;
+        }
+
+        /** Takes back the piece the last add() handed out, for when it turned out to be empty. */
+        void dropLast() {
+            size--;
+        }
+
+        @Override
+        public void clear() {
+            size = 0;
+        }
+
+        @Override
+        public Piece get(int index) {
+            if (index >= size) throw new IndexOutOfBoundsException(index);
+            return pieces[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /** Returns the closest piece, or null if the list is empty. */
+        public Piece nearest() {
+            Piece best = null;
+            for (int i = 0; i < size; i++) {
+                if (best == null || pieces[i].distance < best.distance) best = pieces[i];
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The results of one {@link #requestBatch} call. A part that was not asked for is null, and so is
+     * the piece when the camera did not see one. The tags and piece are recycled like polled ones.
+     */
+    public static class BatchReply {
+        List<Apriltag> apriltags;
+        Piece piece;
+        PieceList pieces;
+        Info info;
+
+        public List<Apriltag> getApriltags() {
+            return apriltags;
+        }
+
+        /** Returns the nearest piece. */
+        public Piece getPiece() {
+            return piece;
+        }
+
+        /** Returns every piece, or null if "fp" was not asked for or the server does not batch. */
+        public List<Piece> getPieces() {
+            return pieces;
+        }
+
+        public Info getInfo() {
+            return info;
+        }
+    }
+
+    /**
+     * A list of apriltags that reuses its tag objects from one frame to the next. Treat it as read only
+     * and copy anything that has to outlive {@link #FRAME_POOL_SIZE} newer frames.
+     */
+    public static class ApriltagList extends AbstractList<Apriltag> implements RandomAccess {
+        private Apriltag[] tags = new Apriltag[8];
+        private int size = 0;
+
+        /** Returns the next pooled tag, growing the pool only when a frame has more tags than ever before. */
+        Apriltag add() {
+            if (size == tags.length) {
+                tags = Arrays.copyOf(tags, size * 2);
+            }
+            Apriltag tag = tags[size];
+            if (tag == null) {
+                tag = tags[size] = new Apriltag();
+            }
+            size++;
+            return tag;
+        }
+
+        @Override
+        public void clear() {
+            size = 0;
+        }
+
+        @Override
+        public Apriltag get(int index) {
+            if (index >= size) throw new IndexOutOfBoundsException(index);
+            return tags[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /** A timestamped detection result. Frames are recycled, see {@link #FRAME_POOL_SIZE}. */
+    public static class DetectionFrame<T> {
+        public final T value;
+        public long sequence;
+        public long receivedNanos;
+        public long serverSequence = -1; // Only binary frames carry these two
+        public long captureMicros = 0;
+
+        public DetectionFrame(T value) {
+            this.value = value;
+        }
+
+        public double ageMillis() {
+            return (System.nanoTime() - receivedNanos) / 1e6;
+        }
+    }
+
+    /** A decoder and the rings of frames it fills. Only one thread may use a context at a time. */
+    private static class DecodeContext {
+        final DetectionDecoder decoder = new DetectionDecoder();
+        final DetectionFrame<ApriltagList>[] apriltagFrames = ring(ApriltagList::new);
+        final DetectionFrame<Piece>[] pieceFrames = ring(Piece::new);
+        final DetectionFrame<PieceList>[] pieceListFrames = ring(PieceList::new);
+        DetectionFrame<PieceList> lastPieces; // Set by nextPieceFrame, every piece of the frame being decoded
+        long sequence = 0;
+
+        /** Fills a ring of frames, each with its own value to decode into. */
+        @SuppressWarnings("unchecked")
+        private static <T> DetectionFrame<T>[] ring(Supplier<T> values) {
+            // Generic arrays can not be made directly, and the frames never leave the context
+            DetectionFrame<T>[] frames = (DetectionFrame<T>[]) new DetectionFrame<?>[FRAME_POOL_SIZE];
+            for (int i = 0; i < FRAME_POOL_SIZE; i++) {
+                frames[i] = new DetectionFrame<>(values.get());
+            }
+            return frames;
+        }
+
+        DetectionFrame<ApriltagList> nextApriltagFrame() {
+            return stamp(apriltagFrames[(int) (sequence % FRAME_POOL_SIZE)]);
+        }
+
+        DetectionFrame<Piece> nextPieceFrame() {
+            int slot = (int) (sequence % FRAME_POOL_SIZE);
+            DetectionFrame<Piece> frame = stamp(pieceFrames[slot]);
+            // The list shares the slot and the stamp, so both recycle together
+            lastPieces = pieceListFrames[slot];
+            lastPieces.sequence = frame.sequence;
+            lastPieces.receivedNanos = frame.receivedNanos;
+            lastPieces.serverSequence = -1;
+            lastPieces.captureMicros = 0;
+            return frame;
+        }
+
+        private <T> DetectionFrame<T> stamp(DetectionFrame<T> frame) {
+            frame.sequence = ++sequence;
+            frame.receivedNanos = System.nanoTime();
+            frame.serverSequence = -1;
+            frame.captureMicros = 0;
+            return frame;
+        }
+    }
+
+    /** A request that is waiting for its reply, along with how to decode that reply. */
+    private static class PendingRequest<T> {
+        final int id;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Function<String, T> decoder;
+        final Function<ByteBuffer, T> binaryDecoder;
+        final byte kind; // What the reply holds, for the telemetry log
+        final long createdNanos = System.nanoTime();
+        volatile long sentNanos = 0; // 0 until the send finishes
+        volatile boolean expired = false; // Timed out, a reply matched to it may belong to something else
+
+        PendingRequest(int id, byte kind, Function<String, T> decoder, Function<ByteBuffer, T> binaryDecoder) {
+            this.id = id;
+            this.kind = kind;
+            this.decoder = decoder;
+            this.binaryDecoder = binaryDecoder;
+        }
+
+        void complete(String reply, CameraMetrics metrics) {
+            long start = recordReply(metrics);
+            try {
+                T result = decoder.apply(reply);
+                metrics.parse.recordSince(start);
+                future.complete(result);
+            } catch (Exception e) {
+                metrics.recordParseError();
+                future.completeExceptionally(e);
+            }
+        }
+
+        void complete(ByteBuffer reply, CameraMetrics metrics) {
+            long start = recordReply(metrics);
+            try {
+                if (binaryDecoder == null) throw new IllegalStateException("Unexpected binary reply");
+                T result = binaryDecoder.apply(reply);
+                metrics.parse.recordSince(start);
+                future.complete(result);
+            } catch (Exception e) {
+                metrics.recordParseError();
+                future.completeExceptionally(e);
+            }
+        }
+
+        private long recordReply(CameraMetrics metrics) {
+            long now = System.nanoTime();
+            long sent = sentNanos;
+            // On loopback the reply can beat the send callback, so fall back to when it was made
+            metrics.roundTrip.record(now - (sent != 0 ? sent : createdNanos));
+            metrics.recordReply();
+            return now;
+        }
+    }
+
+    /** A fetch that several callers can share, and when it finished. */
+    private static class SharedFetch<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        volatile long completedNanos = System.nanoTime();
+
+        boolean isReusable(long now, long ttlNanos) {
+            if (!future.isDone()) return true;
+            return !future.isCompletedExceptionally() && now - completedNanos < ttlNanos;
+        }
     }
 
     public CameraWebsocketClient() {
         TIMEOUT = 5000;
+        rtt = new RttEstimator(DEFAULT_MIN_TIMEOUT_MS, TIMEOUT);
     }
 
+    /**
+     * @param ip - the websocket address with its port
+     * @param timeout - the connect timeout in milliseconds, and the longest a request waits for its reply
+     */
     public CameraWebsocketClient(String ip, int timeout) {
         TIMEOUT = timeout;
         this.ip = ip;
+        rtt = new RttEstimator(DEFAULT_MIN_TIMEOUT_MS, TIMEOUT);
     }
 
     /**
@@ -90,17 +452,96 @@ public class CameraWebsocketClient {
     public boolean setupConnection() {
         // This function sets up the connection to the websocket server. It returns true if the connection was successful and false if it was not.
         // Call this at any time if you want to reconnect to the server.
+        failPendingRequests(new IllegalStateException("Reconnecting to " + ip));
+        if (webSocket != null) {
+            metrics.recordReconnect();
+            webSocket.abort(); // Whatever is left of the old socket
+        }
+        connectionState = ConnectionState.CONNECTING;
         try {
-            HttpClient client = HttpClient.newHttpClient();
-            webSocket = client.newWebSocketBuilder()
-                    .buildAsync(URI.create(ip), new WebSocketListener(this))
-                    .join();
+            webSocket = openSocket(false);
+            binaryFrames = BinaryFrames.SUBPROTOCOL.equals(webSocket.getSubprotocol());
         } catch (Exception e) {
             // e.printStackTrace();
-            System.out.println("Failed to connect to " + ip);
+            report("Failed to connect to " + ip);
+            connectionState = ConnectionState.DISCONNECTED;
             return false;
         }
-        return isConnected();
+        connectionState = isConnected() ? ConnectionState.CONNECTED : ConnectionState.DISCONNECTED;
+        return connectionState == ConnectionState.CONNECTED;
+    }
+
+    private WebSocket openSocket(boolean stream) {
+        HttpClient client = httpClient;
+        WebSocket.Builder builder = (client != null ? client : HttpClient.newHttpClient()).newWebSocketBuilder()
+                .connectTimeout(Duration.ofMillis(TIMEOUT));
+        if (offerBinaryFrames) {
+            // Servers that do not know the subprotocol just leave it out and keep sending JSON
+            builder.subprotocols(BinaryFrames.SUBPROTOCOL);
+        }
+        return builder.buildAsync(URI.create(ip), new WebSocketListener(this, stream)).join();
+    }
+
+    /**
+     * Sets the client to open sockets with, so the cameras on one host share its executor and
+     * connection pool. Takes effect on the next connect.
+
+     * @param client - the client, or null to make a new one for every connect
+     */
+    public void setHttpClient(HttpClient client) {
+        this.httpClient = client;
+    }
+
+    /**
+     * Sets whether to offer the binary frame format when connecting. Takes effect on the next connect.
+
+     * @param offer - whether to ask the server for binary frames
+     */
+    public void setOfferBinaryFrames(boolean offer) {
+        this.offerBinaryFrames = offer;
+    }
+
+    /**
+     * Sets what the stream socket does when frames come in faster than they are decoded. With
+     * BACKPRESSURE the server is only sent more as fast as frames are decoded, so a slow decode delays
+     * every later frame. The other two keep reading and decode on the common pool, dropping frames that
+     * are already stale. Takes effect on the next {@link #subscribe()}.
+
+     * @param policy - the policy, BACKPRESSURE by default
+     */
+    public void setStreamOverflowPolicy(StreamOverflowPolicy policy) {
+        this.streamOverflowPolicy = policy;
+    }
+
+    public StreamOverflowPolicy getStreamOverflowPolicy() {
+        return streamOverflowPolicy;
+    }
+
+    /**
+     * Returns whether the server agreed to send binary frames on the current connection.
+
+     * @return boolean - true for binary frames, false for JSON
+     */
+    public boolean usesBinaryFrames() {
+        return binaryFrames;
+    }
+
+    /**
+     * Returns where the connection is at. A socket that dropped reads as DISCONNECTED right away,
+     * even before anything notices and tries to reconnect.
+
+     * @return state - the connection state
+     */
+    public ConnectionState getConnectionState() {
+        ConnectionState state = connectionState;
+        if (state == ConnectionState.CONNECTED && !isConnected()) {
+            return ConnectionState.DISCONNECTED;
+        }
+        return state;
+    }
+
+    void setConnectionState(ConnectionState state) {
+        connectionState = state;
     }
 
     /**
@@ -114,8 +555,431 @@ public class CameraWebsocketClient {
             && webSocket.isInputClosed() == false;
     }
 
+    /**
+     * Opens a second socket and asks the server to push every processed frame over it. Request and
+     * response calls keep working on the main socket, and fall back to it when the stream goes quiet,
+     * so this is safe to call against older servers that do not know the subscribe command.
+
+     * @return subscribed - whether the stream socket was opened
+     */
+    public boolean subscribe() {
+        unsubscribe();
+        wantsStream = true;
+        try {
+            WebSocket socket = openSocket(true);
+            socket.sendText(SUBSCRIBE_COMMAND, true).join();
+            streamSocket = socket;
+            return true;
+        } catch (Exception e) {
+            report("Failed to subscribe to " + ip);
+            return false;
+        }
+    }
+
+    /** Closes the stream socket. The last frames are dropped so nothing stale gets served. */
+    public void unsubscribe() {
+        wantsStream = false;
+        WebSocket socket = streamSocket;
+        streamSocket = null;
+        latestApriltagFrame = null;
+        latestPieceFrame = null;
+        latestPiecesFrame = null;
+        if (socket != null) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "Unsubscribing");
+        }
+    }
+
+    /**
+     * Returns whether the server is pushing frames and the last one arrived within the timeout.
+
+     * @return boolean - whether detections are being served from the stream
+     */
+    public boolean isStreaming() {
+        WebSocket socket = streamSocket;
+        return socket != null && !socket.isInputClosed()
+            && (isFresh(latestApriltagFrame) || isFresh(latestPiecesFrame));
+    }
+
+    /**
+     * Returns whether {@link #subscribe()} was called and the stream socket is not open, which happens
+     * when the subscription failed or the socket dropped.
+
+     * @return boolean - whether the stream should be subscribed again
+     */
+    public boolean needsResubscribe() {
+        WebSocket socket = streamSocket;
+        return wantsStream && (socket == null || socket.isInputClosed() || socket.isOutputClosed());
+    }
+
+    private boolean isFresh(DetectionFrame<?> frame) {
+        return frame != null && System.nanoTime() - frame.receivedNanos < TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+    }
+
+    /**
+     * Returns the newest pushed apriltag frame without blocking.
+
+     * @return frame - the latest frame, or null if nothing has been pushed yet
+     */
+    public DetectionFrame<ApriltagList> getLatestApriltagFrame() {
+        return latestApriltagFrame;
+    }
+
+    /**
+     * Returns the newest pushed piece frame without blocking.
+
+     * @return frame - the latest frame, or null if nothing has been pushed yet
+     */
+    public DetectionFrame<Piece> getLatestPieceFrame() {
+        return latestPieceFrame;
+    }
+
+    /**
+     * Returns every piece from the newest pushed piece frame without blocking.
+
+     * @return frame - the latest frame, empty if it had no pieces, or null if nothing has been pushed yet
+     */
+    public DetectionFrame<PieceList> getLatestPiecesFrame() {
+        return latestPiecesFrame;
+    }
+
+    /**
+     * The callback for binary frames pushed on the stream socket.
+
+     * @param frame - the pushed frame, only valid during the call
+     */
+    public void onStreamBinary(ByteBuffer frame) {
+        long start = System.nanoTime();
+        metrics.recordStreamFrame();
+        byte kind = BinaryFrames.kind(frame);
+        TelemetryLog.global().rawBinary(telemetrySource, kind, true, frame);
+        if (kind == BinaryFrames.KIND_APRILTAGS) {
+            DetectionFrame<ApriltagList> decoded = decodeApriltagFrame(streamContext, frame);
+            if (decoded != null) latestApriltagFrame = decoded;
+            lastStreamKind = kind;
+        } else if (kind == BinaryFrames.KIND_PIECE) {
+            latestPieceFrame = decodePieceFrame(streamContext, frame);
+            latestPiecesFrame = streamContext.lastPieces;
+            lastStreamKind = kind;
+        }
+        metrics.parse.recordSince(start);
+    }
+
+    /**
+     * The callback for frames pushed on the stream socket. Tags and pieces can both be pushed as JSON
+     * arrays, so frames are told apart by their keys, see {@link DetectionDecoder#classify}. An empty
+     * array has no keys and counts as the same kind as the push before it.
+
+     * @param frame - the pushed frame, only read during the call
+     */
+    public void onStreamMessage(CharSequence frame) {
+        long start = System.nanoTime();
+        metrics.recordStreamFrame();
+        byte kind = streamContext.decoder.classify(frame);
+        if (kind == DetectionDecoder.KIND_EMPTY) kind = lastStreamKind;
+        TelemetryLog.global().rawText(telemetrySource, kind < 0 ? TelemetryLog.FRAME_KIND_OTHER : kind, true, frame);
+        if (kind == BinaryFrames.KIND_APRILTAGS) {
+            DetectionFrame<ApriltagList> decoded = decodeApriltagFrame(streamContext, frame);
+            if (decoded != null) latestApriltagFrame = decoded;
+            lastStreamKind = kind;
+        } else if (kind == BinaryFrames.KIND_PIECE) {
+            latestPieceFrame = decodePieceFrame(streamContext, frame);
+            latestPiecesFrame = streamContext.lastPieces;
+            lastStreamKind = kind;
+        }
+        metrics.parse.recordSince(start);
+    }
+
+    /**
+     * Sets the id this camera's records carry in the {@link TelemetryLog}, usually its camera index.
+
+     * @param source - the id to log under
+     */
+    public void setTelemetrySource(int source) {
+        this.telemetrySource = source;
+    }
+
+    int getTelemetrySource() {
+        return telemetrySource;
+    }
+
+    /** Logs a message to the telemetry log, or prints it if the log is off. */
+    private void report(String message) {
+        if (!TelemetryLog.global().message(telemetrySource, message)) {
+            System.out.println(message);
+        }
+    }
+
+    /** Logs an exception to the telemetry log, or prints its stack trace if the log is off. */
+    private void reportError(Exception e) {
+        if (!TelemetryLog.global().message(telemetrySource, e.toString())) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the round trip estimate that sets this camera's request timeouts.
+
+     * @return rtt - the live estimate
+     */
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    /**
+     * Returns the breaker that skips this camera while it is not answering.
+
+     * @return breaker - the live breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Returns this camera's timing histograms and counters.
+
+     * @return metrics - the live metrics, use snapshot() to read them
+     */
+    public CameraMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Keeps the raw reply in the first tag's fullString. This pins every message, so only turn it on for debugging.
+
+     * @param keep - whether to keep the raw replies
+     */
+    public void setKeepRawMessages(boolean keep) {
+        replyContext.decoder.setKeepRawMessages(keep);
+        streamContext.decoder.setKeepRawMessages(keep);
+    }
+
+    /**
+     * Sends a message that does not expect a reply, such as a color switch.
+
+     * @param message - the raw command to send
+     */
     public void sendMessage(String message) {
-        webSocket.sendText(message, true);
+        enqueueSend(message);
+    }
+
+    /**
+     * Enables or disables tagging each request with a correlation id. Only turn this on for servers
+     * that echo the id back as a top level "request_id" field, otherwise replies are matched in order.
+
+     * @param enabled - whether to send and match request ids
+     */
+    public void setCorrelationIds(boolean enabled) {
+        this.correlationIds = enabled;
+    }
+
+    /**
+     * Sends a command to the server without waiting for it to answer. Several requests can be in
+     * flight at once; each reply completes the future of the request it belongs to.
+
+     * @param command - the command to send, for example "fa"
+     * @param decoder - turns the raw reply into the result of the future
+     * @return future - completes with the decoded reply, or exceptionally on timeout or disconnect
+     */
+    public <T> CompletableFuture<T> request(String command, Function<String, T> decoder) {
+        return request(command, decoder, null);
+    }
+
+    /**
+     * Sends a command whose reply may come back as a binary frame.
+
+     * @param command - the command to send, for example "fa"
+     * @param decoder - turns a JSON reply into the result of the future
+     * @param binaryDecoder - turns a binary reply into the result, the buffer is only valid during the call
+     * @return future - completes with the decoded reply, or exceptionally on timeout or disconnect
+     */
+    public <T> CompletableFuture<T> request(String command, Function<String, T> decoder, Function<ByteBuffer, T> binaryDecoder) {
+        return send(command, decoder, binaryDecoder, false);
+    }
+
+    private <T> CompletableFuture<T> send(String command, Function<String, T> decoder, Function<ByteBuffer, T> binaryDecoder, boolean probe) {
+        PendingRequest<T> request = new PendingRequest<>(nextRequestId.incrementAndGet(), frameKind(command), decoder, binaryDecoder);
+        metrics.recordRequest();
+        if (!isConnected()) {
+            request.future.completeExceptionally(new IllegalStateException("Not connected to " + ip));
+            return request.future;
+        }
+        if (!probe && !breaker.allowRequest()) {
+            // Failing now is the whole point, waiting out a timeout here is what stalls the loop
+            request.future.completeExceptionally(new IllegalStateException(ip + " is not answering, waiting for a probe to get through"));
+            return request.future;
+        }
+
+        boolean tagged = correlationIds;
+        String outgoing = tagged ? command + REQUEST_ID_ARGUMENT + request.id : command;
+        synchronized (sendLock) {
+            // Queue and send under the same lock so the queue order is the order on the wire.
+            if (tagged) pendingById.put(request.id, request);
+            pendingRequests.add(request);
+            enqueueSend(outgoing).whenComplete((ws, error) -> {
+                if (error != null) {
+                    forget(request);
+                    request.future.completeExceptionally(error);
+                } else {
+                    request.sentNanos = System.nanoTime();
+                    metrics.queueWait.record(request.sentNanos - request.createdNanos);
+                }
+            });
+        }
+        if (pendingRequests.size() > MAX_PENDING_REQUESTS) {
+            PendingRequest<?> oldest = pendingRequests.poll();
+            if (oldest != null) {
+                pendingById.remove(oldest.id);
+                oldest.future.completeExceptionally(new IllegalStateException("Too many pending requests to " + ip));
+            }
+        }
+
+        request.future.orTimeout(rtt.getTimeoutNanos(), TimeUnit.NANOSECONDS).whenComplete((result, error) -> {
+            if (error instanceof TimeoutException) {
+                request.expired = true;
+                if (!tagged) resync(request);
+                metrics.recordTimeout();
+                rtt.backoff();
+                if (breaker.recordFailure()) {
+                    report(ip + " stopped answering, skipping it until a probe gets through");
+                    scheduleProbe(1);
+                }
+            }
+            // With ids the late reply can still find nothing and be dropped, so the slot can go
+            if (error != null && tagged) forget(request);
+        });
+        return request.future;
+    }
+
+    private void scheduleProbe(int attempt) {
+        PROBES.schedule(() -> probe(attempt), breaker.probeDelayMs(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends one probe, and schedules the next one if the breaker is still open after it. */
+    private void probe(int attempt) {
+        if (breaker.allowRequest() || connectionState == ConnectionState.CLOSED) return;
+        if (!isConnected()) {
+            // Reconnecting is the connection manager's job, just check back later
+            scheduleProbe(attempt + 1);
+            return;
+        }
+        // Nothing else is sent while the breaker is open, so anything still queued is a reply that never
+        // came. Without ids the probe's reply would be matched to the oldest of those instead.
+        failPendingRequests(new IllegalStateException(ip + " never answered"));
+        send(PROBE_COMMAND, reply -> reply, null, true).whenComplete((reply, error) -> {
+            // Any reply closes the breaker on its way in, not only this one
+            if (!breaker.allowRequest()) scheduleProbe(attempt + 1);
+        });
+    }
+
+    private static boolean timedOut(Exception e) {
+        return e instanceof TimeoutException || e.getCause() instanceof TimeoutException;
+    }
+
+    /**
+     * Feeds a reply's round trip to the timeout estimate and closes the breaker if it was open. A reply
+     * without an id matched to a request that already timed out may really be an older request's late
+     * reply, so it is only used for the result. Sampling it would skew the RTT and let a stuck camera
+     * close its own breaker.
+
+     * @param request - the request the reply was matched to
+     * @param tagged - whether the reply carried the request's id
+     */
+    private void replied(PendingRequest<?> request, boolean tagged) {
+        // The flag is set just after the timeout fires, so check the future as well
+        if (!tagged && (request.expired || request.future.isDone())) return;
+        long sent = request.sentNanos;
+        // Same fallback as the metrics when the reply beats the send callback
+        rtt.sample(System.nanoTime() - (sent != 0 ? sent : request.createdNanos));
+        if (breaker.recordSuccess()) {
+            report(ip + " is answering again");
+        }
+    }
+
+    private static byte frameKind(String command) {
+        if (command.equals("fa")) return BinaryFrames.KIND_APRILTAGS;
+        if (command.equals("fp")) return BinaryFrames.KIND_PIECE;
+        return TelemetryLog.FRAME_KIND_OTHER;
+    }
+
+    private CompletableFuture<WebSocket> enqueueSend(String message) {
+        synchronized (sendLock) {
+            // The JDK websocket only allows one outstanding send, so chain them.
+            WebSocket socket = webSocket;
+            sendChain = sendChain
+                    .exceptionally(error -> null)
+                    .thenCompose(ignored -> socket.sendText(message, true));
+            return sendChain;
+        }
+    }
+
+    private void forget(PendingRequest<?> request) {
+        pendingById.remove(request.id);
+        pendingRequests.remove(request);
+    }
+
+    /**
+     * Gets the reply order back after a request without an id timed out. Its reply may never come, so
+     * leaving it queued would hand every later reply to the request before it for good. Everything sent
+     * before it is just as stale, so it all goes. If its reply does turn up late it can only go to a
+     * request it fits, see {@link #claim}.
+
+     * @param expired - the request that timed out
+     */
+    private void resync(PendingRequest<?> expired) {
+        synchronized (sendLock) {
+            if (!pendingRequests.contains(expired)) return; // Already answered or failed
+            IllegalStateException reason = new IllegalStateException("Lost track of replies from " + ip);
+            PendingRequest<?> request;
+            while ((request = pendingRequests.poll()) != null) {
+                pendingById.remove(request.id);
+                request.future.completeExceptionally(reason);
+                if (request == expired) break;
+            }
+        }
+    }
+
+    /**
+     * Takes the request a reply without an id answers: the oldest pending one it fits. The server
+     * answers in order, so any older request it skips over lost its reply and is failed here rather
+     * than waiting out its timeout. Matching the head blindly would hand the next reply to the wrong
+     * request after every lost one.
+
+     * @param shape - what the reply holds, from {@link DetectionDecoder#classify} or the binary header
+     * @return request - the request to complete, or null if the reply fits nothing that is pending
+     */
+    private PendingRequest<?> claim(byte shape) {
+        PendingRequest<?> match = null;
+        for (PendingRequest<?> request : pendingRequests) {
+            if (fits(request, shape)) {
+                match = request;
+                break;
+            }
+        }
+        if (match == null) return null;
+        PendingRequest<?> skipped;
+        while ((skipped = pendingRequests.peek()) != null && skipped != match) {
+            if (pendingRequests.remove(skipped)) {
+                pendingById.remove(skipped.id);
+                skipped.future.completeExceptionally(new IllegalStateException("No reply from " + ip));
+            }
+        }
+        if (!pendingRequests.remove(match)) return null; // Timed out just now
+        pendingById.remove(match.id);
+        return match;
+    }
+
+    /** Returns whether a reply of this shape could answer the request, an error answers anything. */
+    private static boolean fits(PendingRequest<?> request, byte shape) {
+        if (shape == request.kind || shape == DetectionDecoder.KIND_ERROR) return true;
+        return shape == DetectionDecoder.KIND_EMPTY && request.kind != TelemetryLog.FRAME_KIND_OTHER;
+    }
+
+    private void failPendingRequests(Throwable reason) {
+        PendingRequest<?> request;
+        while ((request = pendingRequests.poll()) != null) {
+            request.future.completeExceptionally(reason);
+        }
+        pendingById.clear();
     }
 
     /**
@@ -124,9 +988,75 @@ public class CameraWebsocketClient {
      * @param newMessage - the message from the server
      */
     public void onMessage(String newMessage) {
-        System.out.println("Received message: " + newMessage);
         this.latestReply = newMessage;
-        messageLatch.countDown();
+
+        PendingRequest<?> request = null;
+        String reply = newMessage;
+        int id = correlationIds ? findRequestId(newMessage) : -1;
+        if (id >= 0) {
+            request = pendingById.remove(id);
+            if (request == null) {
+                return; // Reply to a request that already timed out
+            }
+            pendingRequests.remove(request);
+            reply = unwrapReply(newMessage);
+        } else {
+            byte shape = pendingRequests.isEmpty() ? TelemetryLog.FRAME_KIND_OTHER : replyContext.decoder.classify(newMessage);
+            request = claim(shape);
+            if (request == null) {
+                // Nothing asked for this, most likely a late reply to a request that was given up on
+                TelemetryLog.global().rawText(telemetrySource, shape < 0 ? TelemetryLog.FRAME_KIND_OTHER : shape, false, reply);
+                return;
+            }
+        }
+
+        // The unwrapped reply is logged so a replay can feed it straight back in
+        TelemetryLog.global().rawText(telemetrySource, request != null ? request.kind : TelemetryLog.FRAME_KIND_OTHER, false, reply);
+        if (request != null) {
+            replied(request, id >= 0);
+            request.complete(reply, metrics);
+        }
+    }
+
+    /**
+     * The callback for when a binary reply is received. Binary replies carry no request id, so they
+     * answer the oldest pending request that asked for that kind of frame.
+
+     * @param reply - the reply, only valid during the call
+     */
+    public void onBinaryMessage(ByteBuffer reply) {
+        byte kind = reply.hasRemaining() ? BinaryFrames.kind(reply) : TelemetryLog.FRAME_KIND_OTHER;
+        TelemetryLog.global().rawBinary(telemetrySource, kind, false, reply);
+        PendingRequest<?> request = claim(kind);
+        if (request != null) {
+            replied(request, false);
+            request.complete(reply, metrics);
+        }
+    }
+
+    /** Finds the value of a top level "request_id" field, or -1 if the reply does not have one. */
+    private static int findRequestId(String message) {
+        if (message.isEmpty() || message.charAt(0) != '{') return -1;
+        int key = message.indexOf(REQUEST_ID_KEY);
+        if (key < 0) return -1;
+        int i = message.indexOf(':', key + REQUEST_ID_KEY.length()) + 1;
+        if (i <= 0) return -1;
+        while (i < message.length() && Character.isWhitespace(message.charAt(i))) i++;
+        int id = 0;
+        int start = i;
+        while (i < message.length() && Character.isDigit(message.charAt(i))) {
+            id = id * 10 + (message.charAt(i++) - '0');
+        }
+        return i > start ? id : -1;
+    }
+
+    /**
+     * Replies that carry an id wrap array payloads in a "result" field. The payload is cut out as is,
+     * so the only cost over an unwrapped reply is one scan and one copy. Listener thread only.
+     */
+    private String unwrapReply(String message) {
+        long range = replyContext.decoder.findResult(message);
+        return range < 0 ? message : message.substring((int) (range >>> 32), (int) range);
     }
 
     public String getMessage() {
@@ -134,16 +1064,13 @@ public class CameraWebsocketClient {
     }
 
     /**
-     * Tries to get the next response from the websocket server.
+     * Returns the last message received from the websocket server.
 
      * @return latestReply - the response from the server
+     * @deprecated replies are no longer matched this way, use {@link #request(String, Function)}
      */
+    @Deprecated
     public String getLatestReply() {
-        try {
-            messageLatch.await(TIMEOUT, TimeUnit.MILLISECONDS); // Wait for up to 5 seconds
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
         return latestReply;
     }
 
@@ -165,20 +1092,63 @@ public class CameraWebsocketClient {
     }
 
     /**
-     * Requests info from the websocket server and returns it's reply.
+     * Returns the camera's info. Most of it stays put while the camera runs, so after the first reply,
+     * or once a snapshot has supplied it, this returns without asking the server. The colors are the
+     * exception: after {@link #saveColors} or {@link #switchColors} the next call asks again.
 
      * @return Info - the info that the server returned
      */
     public Info getInfo() {
+        Info known = info;
+        if (known != null && infoColorChanges == colorChanges.get()) return known;
         try {
-            sendMessage("info");
-            String newMessage = getLatestReply();
-            return getInfoFromString(newMessage);
+            return getInfoAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
             return new Info();
         }
     }
 
+    /**
+     * Requests info from the websocket server without waiting for the reply. The reply replaces
+     * whatever info was known before.
+
+     * @return future - completes with the info that the server returned
+     */
+    public CompletableFuture<Info> getInfoAsync() {
+        // Counted before sending, a reply to a request that went out before a color change is already stale
+        int changes = colorChanges.get();
+        return request("info", this::getInfoFromString).thenApply(reply -> {
+            if (reply != null && reply.identifier != null) {
+                info = reply;
+                infoColorChanges = changes;
+            }
+            return reply;
+        });
+    }
+
+    /**
+     * Returns the info that is already known without asking the server.
+
+     * @return info - the last info, or null if none has come in
+     */
+    public Info getKnownInfo() {
+        return info;
+    }
+
+    /**
+     * Sets the info to serve until the server sends its own, for example from a {@link CameraSnapshot}.
+
+     * @param known - the info
+     */
+    public void setKnownInfo(Info known) {
+        this.info = known;
+        this.infoColorChanges = colorChanges.get();
+    }
+
+    public String getAddress() {
+        return ip;
+    }
+
     /**
      * Parses a string as a Json object and returns it as an Info object.
 
@@ -190,37 +1160,11 @@ public class CameraWebsocketClient {
             return null;
         }
         try {
-            JsonObject json = decodeJson(pMessage);
-            Info info = new Info();
-            info.cameraName = json.get("cam_name").getAsString();
-            info.identifier = json.get("identifier").getAsString();
-            info.horizontalFocalLength = json.get("horizontal_focal_length").getAsDouble();
-            info.verticalFocalLength = json.get("vertical_focal_length").getAsDouble();
-            info.height = json.get("height").getAsInt();
-            info.horizontalResolutionPixels = json.get("horizontal_resolution_pixels").getAsInt();
-            info.verticalResolutionPixels = json.get("vertical_resolution_pixels").getAsInt();
-            info.processingScale = json.get("processing_scale").getAsInt();
-            info.tiltAngleRadians = json.get("tilt_angle_radians").getAsDouble();
-            info.horizontalFieldOfViewRadians = json.get("horizontal_field_of_view_radians").getAsDouble();
-            info.verticalFieldOfViewRadians = json.get("vertical_field_of_view_radians").getAsDouble();
-            info.activeColor = json.get("active_color").getAsInt();
-            info.colorList = new ArrayList<>();
-            for (var colorJson : json.getAsJsonArray("color_list")) {
-                Color color = new Color();
-                JsonObject colorObject = colorJson.getAsJsonObject();
-                color.red = colorObject.get("red").getAsDouble();
-                color.green = colorObject.get("green").getAsDouble();
-                color.blue = colorObject.get("blue").getAsDouble();
-                color.difference = colorObject.get("difference").getAsDouble();
-                color.blur = colorObject.get("blur").getAsDouble();
-                info.colorList.add(color);
-            }
-            info.fullString = pMessage;
-            info.fullString = pMessage;
-            return info;
+            return replyContext.decoder.decodeInfo(pMessage);
         } catch (Exception e) {
-            System.out.println("Error getting info");
-            e.printStackTrace();
+            report("Error getting info");
+            reportError(e);
+            metrics.recordParseError();
             return new Info();
         }
     }
@@ -248,6 +1192,7 @@ public class CameraWebsocketClient {
 
         // TODO: do some error check for this
         sendMessage(outgoingString + colorArray.toString());
+        colorChanges.incrementAndGet(); // The color list in the known info is out of date now
 
         // TODO: after error checks, return true or false based on the success of the command
         return true;
@@ -261,6 +1206,7 @@ public class CameraWebsocketClient {
      */
     public boolean switchColors(int index) {
         sendMessage("sc -new_color=" + index);
+        colorChanges.incrementAndGet(); // And so is the active color
 
         // TODO: error checks and retun success
         return true;
@@ -272,21 +1218,67 @@ public class CameraWebsocketClient {
      * @return piece - information about the peice, if available 
      */
     public Piece getPiece() {
+        DetectionFrame<Piece> frame = latestPieceFrame;
+        if (isFresh(frame)) {
+            return frame.value;
+        }
         try {
-            sendMessage("fp");
-            String newMessage = getLatestReply();
-            return getPieceFromString(newMessage);
+            return getPieceAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
-            e.printStackTrace();
-            if (setupConnection()) {
-                sendMessage("fp");
-                String newMessage = getLatestReply();
-                return getPieceFromString(newMessage);
-            }
+            // Reconnecting is left to the ConnectionManager so this never blocks the loop
+            // The request's own timeout usually fires first, wrapped in an ExecutionException
+            if (timedOut(e)) report("Timed out waiting for a piece from " + ip);
+            else if (isConnected() && breaker.allowRequest()) reportError(e);
             return null;
         }
     }
 
+    /**
+     * Requests piece information without waiting for the reply.
+
+     * @return future - completes with the piece, or null if there is none
+     */
+    public CompletableFuture<Piece> getPieceAsync() {
+        DetectionFrame<Piece> frame = latestPieceFrame;
+        if (isFresh(frame)) {
+            return CompletableFuture.completedFuture(frame.value);
+        }
+        return sharedFetch(pieceFetch, () -> request("fp", this::getPieceFromString, this::getPieceFromBinary));
+    }
+
+    /**
+     * Requests every piece the camera sees. Pieces are recycled like tags, see {@link PieceList}.
+
+     * @return pieces - the pieces, empty if there are none or the request failed
+     */
+    public List<Piece> getPieces() {
+        DetectionFrame<PieceList> frame = latestPiecesFrame;
+        if (isFresh(frame)) {
+            return frame.value;
+        }
+        try {
+            return getPiecesAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // The request's own timeout usually fires first, wrapped in an ExecutionException
+            if (timedOut(e)) report("Timed out waiting for pieces from " + ip);
+            else if (isConnected() && breaker.allowRequest()) reportError(e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Requests every piece the camera sees without waiting for the reply.
+
+     * @return future - completes with the pieces, empty if there are none
+     */
+    public CompletableFuture<PieceList> getPiecesAsync() {
+        DetectionFrame<PieceList> frame = latestPiecesFrame;
+        if (isFresh(frame)) {
+            return CompletableFuture.completedFuture(frame.value);
+        }
+        return sharedFetch(piecesFetch, () -> request("fp", this::getPiecesFromString, this::getPiecesFromBinary));
+    }
+
 
     /**
      * Makes a request to the websocket server for apriltag information and returns its response.
@@ -294,113 +1286,468 @@ public class CameraWebsocketClient {
      * @return aprilTags - a list of Apriltags that we got from the server
      */
     public List<Apriltag> getApriltags() {
+        DetectionFrame<ApriltagList> frame = latestApriltagFrame;
+        if (isFresh(frame)) {
+            return frame.value;
+        }
         try {
-            sendMessage("fa");
-            String newMessage = getLatestReply();
-            return getApriltagsFromString(newMessage);
+            return getApriltagsAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
-            e.printStackTrace();
-            if (setupConnection()) {
-                sendMessage("fa");
-                String newMessage = getLatestReply();
-                return getApriltagsFromString(newMessage);
-            }
+            // The request's own timeout usually fires first, wrapped in an ExecutionException
+            if (timedOut(e)) report("Timed out waiting for apriltags from " + ip);
+            else if (isConnected() && breaker.allowRequest()) reportError(e);
             return new ArrayList<>();
         }
     }
 
-    private double parseJsonElementAsDouble(JsonElement element) {
-        // TODO: Implement this with other functions
-        if (element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber()) {
-            return element.getAsDouble();
-        } else {
-            return Double.NaN;
+    /**
+     * Makes a request for apriltag information without waiting for the reply.
+
+     * @return future - completes with the list of Apriltags that the server saw
+     */
+    public CompletableFuture<List<Apriltag>> getApriltagsAsync() {
+        DetectionFrame<ApriltagList> frame = latestApriltagFrame;
+        if (isFresh(frame)) {
+            return CompletableFuture.completedFuture((List<Apriltag>) frame.value);
+        }
+        return sharedFetch(apriltagFetch, () -> request("fa", this::getApriltagsFromString, this::getApriltagsFromBinary));
+    }
+
+    /**
+     * Sends several of "fa", "fp" and "info" as one frame and gets all of their replies back in one, so
+     * a tick that needs more than one of them costs one round trip instead of several. Tags and pieces
+     * that come back are also handed to the next getApriltags and getPiece calls like a polled fetch
+     * would be. If the server does not know the batch command, this falls back to one request per
+     * command from then on. A server that ignores it without an error looks the same: if the first
+     * batch times out, batches are given up on too.
+
+     * @param commands - the commands to send, each at most once
+     * @return future - completes with every part decoded
+     * @throws IllegalArgumentException if a command can not be batched
+     */
+    public CompletableFuture<BatchReply> requestBatch(String... commands) {
+        StringBuilder batch = new StringBuilder(BATCH_COMMAND).append(' ');
+        for (int i = 0; i < commands.length; i++) {
+            String command = commands[i];
+            if (!command.equals("fa") && !command.equals("fp") && !command.equals("info")) {
+                throw new IllegalArgumentException("Can not batch " + command);
+            }
+            if (i > 0) batch.append(';');
+            batch.append(command);
         }
+        if (!batchSupported) return requestSeparately(commands);
+        return request(batch.toString(), this::getBatchFromString).exceptionallyCompose(error -> {
+            Throwable cause = error.getCause() != null ? error.getCause() : error;
+            // The timeout has already resynced the reply queue, so the separate requests line up again
+            boolean ignored = cause instanceof TimeoutException && !batchAnswered;
+            if (!(cause instanceof UnsupportedOperationException) && !ignored) return CompletableFuture.failedFuture(cause);
+            report(ip + (ignored ? " never answered a batch" : " does not support batches") + ", sending commands one at a time");
+            batchSupported = false;
+            return requestSeparately(commands);
+        });
     }
 
-    private Piece getPieceFromString(String pMessage) {
-        if (pMessage == null || pMessage.contains("error")) return null;
+    private CompletableFuture<BatchReply> requestSeparately(String... commands) {
+        BatchReply reply = new BatchReply();
+        CompletableFuture<?>[] parts = new CompletableFuture<?>[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            switch (commands[i]) {
+                case "fa": parts[i] = getApriltagsAsync().thenAccept(tags -> reply.apriltags = tags); break;
+                case "fp": parts[i] = getPieceAsync().thenAccept(piece -> reply.piece = piece); break;
+                default: parts[i] = getInfoAsync().thenAccept(info -> reply.info = info); break;
+            }
+        }
+        return CompletableFuture.allOf(parts).thenApply(ignored -> reply);
+    }
 
+    private BatchReply getBatchFromString(String pMessage) {
+        DetectionDecoder decoder = replyContext.decoder;
+        BatchReply reply = new BatchReply();
+        boolean any = false;
+        boolean sawPiece = false;
+        decoder.beginBatch(pMessage);
+        while (decoder.nextPart()) {
+            if (decoder.partIs("fa")) {
+                DetectionFrame<ApriltagList> frame = replyContext.nextApriltagFrame();
+                decoder.readPartApriltags(frame.value);
+                TelemetryLog.global().apriltags(telemetrySource, frame.value);
+                reply.apriltags = frame.value;
+                any = true;
+            } else if (decoder.partIs("fp")) {
+                DetectionFrame<Piece> frame = replyContext.nextPieceFrame();
+                decoder.readPartPieces(replyContext.lastPieces.value);
+                reply.pieces = replyContext.lastPieces.value;
+                frame = nearestPiece(frame, reply.pieces);
+                reply.piece = frame != null ? frame.value : null;
+                sawPiece = true;
+                any = true;
+            } else if (decoder.partIs("info")) {
+                reply.info = decoder.readPartInfo();
+                if (reply.info.identifier != null) info = reply.info;
+                any = true;
+            } else {
+                decoder.skipPart(); // An error from a server that does not know the command
+            }
+        }
+        if (!any) throw new UnsupportedOperationException("Batch not supported by " + ip);
+        batchAnswered = true;
+        if (reply.apriltags != null) publishFetch(apriltagFetch, reply.apriltags);
+        if (sawPiece) {
+            publishFetch(pieceFetch, reply.piece);
+            publishFetch(piecesFetch, reply.pieces);
+        }
+        return reply;
+    }
+
+    /** Hands a result that came in some other way out as if a fetch had just finished with it. */
+    private <T> void publishFetch(AtomicReference<SharedFetch<T>> cache, T result) {
+        SharedFetch<T> fetch = new SharedFetch<>();
+        fetch.future.complete(result);
+        cache.set(fetch);
+    }
+
+    /**
+     * Sets how long a finished tag or piece fetch keeps being handed out before a new request is sent.
+     * Fetches that are still in flight are always shared, even with a ttl of 0.
+
+     * @param ttlMs - how long a result stays fresh, in milliseconds
+     */
+    public void setDetectionCacheTtlMs(long ttlMs) {
+        detectionCacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    /** Returns the in flight or still fresh fetch if there is one, otherwise starts a new one. */
+    private <T> CompletableFuture<T> sharedFetch(AtomicReference<SharedFetch<T>> cache, Supplier<CompletableFuture<T>> fetch) {
+        while (true) {
+            SharedFetch<T> current = cache.get();
+            if (current != null && current.isReusable(System.nanoTime(), detectionCacheTtlNanos)) {
+                metrics.recordCacheHit();
+                return current.future;
+            }
+            SharedFetch<T> next = new SharedFetch<>();
+            if (cache.compareAndSet(current, next)) {
+                fetch.get().whenComplete((result, error) -> {
+                    next.completedNanos = System.nanoTime();
+                    if (error != null) next.future.completeExceptionally(error);
+                    else next.future.complete(result);
+                });
+                return next.future;
+            }
+            // Someone else started a fetch at the same time, go share theirs
+        }
+    }
+
+    Piece getPieceFromString(String pMessage) {
+        DetectionFrame<Piece> frame = decodePieceFrame(replyContext, pMessage);
+        return frame != null ? frame.value : null;
+    }
+
+    List<Apriltag> getApriltagsFromString(String pMessage) {
+        DetectionFrame<ApriltagList> frame = decodeApriltagFrame(replyContext, pMessage);
+        return frame != null ? frame.value : null;
+    }
+
+    private Piece getPieceFromBinary(ByteBuffer reply) {
+        DetectionFrame<Piece> frame = decodePieceFrame(replyContext, reply);
+        return frame != null ? frame.value : null;
+    }
+
+    private List<Apriltag> getApriltagsFromBinary(ByteBuffer reply) {
+        DetectionFrame<ApriltagList> frame = decodeApriltagFrame(replyContext, reply);
+        return frame != null ? frame.value : null;
+    }
+
+    private PieceList getPiecesFromString(String pMessage) {
+        decodePieceFrame(replyContext, pMessage);
+        return replyContext.lastPieces.value;
+    }
+
+    private PieceList getPiecesFromBinary(ByteBuffer reply) {
+        decodePieceFrame(replyContext, reply);
+        return replyContext.lastPieces.value;
+    }
+
+    /**
+     * Decodes every piece in a frame into the context's next piece list, which is left in
+     * lastPieces, and returns the nearest of them as a frame of its own.
+     */
+    private DetectionFrame<Piece> decodePieceFrame(DecodeContext context, ByteBuffer reply) {
+        DetectionFrame<Piece> frame = context.nextPieceFrame();
         try {
-            JsonObject json = new Gson().fromJson(pMessage, JsonObject.class);
-            Piece piece = new Piece();
-
-            if (json != null && json.size() > 0) {
-                piece.distance = parseJsonElementAsDouble(json.get("distance"));
-                piece.angle = parseJsonElementAsDouble(json.get("angle"));
-                piece.center = new double[] {
-                    parseJsonElementAsDouble(json.get("center").getAsJsonArray().get(0)),
-                    parseJsonElementAsDouble(json.get("center").getAsJsonArray().get(1))
-                };
-                piece.pieceAngle = parseJsonElementAsDouble(json.get("piece_angle"));
-                return piece;
-            } else return null;
+            BinaryFrames.decodePieces(reply, context.lastPieces.value, frame);
+            context.lastPieces.serverSequence = frame.serverSequence;
+            context.lastPieces.captureMicros = frame.captureMicros;
+            return nearestPiece(frame, context.lastPieces.value);
         } catch (Exception e) {
-            e.printStackTrace();
-            return new Piece();
+            reportError(e);
+            metrics.recordParseError();
+            context.lastPieces.value.clear();
+            return null;
         }
     }
 
-    private List<Apriltag> getApriltagsFromString(String pMessage) {
+    private DetectionFrame<Piece> nearestPiece(DetectionFrame<Piece> frame, PieceList pieces) {
+        Piece nearest = pieces.nearest();
+        if (nearest == null) return null;
+        frame.value.set(nearest);
+        TelemetryLog.global().piece(telemetrySource, frame.value);
+        return frame;
+    }
+
+    private DetectionFrame<ApriltagList> decodeApriltagFrame(DecodeContext context, ByteBuffer reply) {
+        DetectionFrame<ApriltagList> frame = context.nextApriltagFrame();
+        try {
+            BinaryFrames.decodeApriltags(reply, frame.value, frame);
+            TelemetryLog.global().apriltags(telemetrySource, frame.value);
+        } catch (Exception e) {
+            reportError(e);
+            metrics.recordParseError();
+            frame.value.clear();
+        }
+        return frame;
+    }
+
+    private DetectionFrame<Piece> decodePieceFrame(DecodeContext context, CharSequence pMessage) {
+        DetectionFrame<Piece> frame = context.nextPieceFrame();
+        PieceList pieces = context.lastPieces.value;
+        pieces.clear();
+        if (pMessage == null || contains(pMessage, "error")) return null;
+
+        try {
+            context.decoder.decodePieces(pMessage, pieces);
+            return nearestPiece(frame, pieces);
+        } catch (Exception e) {
+            reportError(e);
+            metrics.recordParseError();
+            pieces.clear();
+            return null;
+        }
+    }
+
+    private DetectionFrame<ApriltagList> decodeApriltagFrame(DecodeContext context, CharSequence pMessage) {
         if (pMessage == null) {
             return null;
         }
+        DetectionFrame<ApriltagList> frame = context.nextApriltagFrame();
         try {
-            JsonArray jsonArray = new Gson().fromJson(pMessage, JsonArray.class);
-            List<Apriltag> apriltags = new ArrayList<>();
-
-            if (jsonArray != null && jsonArray.size() > 0) {
-                for (var apriltagJson : jsonArray) {
-                    Apriltag apriltag = new Apriltag();
-                    JsonObject apriltagObject = apriltagJson.getAsJsonObject();
-                    apriltag.tagId = apriltagObject.get("tag_id").getAsString();
-                    apriltag.position = new double[]{
-                            apriltagObject.get("position").getAsJsonArray().get(0).getAsDouble(),
-                            apriltagObject.get("position").getAsJsonArray().get(1).getAsDouble(),
-                            apriltagObject.get("position").getAsJsonArray().get(2).getAsDouble()
-                    };
-                    apriltag.orientation = new double[]{
-                            apriltagObject.get("orientation").getAsJsonArray().get(0).getAsDouble(),
-                            apriltagObject.get("orientation").getAsJsonArray().get(1).getAsDouble(),
-                            apriltagObject.get("orientation").getAsJsonArray().get(2).getAsDouble()
-                    };
-                    apriltag.distance = apriltagObject.get("distance").getAsDouble();
-                    apriltag.horizontalAngle = apriltagObject.get("horizontal_angle").getAsDouble();
-                    apriltag.verticalAngle = apriltagObject.get("vertical_angle").getAsDouble();
-                    apriltags.add(apriltag);
-                }
-                apriltags.get(0).fullString = pMessage;
-            }
-
-            return apriltags;
+            context.decoder.decodeApriltags(pMessage, frame.value);
+            TelemetryLog.global().apriltags(telemetrySource, frame.value);
         } catch (Exception e) {
-            e.printStackTrace();
-            return new ArrayList<>();
+            reportError(e);
+            metrics.recordParseError();
+            frame.value.clear();
         }
+        return frame;
     }
+
+    // String.contains for a CharSequence, so a pooled builder can be checked without copying it
+    private static boolean contains(CharSequence text, String word) {
+        for (int i = 0; i + word.length() <= text.length(); i++) {
+            int j = 0;
+            while (j < word.length() && text.charAt(i + j) == word.charAt(j)) j++;
+            if (j == word.length()) return true;
+        }
+        return false;
+    }
+
     public void disconnect() {
+        connectionState = ConnectionState.CLOSED;
+        failPendingRequests(new IllegalStateException("Disconnected from " + ip));
+        unsubscribe();
         if (webSocket != null) {
             webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "Disconnecting")
                     .thenRun(() -> System.out.println("WebSocket closed"));
         }
     }
+    /**
+     * Frames read off the stream socket that are waiting to be decoded. The slots and their buffers are
+     * pooled, so once they have grown to fit the largest frame nothing more is allocated. The socket's
+     * thread fills one slot at a time, and a single drain task on the common pool decodes them in order.
+     */
+    private static class StreamQueue implements Runnable {
+        static class Slot {
+            final StringBuilder text = new StringBuilder(1024);
+            ByteBuffer binary = ByteBuffer.allocate(1024);
+            boolean isBinary;
+        }
+
+        private final CameraWebsocketClient client;
+        private final int capacity;
+        private final ArrayDeque<Slot> queued;
+        private final ArrayDeque<Slot> free;
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        StreamQueue(CameraWebsocketClient client, int capacity) {
+            this.client = client;
+            this.capacity = capacity;
+            queued = new ArrayDeque<>(capacity);
+            free = new ArrayDeque<>(capacity + 2);
+            // One slot being filled and one being decoded on top of the queued ones, so take() never runs dry
+            for (int i = 0; i < capacity + 2; i++) {
+                free.add(new Slot());
+            }
+        }
+
+        synchronized Slot take() {
+            return free.poll();
+        }
+
+        void publish(Slot slot) {
+            synchronized (this) {
+                if (queued.size() == capacity) {
+                    free.add(queued.poll());
+                    client.metrics.recordStreamDrop();
+                }
+                queued.add(slot);
+            }
+            if (draining.compareAndSet(false, true)) {
+                ForkJoinPool.commonPool().execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Slot slot;
+                synchronized (this) {
+                    slot = queued.poll();
+                }
+                if (slot == null) {
+                    draining.set(false);
+                    // Something published between the poll and clearing the flag would be stuck until the next frame
+                    synchronized (this) {
+                        if (queued.isEmpty()) return;
+                    }
+                    if (!draining.compareAndSet(false, true)) return;
+                    continue;
+                }
+                try {
+                    if (slot.isBinary) client.onStreamBinary(slot.binary);
+                    else client.onStreamMessage(slot.text);
+                } finally {
+                    synchronized (this) {
+                        free.add(slot);
+                    }
+                }
+            }
+        }
+    }
+
     private static class WebSocketListener implements Listener {
         private final CameraWebsocketClient client;
+        private final boolean stream;
+        private final StreamQueue queue; // Null when every message is handled on the socket's thread
+        private final StringBuilder partialText = new StringBuilder(1024); // Reused to join fragmented text frames
+        private ByteBuffer partialBinary = ByteBuffer.allocate(4096); // Reused to join fragmented binary frames
+        private boolean textFragmented = false;
+        private boolean binaryFragmented = false;
+        private StreamQueue.Slot filling; // The slot a queued frame is being read into
+        private long demand = 0; // Messages asked for and not received yet
 
-        public WebSocketListener(CameraWebsocketClient client) {
+        public WebSocketListener(CameraWebsocketClient client, boolean stream) {
             this.client = client;
+            this.stream = stream;
+            StreamOverflowPolicy policy = client.streamOverflowPolicy;
+            if (!stream || policy == StreamOverflowPolicy.BACKPRESSURE) {
+                queue = null;
+            } else {
+                queue = new StreamQueue(client, policy == StreamOverflowPolicy.LATEST_ONLY ? 1 : STREAM_QUEUE_SIZE);
+            }
         }
 
         @Override
         public void onOpen(WebSocket webSocket) {
             System.out.println("WebSocket opened");
-            Listener.super.onOpen(webSocket);
+            // With a queue the socket reads ahead, otherwise it asks for the next message once the last is handled
+            demand = queue != null ? STREAM_DEMAND : 1;
+            webSocket.request(demand);
         }
 
         @Override
         public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
-            client.onMessage(data.toString());
-            return Listener.super.onText(webSocket, data, last);
+            if (queue != null) {
+                if (filling == null) {
+                    filling = queue.take();
+                    filling.isBinary = false;
+                    filling.text.setLength(0);
+                }
+                filling.text.append(data);
+                if (last) {
+                    queue.publish(filling);
+                    filling = null;
+                }
+            } else if (!last || textFragmented) {
+                // A big frame can come in pieces, and none of them is valid JSON on its own
+                partialText.append(data);
+                textFragmented = !last;
+                if (last) {
+                    dispatchText(partialText);
+                    partialText.setLength(0);
+                }
+            } else {
+                dispatchText(data);
+            }
+            received(webSocket);
+            return null;
+        }
+
+        private void dispatchText(CharSequence message) {
+            if (stream) client.onStreamMessage(message);
+            else client.onMessage(message.toString());
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            if (queue != null) {
+                if (filling == null) {
+                    filling = queue.take();
+                    filling.isBinary = true;
+                    filling.binary.clear();
+                }
+                filling.binary = append(filling.binary, data);
+                if (last) {
+                    filling.binary.flip();
+                    queue.publish(filling);
+                    filling = null;
+                }
+            } else if (!last || binaryFragmented) {
+                partialBinary = append(partialBinary, data);
+                binaryFragmented = !last;
+                if (last) {
+                    dispatchBinary(partialBinary.flip());
+                    partialBinary.clear();
+                }
+            } else {
+                dispatchBinary(data);
+            }
+            received(webSocket);
+            return null;
+        }
+
+        private void dispatchBinary(ByteBuffer message) {
+            if (stream) client.onStreamBinary(message);
+            else client.onBinaryMessage(message);
+        }
+
+        // Copies data onto the end of buffer, growing it if it is too small
+        private static ByteBuffer append(ByteBuffer buffer, ByteBuffer data) {
+            if (buffer.remaining() < data.remaining()) {
+                int needed = buffer.position() + data.remaining();
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+                buffer.flip();
+                buffer = bigger.put(buffer);
+            }
+            return buffer.put(data);
+        }
+
+        // Every call to onText or onBinary uses up one message of demand, fragments included
+        private void received(WebSocket webSocket) {
+            if (queue == null) {
+                webSocket.request(1);
+            } else if (--demand <= STREAM_DEMAND / 2) {
+                webSocket.request(STREAM_DEMAND - demand);
+                demand = STREAM_DEMAND;
+            }
         }
 
         @Override
@@ -0,0 +1,106 @@
+package pose.estimator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stops sending requests to a camera that keeps timing out. After enough timeouts in a row the
+ * breaker opens, and every request fails straight away instead of waiting out its timeout, so a
+ * dead camera costs the caller nothing. While it is open a background probe asks the camera for
+ * something small, backing off between tries, and the first reply of any kind closes it again.
+ */
+public class CircuitBreaker {
+    public static enum State {CLOSED, OPEN}
+
+    private volatile int failureThreshold;
+    private volatile long probeBaseDelayMs;
+    private volatile long probeMaxDelayMs;
+
+    private volatile State state = State.CLOSED;
+    private volatile int failures = 0; // Timeouts in a row
+    private long trips = 0;
+
+    /**
+     * @param failureThreshold - how many timeouts in a row open the breaker
+     * @param probeBaseDelayMs - how long to wait before the first probe
+     * @param probeMaxDelayMs - the longest wait between probes
+     */
+    public CircuitBreaker(int failureThreshold, long probeBaseDelayMs, long probeMaxDelayMs) {
+        applySettings(failureThreshold, probeBaseDelayMs, probeMaxDelayMs);
+    }
+
+    /**
+     * Changes the settings. A breaker that is already open stays open.
+
+     * @param failureThreshold - how many timeouts in a row open the breaker
+     * @param probeBaseDelayMs - how long to wait before the first probe
+     * @param probeMaxDelayMs - the longest wait between probes
+     */
+    public void configure(int failureThreshold, long probeBaseDelayMs, long probeMaxDelayMs) {
+        applySettings(failureThreshold, probeBaseDelayMs, probeMaxDelayMs);
+    }
+
+    private void applySettings(int failureThreshold, long probeBaseDelayMs, long probeMaxDelayMs) {
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.probeBaseDelayMs = Math.max(probeBaseDelayMs, 1);
+        this.probeMaxDelayMs = Math.max(probeMaxDelayMs, this.probeBaseDelayMs);
+    }
+
+    /** Returns whether requests should be sent. Only reads a volatile, so it is fine on every request. */
+    public boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Counts a request that timed out.
+
+     * @return opened - true only for the timeout that opened the breaker, whoever gets it starts the probe
+     */
+    public synchronized boolean recordFailure() {
+        failures++;
+        if (state == State.CLOSED && failures >= failureThreshold) {
+            state = State.OPEN;
+            trips++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts a reply.
+
+     * @return closed - true if the breaker was open and this closed it
+     */
+    public boolean recordSuccess() {
+        // Replies are far more common than trips, so skip the lock when there is nothing to reset
+        if (state == State.CLOSED && failures == 0) return false;
+        synchronized (this) {
+            failures = 0;
+            if (state == State.CLOSED) return false;
+            state = State.CLOSED;
+            return true;
+        }
+    }
+
+    /**
+     * Returns how long to wait before a probe. The wait doubles each time up to the max, and the real
+     * delay is picked at random from the upper half of that so cameras that died together do not all
+     * get probed at once.
+
+     * @param attempt - which probe this is, starting at 1
+     * @return delay - milliseconds to wait
+     */
+    public long probeDelayMs(int attempt) {
+        long ceiling = Math.min(probeMaxDelayMs, probeBaseDelayMs << Math.min(attempt - 1, 20));
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /** Returns how many times the breaker has opened since startup. */
+    public synchronized long getTrips() {
+        return trips;
+    }
+}
@@ -0,0 +1,173 @@
+package pose.estimator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import pose.estimator.CameraWebsocketClient.ConnectionState;
+
+/**
+ * Keeps cameras connected from a background thread, so a dropped camera never stalls the loop that
+ * is reading from it. Each camera is checked on its own schedule: connected cameras are checked every
+ * period, and a camera that fails to connect waits an exponentially growing, randomly jittered delay
+ * before the next try, so a camera that is down is not hammered and several cameras that dropped
+ * together do not all retry at the same instant.
+ */
+public class ConnectionManager {
+    private final List<CameraWebsocketClient> cameras = new ArrayList<>();
+    private final long checkPeriodMs;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a manager. Nothing happens until {@link #start()}.
+
+     * @param checkPeriodMs - how often to check a connected camera
+     * @param baseDelayMs - how long to wait after the first failed attempt
+     * @param maxDelayMs - the longest wait between attempts
+     */
+    public ConnectionManager(long checkPeriodMs, long baseDelayMs, long maxDelayMs) {
+        this.checkPeriodMs = checkPeriodMs;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /** Adds a camera to watch. Cameras must be added before the manager starts. */
+    public void addCamera(CameraWebsocketClient camera) {
+        if (executor != null) throw new IllegalStateException("Cameras must be added before the manager starts");
+        cameras.add(camera);
+    }
+
+    /** Starts watching the cameras. Connecting can block, so every camera gets its own thread. */
+    public synchronized void start() {
+        if (executor != null || cameras.isEmpty()) return;
+        executor = Executors.newScheduledThreadPool(cameras.size(), runnable -> {
+            Thread thread = new Thread(runnable, "camera-connections");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (CameraWebsocketClient camera : cameras) {
+            Watcher watcher = new Watcher(camera);
+            executor.schedule(watcher, checkPeriodMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns each camera's connection state, in the order they were added.
+
+     * @return states - one state per camera
+     */
+    public ConnectionState[] getStates() {
+        ConnectionState[] states = new ConnectionState[cameras.size()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = cameras.get(i).getConnectionState();
+        }
+        return states;
+    }
+
+    /**
+     * Returns how long to wait after a number of failures in a row. The wait doubles each time up to
+     * the max, and the real delay is picked at random from the upper half of that.
+
+     * @param failures - how many attempts in a row have failed, at least 1
+     * @return delay - milliseconds to wait before the next attempt
+     */
+    long backoffDelayMs(int failures) {
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(failures - 1, 20));
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    /** Checks one camera and schedules its next check. */
+    private class Watcher implements Runnable {
+        private final CameraWebsocketClient camera;
+        private int failures = 0;
+
+        Watcher(CameraWebsocketClient camera) {
+            this.camera = camera;
+        }
+
+        @Override
+        public void run() {
+            ConnectionState state = camera.getConnectionState();
+            if (state == ConnectionState.CLOSED) return; // Closed on purpose, stop watching
+
+            long delay = checkPeriodMs;
+            // Replayed and synthetic cameras have no socket but always say they are connected
+            if (state == ConnectionState.CONNECTED || camera.isConnected() || camera.setupConnection()) {
+                failures = 0;
+                if (camera.needsResubscribe()) {
+                    camera.subscribe();
+                }
+            } else {
+                failures++;
+                delay = backoffDelayMs(failures);
+                camera.setConnectionState(ConnectionState.BACKING_OFF);
+            }
+
+            ScheduledExecutorService current = executor;
+            if (current != null && !current.isShutdown()) {
+                current.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Probes a range of ports on one host all at once. Every port is tried no matter which others
+     * answer, so a gap in the range does not hide the cameras after it.
+
+     * @param host - the websocket address without a port, for example "ws://10.54.80.123"
+     * @param firstPort - the first port to try
+     * @param portCount - how many ports to try
+     * @param timeoutMs - the connect and request timeout for each camera
+     * @return cameras - one entry per port in order, null where nothing answered
+     */
+    public static CameraWebsocketClient[] discover(String host, int firstPort, int portCount, int timeoutMs) {
+        int[] ports = new int[portCount];
+        for (int i = 0; i < portCount; i++) {
+            ports[i] = firstPort + i;
+        }
+        CameraWebsocketClient[] found = connectAll(host, ports, timeoutMs);
+        for (int i = 0; i < portCount; i++) {
+            if (!found[i].isConnected()) found[i] = null;
+        }
+        return found;
+    }
+
+    /**
+     * Connects to a list of ports on one host all at once and waits for every attempt to finish.
+
+     * @param host - the websocket address without a port, for example "ws://10.54.80.123"
+     * @param ports - the ports to connect to
+     * @param timeoutMs - the connect and request timeout for each camera
+     * @return cameras - one per port in order, including the ones that did not connect
+     */
+    public static CameraWebsocketClient[] connectAll(String host, int[] ports, int timeoutMs) {
+        CameraWebsocketClient[] cameras = new CameraWebsocketClient[ports.length];
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(ports.length, 1));
+        try {
+            CompletableFuture<?>[] probes = new CompletableFuture<?>[ports.length];
+            for (int i = 0; i < ports.length; i++) {
+                cameras[i] = new CameraWebsocketClient(host + ":" + ports[i], timeoutMs);
+                probes[i] = CompletableFuture.runAsync(cameras[i]::setupConnection, pool);
+            }
+            CompletableFuture.allOf(probes).join();
+        } finally {
+            pool.shutdown();
+        }
+        return cameras;
+    }
+}
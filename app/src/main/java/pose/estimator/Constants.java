@@ -142,14 +142,62 @@ public final class Constants {
         public static final int driverControllerPort = 0;
     }
 
+    /** A set of constants relating to loop timing. */
+    public static class LoopConstants {
+        public static final double visionRateHz = 50; // Fetch and fuse detections
+        public static final double controlRateHz = 200; // Compute drive output from predicted target motion
+        public static final double reportRateHz = 0.2; // Print loop timing statistics
+        public static final String metricsFile = "metrics.jsonl"; // Where latency and counter snapshots are appended
+        public static final long metricsExportPeriodMs = 1000;
+        public static final boolean telemetryEnabled = true; // Binary log of frames, detections, outputs and tick times
+        public static final String telemetryFile = "telemetry.bin"; // Read it with ./gradlew telemetryDump --args='telemetry.bin'
+        public static final long telemetryFileBytes = 256L << 20; // Each file is mapped at this size up front
+        public static final int telemetryRingBytes = 4 << 20;
+        public static final long telemetryFlushPeriodMs = 1000;
+    }
+
     /** A set of constants relating to vision. */
     public static class VisionConstants {
         public static final String ipAddress = "ws://10.54.80.123";
         public static final int[] CameraRotations = {0, 0, 0, 0, 0, 0};
+        // Cameras spread over several coprocessors, by logical id. Leave it empty to search ipAddress for CameraRotations.length cameras instead
+        public static final CameraRegistry.CameraConfig[] cameras = {
+            // new CameraRegistry.CameraConfig("front", "ws://10.54.80.123", 50000, 0),
+            // new CameraRegistry.CameraConfig("back", "ws://10.54.80.124", 50000, 180),
+        };
         public static HashMap<String, Integer> apriltagAngles = new HashMap<>();
         public static final double maxIntakeAngle = Math.PI/6;
         public static final double misallignedPieceOffset = Math.PI/12; // This is the angle to go at when the piece is misaligned and 1m away. It will be adjusted automatically for different angles.
         public static final int pieceDetectionCamIndex = 0; // Default camera index for piece detection
+        public static final String fieldLayoutFile = "field_layout.json"; // WPILib apriltag layout json
+        public static final int firstCameraPort = 50000; // Camera i listens on firstCameraPort + i, one port per CameraRotations entry
+        public static final int connectTimeoutMs = 1000;
+        public static final String cameraSnapshotFile = "camera_snapshot.json"; // Ports and info from the last start, delete it to search every port again
+        public static final long snapshotCheckTimeoutMs = 5000; // How long the background check of a loaded snapshot waits for the cameras
+        public static final long connectionCheckPeriodMs = 100; // How often the background thread checks on connected cameras
+        public static final long reconnectBaseDelayMs = 100; // Wait after the first failed reconnect, doubles each failure
+        public static final long reconnectMaxDelayMs = 5000;
+        public static final boolean streamDetections = true; // Have the cameras push frames instead of polling them
+        public static final long detectionCacheTtlMs = 10; // Polled tags are reused this long before asking the camera again
+        // Stale frames are useless to the control loop, so skip straight to the newest one when decoding falls behind
+        public static final CameraWebsocketClient.StreamOverflowPolicy streamOverflowPolicy = CameraWebsocketClient.StreamOverflowPolicy.LATEST_ONLY;
+        public static final double trackerAlpha = 0.5; // How far each detection pulls a tracked target's position
+        public static final double trackerBeta = 0.1; // How far each detection pulls its velocity
+        public static final long targetMaxAgeMs = 250; // Targets not seen for this long are dropped
+        public static final long targetMaxExtrapolationMs = 100; // Predictions stop moving this long after the last detection
+        public static final double pieceGatePixels = 80; // A piece center that jumps further than this is a new piece
+        public static final double pieceCellSize = 0.5; // Meters per cell of the grid every camera's pieces are sorted into
+        public static final double pieceIndexRange = 8; // How far from the robot that grid reaches, further pieces are checked one by one
+        public static final long tickDeadlineMs = 15; // How long one tick waits for all cameras before dropping the late ones
+        public static final long minRequestTimeoutMs = 20; // Request timeouts follow each camera's round trip time but never go below this
+        public static final int breakerFailureThreshold = 3; // Timeouts in a row before a camera is skipped until a probe gets through
+        public static final long breakerProbeBaseDelayMs = 100; // Wait before the first probe, doubles each failed probe
+        public static final long breakerProbeMaxDelayMs = 2000;
+        public static final boolean hedgeRequests = true; // Ask an overlapping camera too when one is slower than usual
+        public static final double cameraFieldOfViewDegrees = 70; // Cameras pointed closer together than this see some of the same things
+        public static final double visionPositionStdDevAtOneMeter = 0.05; // Pose trust falls off with the square of tag distance
+        public static final double visionHeadingStdDevAtOneMeter = Math.PI/60;
+        public static final double visionLatencyMs = 30; // Capture to receive time, measurements are applied this far in the past
 
         /** Constructs apriltags angles hashmap. */
         public VisionConstants() {
@@ -0,0 +1,652 @@
+package pose.estimator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.ApriltagList;
+import pose.estimator.CameraWebsocketClient.Color;
+import pose.estimator.CameraWebsocketClient.Info;
+import pose.estimator.CameraWebsocketClient.Piece;
+import pose.estimator.CameraWebsocketClient.PieceList;
+
+/**
+ * A streaming decoder for the JSON that Astrolabe sends back. It walks the message one token at a
+ * time and writes straight into reusable detection structs, so decoding a frame does not build a
+ * JSON tree or allocate per tag. An instance keeps a cursor and is not thread safe; use one per thread.
+ */
+public class DetectionDecoder {
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    /** What {@link #classify(CharSequence)} returns for an {"error": ...} reply. */
+    public static final byte KIND_ERROR = -1;
+    public static final byte KIND_EMPTY = -2; // "[]", could be no tags or no pieces
+    private static final String[] TAG_ID_STRINGS = new String[1024];
+
+    static {
+        for (int i = 0; i < TAG_ID_STRINGS.length; i++) {
+            TAG_ID_STRINGS[i] = Integer.toString(i);
+        }
+    }
+
+    private CharSequence source;
+    private int pos;
+    private int end;
+    private int keyStart;
+    private int keyEnd;
+    private boolean keepRawMessages = false;
+    private boolean batchStarted = false; // Whether nextPart has read the first batch member
+
+    /**
+     * Keeps the whole message in the first tag's fullString. Off by default since it pins the message.
+
+     * @param keep - whether to keep the raw message
+     */
+    public void setKeepRawMessages(boolean keep) {
+        this.keepRawMessages = keep;
+    }
+
+    /**
+     * Returns the shared string for a tag id so that decoding does not allocate one per tag.
+
+     * @param id - the numeric tag id
+     * @return tagId - the tag id as a string
+     */
+    public static String tagIdString(int id) {
+        return id >= 0 && id < TAG_ID_STRINGS.length ? TAG_ID_STRINGS[id] : Integer.toString(id);
+    }
+
+    /**
+     * Decodes an "fa" reply, a JSON array of tags, into a reusable list.
+
+     * @param message - the JSON to decode
+     * @param out - the list to fill, it is cleared first
+     * @throws IllegalArgumentException if the message is not a valid apriltag frame
+     */
+    public void decodeApriltags(CharSequence message, ApriltagList out) {
+        reset(message);
+        out.clear();
+        readApriltags(out);
+        if (keepRawMessages && out.size() > 0) {
+            out.get(0).fullString = message.toString();
+        }
+    }
+
+    /**
+     * Decodes an "fp" reply into a reusable piece.
+
+     * @param message - the JSON to decode
+     * @param out - the piece to fill
+     * @return found - false if the server did not see a piece, in which case out is untouched
+     * @throws IllegalArgumentException if the message is not a valid piece
+     */
+    public boolean decodePiece(CharSequence message, Piece out) {
+        reset(message);
+        return readPiece(out);
+    }
+
+    /**
+     * Decodes an "fp" reply that may hold several pieces, either a JSON array of pieces or the
+     * single piece object older servers send.
+
+     * @param message - the JSON to decode
+     * @param out - the list to fill, it is cleared first
+     * @throws IllegalArgumentException if the message is not a valid piece or list of pieces
+     */
+    public void decodePieces(CharSequence message, PieceList out) {
+        reset(message);
+        readPieces(out);
+    }
+
+    /**
+     * Decodes an "info" reply. Info is only asked for once in a while, so this one allocates.
+
+     * @param message - the JSON to decode
+     * @return info - the decoded info
+     * @throws IllegalArgumentException if the message is not a valid info object
+     */
+    public Info decodeInfo(CharSequence message) {
+        reset(message);
+        Info info = readInfo();
+        info.fullString = message.toString();
+        return info;
+    }
+
+    /**
+     * Works out what a JSON reply or pushed frame holds from its keys, without decoding it. Tags and
+     * pieces can both come as arrays, so an array is tags when its first element has a "tag_id". An
+     * empty array could be either, servers send "{}" when there is no single piece.
+
+     * @param message - the JSON to look at
+     * @return kind - {@link BinaryFrames#KIND_APRILTAGS}, {@link BinaryFrames#KIND_PIECE}, {@link #KIND_EMPTY},
+     *     {@link #KIND_ERROR} for an error object, or {@link TelemetryLog#FRAME_KIND_OTHER} for info, batches and anything malformed
+     */
+    public byte classify(CharSequence message) {
+        reset(message);
+        try {
+            if (consume('[')) {
+                if (consume(']')) return KIND_EMPTY;
+                expect('{');
+                if (consume('}')) return BinaryFrames.KIND_PIECE;
+                do {
+                    readKey();
+                    if (keyIs("tag_id")) return BinaryFrames.KIND_APRILTAGS;
+                    skipValue();
+                } while (consume(','));
+                return BinaryFrames.KIND_PIECE;
+            }
+            expect('{');
+            if (consume('}')) return BinaryFrames.KIND_PIECE;
+            do {
+                readKey();
+                if (keyIs("error")) return KIND_ERROR;
+                if (keyIs("distance") || keyIs("angle") || keyIs("center") || keyIs("piece_angle")) return BinaryFrames.KIND_PIECE;
+                skipValue();
+            } while (consume(','));
+        } catch (IllegalArgumentException e) {
+            // Whatever it is, it is not a detection
+        }
+        return TelemetryLog.FRAME_KIND_OTHER;
+    }
+
+    /**
+     * Finds the value of a top level "result" field without decoding it, so a reply that wraps its
+     * payload can be handed on as a slice instead of going through a JSON tree.
+
+     * @param message - the reply
+     * @return range - the value's start in the high 32 bits and its end in the low 32 bits, or -1 if there is no result
+     */
+    public long findResult(CharSequence message) {
+        reset(message);
+        try {
+            expect('{');
+            if (consume('}')) return -1;
+            do {
+                readKey();
+                if (keyIs("result")) {
+                    skipWhitespace();
+                    int start = pos;
+                    skipValue();
+                    return (long) start << 32 | pos;
+                }
+                skipValue();
+            } while (consume(','));
+        } catch (IllegalArgumentException e) {
+            // Not an object, so nothing is wrapped
+        }
+        return -1;
+    }
+
+    /**
+     * Starts on a "batch" reply, an object with one member per command, named after the command.
+     * Step through the members with {@link #nextPart()} and read each with the matching readPart
+     * method, or {@link #skipPart()} one that is not wanted.
+
+     * @param message - the JSON to decode
+     * @throws IllegalArgumentException if the message is not an object
+     */
+    public void beginBatch(CharSequence message) {
+        reset(message);
+        expect('{');
+        batchStarted = false;
+    }
+
+    /**
+     * Moves to the next member of a batch reply.
+
+     * @return more - false once the whole reply has been read
+     */
+    public boolean nextPart() {
+        if (batchStarted) {
+            if (!consume(',')) {
+                expect('}');
+                return false;
+            }
+        } else {
+            batchStarted = true;
+            if (consume('}')) return false;
+        }
+        readKey();
+        return true;
+    }
+
+    /** Returns whether the current batch member is the reply to a command. */
+    public boolean partIs(String command) {
+        return keyIs(command);
+    }
+
+    public void readPartApriltags(ApriltagList out) {
+        out.clear();
+        readApriltags(out);
+    }
+
+    /** Reads the current member as a piece, see {@link #decodePiece}. */
+    public boolean readPartPiece(Piece out) {
+        return readPiece(out);
+    }
+
+    /** Reads the current member as pieces, see {@link #decodePieces}. */
+    public void readPartPieces(PieceList out) {
+        readPieces(out);
+    }
+
+    /** Reads the current member as info, keeping just that member as its fullString. */
+    public Info readPartInfo() {
+        skipWhitespace();
+        int start = pos;
+        Info info = readInfo();
+        info.fullString = source.subSequence(start, pos).toString();
+        return info;
+    }
+
+    public void skipPart() {
+        skipValue();
+    }
+
+    private void reset(CharSequence message) {
+        source = message;
+        pos = 0;
+        end = message.length();
+    }
+
+    void readApriltags(ApriltagList out) {
+        expect('[');
+        if (consume(']')) return;
+        do {
+            readApriltag(out.add());
+        } while (consume(','));
+        expect(']');
+    }
+
+    private void readApriltag(Apriltag tag) {
+        // Tags are pooled, so anything the server leaves out would otherwise keep an older tag's value
+        tag.tagId = null;
+        tag.id = -1;
+        Arrays.fill(tag.position, Double.NaN);
+        Arrays.fill(tag.orientation, Double.NaN);
+        tag.fullString = null;
+        tag.distance = Double.NaN;
+        tag.horizontalAngle = Double.NaN;
+        tag.verticalAngle = Double.NaN;
+        expect('{');
+        if (consume('}')) return;
+        do {
+            readKey();
+            if (keyIs("tag_id")) {
+                readTagId(tag);
+            } else if (keyIs("position")) {
+                readTriple(tag.position);
+            } else if (keyIs("orientation")) {
+                readTriple(tag.orientation);
+            } else if (keyIs("distance")) {
+                tag.distance = readDouble();
+            } else if (keyIs("horizontal_angle")) {
+                tag.horizontalAngle = readDouble();
+            } else if (keyIs("vertical_angle")) {
+                tag.verticalAngle = readDouble();
+            } else {
+                skipValue();
+            }
+        } while (consume(','));
+        expect('}');
+    }
+
+    private void readTagId(Apriltag tag) {
+        skipWhitespace();
+        boolean quoted = pos < end && source.charAt(pos) == '"';
+        if (quoted) pos++;
+        int start = pos;
+        int id = 0;
+        while (pos < end && isDigit(source.charAt(pos))) {
+            id = id * 10 + (source.charAt(pos++) - '0');
+        }
+        if (quoted && (pos == end || source.charAt(pos) != '"')) {
+            // Named tag ids are rare enough to just allocate for
+            while (pos < end && source.charAt(pos) != '"') pos++;
+            tag.id = -1;
+            tag.tagId = source.subSequence(start, pos).toString();
+        } else if (pos == start) {
+            throw error("tag id");
+        } else {
+            tag.id = id;
+            tag.tagId = tagIdString(id);
+        }
+        if (quoted) expect('"');
+    }
+
+    void readPieces(PieceList out) {
+        out.clear();
+        if (peek() != '[') {
+            if (!readPiece(out.add())) out.dropLast();
+            return;
+        }
+        expect('[');
+        if (consume(']')) return;
+        do {
+            if (!readPiece(out.add())) out.dropLast();
+        } while (consume(','));
+        expect(']');
+    }
+
+    boolean readPiece(Piece piece) {
+        expect('{');
+        if (consume('}')) return false;
+        piece.distance = Double.NaN;
+        piece.angle = Double.NaN;
+        piece.pieceAngle = Double.NaN;
+        piece.center[0] = Double.NaN;
+        piece.center[1] = Double.NaN;
+        boolean found = true;
+        do {
+            readKey();
+            if (keyIs("distance")) {
+                piece.distance = readDouble();
+            } else if (keyIs("angle")) {
+                piece.angle = readDouble();
+            } else if (keyIs("center")) {
+                expect('[');
+                piece.center[0] = readDouble();
+                expect(',');
+                piece.center[1] = readDouble();
+                expect(']');
+            } else if (keyIs("piece_angle")) {
+                piece.pieceAngle = readDouble();
+            } else {
+                if (keyIs("error")) found = false;
+                skipValue();
+            }
+        } while (consume(','));
+        expect('}');
+        return found;
+    }
+
+    Info readInfo() {
+        Info info = new Info();
+        info.colorList = new ArrayList<>();
+        expect('{');
+        if (consume('}')) return info;
+        do {
+            readKey();
+            if (keyIs("cam_name")) {
+                info.cameraName = readString();
+            } else if (keyIs("identifier")) {
+                info.identifier = readString();
+            } else if (keyIs("horizontal_focal_length")) {
+                info.horizontalFocalLength = readDouble();
+            } else if (keyIs("vertical_focal_length")) {
+                info.verticalFocalLength = readDouble();
+            } else if (keyIs("height")) {
+                info.height = (int) readDouble();
+            } else if (keyIs("horizontal_resolution_pixels")) {
+                info.horizontalResolutionPixels = (int) readDouble();
+            } else if (keyIs("vertical_resolution_pixels")) {
+                info.verticalResolutionPixels = (int) readDouble();
+            } else if (keyIs("processing_scale")) {
+                info.processingScale = (int) readDouble();
+            } else if (keyIs("tilt_angle_radians")) {
+                info.tiltAngleRadians = readDouble();
+            } else if (keyIs("horizontal_field_of_view_radians")) {
+                info.horizontalFieldOfViewRadians = readDouble();
+            } else if (keyIs("vertical_field_of_view_radians")) {
+                info.verticalFieldOfViewRadians = readDouble();
+            } else if (keyIs("active_color")) {
+                info.activeColor = (int) readDouble();
+            } else if (keyIs("color_list")) {
+                readColors(info.colorList);
+            } else {
+                skipValue();
+            }
+        } while (consume(','));
+        expect('}');
+        return info;
+    }
+
+    private void readColors(List<Color> colors) {
+        expect('[');
+        if (consume(']')) return;
+        do {
+            Color color = new Color();
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    readKey();
+                    if (keyIs("red")) color.red = readDouble();
+                    else if (keyIs("green")) color.green = readDouble();
+                    else if (keyIs("blue")) color.blue = readDouble();
+                    else if (keyIs("difference")) color.difference = readDouble();
+                    else if (keyIs("blur")) color.blur = readDouble();
+                    else skipValue();
+                } while (consume(','));
+                expect('}');
+            }
+            colors.add(color);
+        } while (consume(','));
+        expect(']');
+    }
+
+    private void readTriple(double[] out) {
+        expect('[');
+        out[0] = readDouble();
+        expect(',');
+        out[1] = readDouble();
+        expect(',');
+        out[2] = readDouble();
+        expect(']');
+    }
+
+    /** Reads an object key and the colon after it. The key is remembered by position, not copied. */
+    void readKey() {
+        expect('"');
+        keyStart = pos;
+        while (pos < end && source.charAt(pos) != '"') {
+            if (source.charAt(pos) == '\\') pos++;
+            pos++;
+        }
+        keyEnd = pos;
+        expect('"');
+        expect(':');
+    }
+
+    boolean keyIs(String key) {
+        int length = keyEnd - keyStart;
+        if (length != key.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (source.charAt(keyStart + i) != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a number. Numbers with at most 15 or so significant digits and a small exponent are
+     * converted exactly with one multiply or divide, the rest fall back to Double.parseDouble.
+     * Null and the NaN and Infinity literals Python writes are all accepted.
+     */
+    double readDouble() {
+        skipWhitespace();
+        if (pos >= end) throw error("number");
+        char c = source.charAt(pos);
+        if (c == 'n') {
+            expectLiteral("null");
+            return Double.NaN;
+        }
+        if (c == 'N') {
+            expectLiteral("NaN");
+            return Double.NaN;
+        }
+        int start = pos;
+        boolean negative = c == '-';
+        if (negative) pos++;
+        if (pos < end && source.charAt(pos) == 'I') {
+            expectLiteral("Infinity");
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        while (pos < end && isDigit(c = source.charAt(pos))) {
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+            pos++;
+        }
+        if (pos < end && source.charAt(pos) == '.') {
+            pos++;
+            while (pos < end && isDigit(c = source.charAt(pos))) {
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                pos++;
+            }
+        }
+        if (!any) throw error("number");
+        if (pos < end && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (source.charAt(pos) == '-' || source.charAt(pos) == '+')) {
+                negativeExponent = source.charAt(pos++) == '-';
+            }
+            int e = 0;
+            while (pos < end && isDigit(c = source.charAt(pos))) {
+                if (e < 10000) e = e * 10 + (c - '0');
+                pos++;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        double value;
+        if (mantissa < MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(source.subSequence(start, pos).toString());
+    }
+
+    String readString() {
+        skipWhitespace();
+        if (pos < end && source.charAt(pos) == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        expect('"');
+        StringBuilder builder = null;
+        int start = pos;
+        while (pos < end && source.charAt(pos) != '"') {
+            char c = source.charAt(pos);
+            if (c == '\\') {
+                if (builder == null) builder = new StringBuilder();
+                builder.append(source, start, pos);
+                pos++;
+                if (pos >= end) throw error("escape");
+                char escaped = source.charAt(pos++);
+                switch (escaped) {
+                    case 'n': builder.append('\n'); break;
+                    case 't': builder.append('\t'); break;
+                    case 'r': builder.append('\r'); break;
+                    case 'b': builder.append('\b'); break;
+                    case 'f': builder.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > end) throw error("escape");
+                        builder.append((char) Integer.parseInt(source.subSequence(pos, pos + 4).toString(), 16));
+                        pos += 4;
+                        break;
+                    default: builder.append(escaped);
+                }
+                start = pos;
+            } else {
+                pos++;
+            }
+        }
+        String value = builder == null
+            ? source.subSequence(start, pos).toString()
+            : builder.append(source, start, pos).toString();
+        expect('"');
+        return value;
+    }
+
+    /** Skips over any JSON value, including nested objects and arrays. */
+    void skipValue() {
+        skipWhitespace();
+        if (pos >= end) throw error("value");
+        char c = source.charAt(pos);
+        if (c == '"') {
+            pos++;
+            while (pos < end && source.charAt(pos) != '"') {
+                if (source.charAt(pos) == '\\') pos++;
+                pos++;
+            }
+            expect('"');
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = source.charAt(pos);
+                if (c == '"') {
+                    skipValue();
+                    continue;
+                }
+                if (c == '{' || c == '[') depth++;
+                else if (c == '}' || c == ']') depth--;
+                pos++;
+            } while (depth > 0 && pos < end);
+            if (depth != 0) throw error("end of value");
+        } else {
+            while (pos < end && ",}] \t\r\n".indexOf(source.charAt(pos)) < 0) pos++;
+        }
+    }
+
+    int position() {
+        return pos;
+    }
+
+    boolean consume(char c) {
+        skipWhitespace();
+        if (pos < end && source.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    void expect(char c) {
+        if (!consume(c)) throw error("'" + c + "'");
+    }
+
+    char peek() {
+        skipWhitespace();
+        return pos < end ? source.charAt(pos) : 0;
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (pos >= end || source.charAt(pos++) != literal.charAt(i)) throw error(literal);
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            char c = source.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return;
+            pos++;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private IllegalArgumentException error(String expected) {
+        return new IllegalArgumentException("Expected " + expected + " at " + pos + " in detection frame");
+    }
+}
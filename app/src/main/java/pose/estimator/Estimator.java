@@ -1,34 +1,100 @@
 package pose.estimator;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.List;
+
+import pose.estimator.Constants.LoopConstants;
 import pose.estimator.Utils.ChassisSpeeds;
+import pose.estimator.Vision.DriveStatus;
+import pose.estimator.Vision.Side;
 
 public class Estimator {
     private Vision visionSystem;
+    private LoopScheduler scheduler = new LoopScheduler();
+    private MetricsExporter metricsExporter = new MetricsExporter();
+    private final BitSet targetTags = FieldLayout.idSet("2");
+    private final ChassisSpeeds output = new ChassisSpeeds(); // Reused every control tick
+
     public Estimator(){
-        this.visionSystem = new Vision(
-            Constants.VisionConstants.ipAddress, 
-            Constants.VisionConstants.CameraRotations, 
-            null); 
+        if (Constants.VisionConstants.cameras.length > 0) {
+            CameraRegistry registry = new CameraRegistry(Constants.VisionConstants.cameras);
+            registry.connect();
+            this.visionSystem = new Vision(registry, loadFieldLayout());
+        } else {
+            this.visionSystem = new Vision(
+                Constants.VisionConstants.ipAddress, 
+                Constants.VisionConstants.CameraRotations, 
+                loadFieldLayout()); 
+        }
+    }
+
+    private static FieldLayout loadFieldLayout() {
+        try {
+            return FieldLayout.load(Paths.get(Constants.VisionConstants.fieldLayoutFile));
+        } catch (Exception e) {
+            System.out.println("Could not load the field layout from " + Constants.VisionConstants.fieldLayoutFile + ", field poses are off");
+            return new FieldLayout();
+        }
     }
     public static void main(String[] args){
         Estimator estimator = new Estimator();
 
         estimator.init();
-        while (true){
-            estimator.periodic();
-        }
+        estimator.scheduler.run();
     }
 
     public void init() {
-        
+        if (LoopConstants.telemetryEnabled) {
+            try {
+                TelemetryLog.setGlobal(new TelemetryLog(Paths.get(LoopConstants.telemetryFile),
+                    LoopConstants.telemetryFileBytes, LoopConstants.telemetryRingBytes, LoopConstants.telemetryFlushPeriodMs));
+            } catch (Exception e) {
+                System.out.println("Could not open the telemetry log " + LoopConstants.telemetryFile);
+            }
+        }
+        if (Constants.VisionConstants.streamDetections) {
+            visionSystem.enableStreaming();
+        }
+        scheduler.addTask("vision", LoopConstants.visionRateHz, this::visionPeriodic);
+        // Vision ticks can wait out a fetch for longer than a control period, so control gets its own thread
+        scheduler.addTask("control", LoopConstants.controlRateHz, true, this::periodic);
+        scheduler.addTask("report", LoopConstants.reportRateHz, this::report);
+
+        List<CameraWebsocketClient> cameras = visionSystem.getCameras();
+        for (int i = 0; i < cameras.size(); i++) {
+            metricsExporter.addCamera(visionSystem.getCameraId(i), cameras.get(i).getMetrics());
+        }
+        for (LoopScheduler.Task task : scheduler.getTasks()) {
+            metricsExporter.addTask(task);
+        }
+        metricsExporter.start(Paths.get(LoopConstants.metricsFile), LoopConstants.metricsExportPeriodMs);
+    }
+
+    public void visionPeriodic() {
+        visionSystem.beginTick();
+        visionSystem.updatePoseEstimate();
+        visionSystem.updateTargets();
     }
 
     public void periodic() {
-        String[] balls = {"2"};
-        ChassisSpeeds output = visionSystem.getTagDrive(1, balls, Math.PI/6, 0.0, 5.0);
-        output.print();
+        // Runs faster than the cameras, so it drives off the tracked targets instead of fetching
+        DriveStatus status = visionSystem.getPredictedTagDrive(1, targetTags, Side.FRONT, Math.PI/6, 0.0, 5.0, output);
+        if (status != DriveStatus.OK) return;
+        if (!TelemetryLog.global().isEnabled()) {
+            output.print();
+        }
+        TelemetryLog.global().chassisSpeeds(-1, output);
+    }
+
+    public void report() {
+        for (LoopScheduler.Task task : scheduler.getTasks()) {
+            System.out.println(task);
+        }
+        List<CameraWebsocketClient> cameras = visionSystem.getCameras();
+        for (int i = 0; i < cameras.size(); i++) {
+            System.out.println("camera" + i + ": " + cameras.get(i).getMetrics().snapshot());
+        }
     }
         
 }
@@ -0,0 +1,192 @@
+package pose.estimator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Where every apriltag sits on the field, indexed by tag id. The layout is loaded once and stored in
+ * flat primitive arrays with the sine and cosine of each tag's facing already worked out, so looking a
+ * tag up during a frame is an array read and never allocates.
+ */
+public class FieldLayout {
+    private final BitSet present = new BitSet();
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private double[] z = new double[0];
+    private double[] angle = new double[0]; // Which way the tag faces on the field, radians
+    private double[] cos = new double[0];
+    private double[] sin = new double[0];
+    private double fieldLength;
+    private double fieldWidth;
+
+    /**
+     * Adds or replaces a tag. Only call this while building the layout, never while it is being read.
+
+     * @param id - the tag id, 0 or more
+     * @param tagX - field x in meters
+     * @param tagY - field y in meters
+     * @param tagZ - height in meters
+     * @param tagAngle - which way the tag faces on the field, radians
+     */
+    public void setTag(int id, double tagX, double tagY, double tagZ, double tagAngle) {
+        if (id < 0) throw new IllegalArgumentException("Tag ids can not be negative: " + id);
+        if (id >= x.length) {
+            int size = Math.max(id + 1, x.length * 2);
+            x = Arrays.copyOf(x, size);
+            y = Arrays.copyOf(y, size);
+            z = Arrays.copyOf(z, size);
+            angle = Arrays.copyOf(angle, size);
+            cos = Arrays.copyOf(cos, size);
+            sin = Arrays.copyOf(sin, size);
+        }
+        x[id] = tagX;
+        y[id] = tagY;
+        z[id] = tagZ;
+        angle[id] = tagAngle;
+        cos[id] = Math.cos(tagAngle);
+        sin[id] = Math.sin(tagAngle);
+        present.set(id);
+    }
+
+    /** Returns whether the layout knows where a tag is. Negative ids, from non numeric tags, are never known. */
+    public boolean has(int id) {
+        return id >= 0 && present.get(id);
+    }
+
+    public double getX(int id) {
+        return x[id];
+    }
+
+    public double getY(int id) {
+        return y[id];
+    }
+
+    public double getZ(int id) {
+        return z[id];
+    }
+
+    /** Returns which way the tag faces on the field in radians. */
+    public double getAngle(int id) {
+        return angle[id];
+    }
+
+    public double getCos(int id) {
+        return cos[id];
+    }
+
+    public double getSin(int id) {
+        return sin[id];
+    }
+
+    public int getTagCount() {
+        return present.cardinality();
+    }
+
+    public double getFieldLength() {
+        return fieldLength;
+    }
+
+    public double getFieldWidth() {
+        return fieldWidth;
+    }
+
+    /**
+     * Loads a layout file in the WPILib apriltag layout format: a "tags" array where each tag has an
+     * "ID" and a "pose" with a "translation" and a "rotation" quaternion, and an optional "field" size.
+
+     * @param file - the layout json
+     * @return layout - the tags in the file
+     */
+    public static FieldLayout load(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(JsonParser.parseReader(reader).getAsJsonObject());
+        }
+    }
+
+    static FieldLayout parse(JsonObject json) {
+        FieldLayout layout = new FieldLayout();
+        for (JsonElement element : json.getAsJsonArray("tags")) {
+            JsonObject tag = element.getAsJsonObject();
+            JsonObject pose = tag.getAsJsonObject("pose");
+            JsonObject translation = pose.getAsJsonObject("translation");
+            JsonObject quaternion = pose.getAsJsonObject("rotation").getAsJsonObject("quaternion");
+            double w = quaternion.get("W").getAsDouble();
+            double qx = quaternion.get("X").getAsDouble();
+            double qy = quaternion.get("Y").getAsDouble();
+            double qz = quaternion.get("Z").getAsDouble();
+            // Only the yaw matters for a robot that drives on the floor
+            double yaw = Math.atan2(2 * (w * qz + qx * qy), 1 - 2 * (qy * qy + qz * qz));
+            layout.setTag(tag.get("ID").getAsInt(),
+                translation.get("x").getAsDouble(),
+                translation.get("y").getAsDouble(),
+                translation.get("z").getAsDouble(),
+                yaw);
+        }
+        JsonObject field = json.getAsJsonObject("field");
+        if (field != null) {
+            layout.fieldLength = field.get("length").getAsDouble();
+            layout.fieldWidth = field.get("width").getAsDouble();
+        }
+        return layout;
+    }
+
+    /**
+     * Builds a layout from the old map of tag id to [angle, x, y]. Entries whose key is not a number are skipped.
+
+     * @param tagPoses - the map, or null for an empty layout
+     * @return layout - the same tags as the map
+     */
+    public static FieldLayout fromTagPoses(Map<String, Integer[]> tagPoses) {
+        FieldLayout layout = new FieldLayout();
+        if (tagPoses == null) return layout;
+        for (Map.Entry<String, Integer[]> entry : tagPoses.entrySet()) {
+            int id = parseId(entry.getKey());
+            if (id < 0) continue;
+            Integer[] pose = entry.getValue();
+            layout.setTag(id, pose[1], pose[2], 0, pose[0]);
+        }
+        return layout;
+    }
+
+    /**
+     * Makes a set of tag ids for filtering detections. Ids that are not numbers are left out.
+
+     * @param tagIds - the ids as strings, like the server sends them
+     * @return set - a bit per id
+     */
+    public static BitSet idSet(String... tagIds) {
+        BitSet set = new BitSet();
+        for (String tagId : tagIds) {
+            int id = parseId(tagId);
+            if (id >= 0) set.set(id);
+        }
+        return set;
+    }
+
+    /**
+     * Parses a tag id without allocating.
+
+     * @param tagId - the id as a string
+     * @return id - the id, or -1 if it is not a non negative whole number
+     */
+    public static int parseId(String tagId) {
+        if (tagId == null || tagId.isEmpty() || tagId.length() > 9) return -1;
+        int id = 0;
+        for (int i = 0; i < tagId.length(); i++) {
+            char c = tagId.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+}
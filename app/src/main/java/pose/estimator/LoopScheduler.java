@@ -0,0 +1,214 @@
+package pose.estimator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs periodic tasks at fixed rates on one thread. Deadlines are laid out on a fixed grid from the
+ * start time, so the period does not drift no matter how long each tick takes. A tick that runs past
+ * its whole period counts as an overrun, and grid slots that were missed because of it are skipped
+ * and counted instead of being run back to back.
+ *
+ * <p>Tasks sharing the thread wait on each other, so a task that can block for longer than another
+ * task's period makes that one skip ticks. A task that must not be held up can be given a thread of
+ * its own, on the same start time grid, and then anything it shares with the others needs a lock.
+ */
+public class LoopScheduler {
+    private final List<Task> tasks = new ArrayList<>();
+    private volatile boolean running = false;
+    private Thread thread;
+    private final List<Thread> dedicatedThreads = new ArrayList<>();
+
+    /** A task and its timing statistics. The statistics can be read from any thread. */
+    public static class Task {
+        public final String name;
+        public final int index; // Position in the scheduler, used as the source in the telemetry log
+        public final long periodNanos;
+        public final boolean dedicated; // Runs on its own thread
+        private final Runnable action;
+        private long nextDeadline;
+
+        private volatile long runs = 0;
+        private volatile long overruns = 0;
+        private volatile long skippedTicks = 0;
+        private volatile long lastDurationNanos = 0;
+        private volatile long maxDurationNanos = 0;
+        private volatile long totalDurationNanos = 0;
+        private volatile long lastLatenessNanos = 0;
+        /** How long each tick took to run. */
+        public final LatencyHistogram tickDuration = new LatencyHistogram();
+
+        Task(String name, int index, long periodNanos, boolean dedicated, Runnable action) {
+            this.name = name;
+            this.index = index;
+            this.periodNanos = periodNanos;
+            this.dedicated = dedicated;
+            this.action = action;
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        /** Returns how many ticks took longer than one period. */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /** Returns how many ticks were not run at all because an earlier tick ran long. */
+        public long getSkippedTicks() {
+            return skippedTicks;
+        }
+
+        public long getLastDurationNanos() {
+            return lastDurationNanos;
+        }
+
+        public long getMaxDurationNanos() {
+            return maxDurationNanos;
+        }
+
+        public double getAverageDurationNanos() {
+            long count = runs;
+            return count == 0 ? 0 : (double) totalDurationNanos / count;
+        }
+
+        /** Returns how late the last tick started compared to its deadline. */
+        public long getLastLatenessNanos() {
+            return lastLatenessNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d runs, %d overruns, %d skipped, last %.3f ms, max %.3f ms, avg %.3f ms",
+                name, runs, overruns, skippedTicks,
+                lastDurationNanos / 1e6, maxDurationNanos / 1e6, getAverageDurationNanos() / 1e6);
+        }
+    }
+
+    /**
+     * Adds a task. Tasks must be added before the scheduler starts.
+
+     * @param name - a name for reporting
+     * @param rateHz - how many times a second to run the task
+     * @param action - what to run each tick
+     * @return task - the task, for reading its statistics
+     */
+    public Task addTask(String name, double rateHz, Runnable action) {
+        return addTask(name, rateHz, false, action);
+    }
+
+    /**
+     * Adds a task, optionally on a thread of its own so the other tasks can not hold it up. Tasks must
+     * be added before the scheduler starts.
+
+     * @param name - a name for reporting, and for the thread
+     * @param rateHz - how many times a second to run the task
+     * @param dedicated - whether to give the task its own thread
+     * @param action - what to run each tick
+     * @return task - the task, for reading its statistics
+     */
+    public Task addTask(String name, double rateHz, boolean dedicated, Runnable action) {
+        if (running) throw new IllegalStateException("Tasks must be added before the scheduler starts");
+        if (rateHz <= 0) throw new IllegalArgumentException("Rate must be positive: " + rateHz);
+        Task task = new Task(name, tasks.size(), (long) (1e9 / rateHz), dedicated, action);
+        tasks.add(task);
+        return task;
+    }
+
+    public List<Task> getTasks() {
+        return tasks;
+    }
+
+    /** Starts running the tasks on a new thread. */
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this::run, "loop-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops the loops after the tasks that are running finish. */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+        for (Thread dedicated : dedicatedThreads) {
+            LockSupport.unpark(dedicated);
+        }
+        dedicatedThreads.clear();
+    }
+
+    /**
+     * Runs the tasks until {@link #stop()} is called. Dedicated tasks each get a new thread and the
+     * rest run on the calling thread, which waits for the stop if there are none.
+     */
+    public void run() {
+        running = true;
+        long start = System.nanoTime();
+        List<Task> shared = new ArrayList<>();
+        for (Task task : tasks) {
+            task.nextDeadline = start;
+            if (!task.dedicated) shared.add(task);
+        }
+        synchronized (this) {
+            for (Task task : tasks) {
+                if (!task.dedicated) continue;
+                Thread dedicated = new Thread(() -> runTasks(List.of(task)), "loop-" + task.name);
+                dedicated.setDaemon(true);
+                dedicatedThreads.add(dedicated);
+                dedicated.start();
+            }
+        }
+
+        if (shared.isEmpty()) {
+            while (running) LockSupport.parkNanos(100_000_000L);
+            return;
+        }
+        runTasks(shared);
+    }
+
+    private void runTasks(List<Task> tasks) {
+        while (running) {
+            Task task = tasks.get(0);
+            for (int i = 1; i < tasks.size(); i++) {
+                if (tasks.get(i).nextDeadline - task.nextDeadline < 0) task = tasks.get(i);
+            }
+
+            long now;
+            while ((now = System.nanoTime()) - task.nextDeadline < 0) {
+                LockSupport.parkNanos(task.nextDeadline - now);
+                if (!running) return;
+            }
+
+            long lateness = now - task.nextDeadline;
+            try {
+                task.action.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            long end = System.nanoTime();
+            long duration = end - now;
+
+            task.tickDuration.record(duration);
+            TelemetryLog.global().timing(task.index, duration);
+            task.runs++;
+            task.lastDurationNanos = duration;
+            task.lastLatenessNanos = lateness;
+            task.totalDurationNanos += duration;
+            if (duration > task.maxDurationNanos) task.maxDurationNanos = duration;
+            if (duration > task.periodNanos) task.overruns++;
+
+            task.nextDeadline += task.periodNanos;
+            if (end - task.nextDeadline >= 0) {
+                // Jump to the next slot on the grid instead of running the missed ones back to back
+                long missed = (end - task.nextDeadline) / task.periodNanos + 1;
+                task.skippedTicks += missed;
+                task.nextDeadline += missed * task.periodNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package pose.estimator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends a snapshot of every camera's metrics and every loop task's tick times to a file as one
+ * JSON object per line. Snapshots are taken and written on a background thread, so the loops being
+ * measured only ever pay for the lock-free recording.
+ */
+public class MetricsExporter {
+    private final List<String> cameraNames = new ArrayList<>();
+    private final List<CameraMetrics> cameras = new ArrayList<>();
+    private final List<LoopScheduler.Task> tasks = new ArrayList<>();
+    private ScheduledExecutorService executor;
+
+    public MetricsExporter addCamera(String name, CameraMetrics metrics) {
+        cameraNames.add(name);
+        cameras.add(metrics);
+        return this;
+    }
+
+    public MetricsExporter addTask(LoopScheduler.Task task) {
+        tasks.add(task);
+        return this;
+    }
+
+    /**
+     * Starts appending a line to the file every period. Sources must be added before this is called.
+
+     * @param file - where to append, created if it does not exist
+     * @param periodMs - how often to write a snapshot
+     */
+    public synchronized void start(Path file, long periodMs) {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writeSnapshot(writer);
+                writer.write('\n');
+            } catch (IOException e) {
+                System.out.println("Failed to write metrics to " + file);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Writes one snapshot of everything as a single line of JSON.
+
+     * @param out - where to write it
+     */
+    public void writeSnapshot(Appendable out) throws IOException {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"timestamp\":").append(System.currentTimeMillis()).append(",\"cameras\":[");
+        for (int i = 0; i < cameras.size(); i++) {
+            CameraMetrics.Snapshot camera = cameras.get(i).snapshot();
+            if (i > 0) json.append(',');
+            json.append("{\"name\":\"").append(cameraNames.get(i)).append('"')
+                .append(",\"requests\":").append(camera.requests)
+                .append(",\"replies\":").append(camera.replies)
+                .append(",\"streamFrames\":").append(camera.streamFrames)
+                .append(",\"timeouts\":").append(camera.timeouts)
+                .append(",\"reconnects\":").append(camera.reconnects)
+                .append(",\"parseErrors\":").append(camera.parseErrors)
+                .append(",\"cacheHits\":").append(camera.cacheHits)
+                .append(",\"streamDrops\":").append(camera.streamDrops);
+            appendHistogram(json, "roundTrip", camera.roundTrip);
+            appendHistogram(json, "parse", camera.parse);
+            appendHistogram(json, "queueWait", camera.queueWait);
+            json.append('}');
+        }
+        json.append("],\"tasks\":[");
+        for (int i = 0; i < tasks.size(); i++) {
+            LoopScheduler.Task task = tasks.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"name\":\"").append(task.name).append('"')
+                .append(",\"runs\":").append(task.getRuns())
+                .append(",\"overruns\":").append(task.getOverruns())
+                .append(",\"skippedTicks\":").append(task.getSkippedTicks());
+            appendHistogram(json, "tick", task.tickDuration.snapshot());
+            json.append('}');
+        }
+        json.append("]}");
+        out.append(json);
+    }
+
+    private static void appendHistogram(StringBuilder json, String name, LatencyHistogram.Snapshot histogram) {
+        // Milliseconds read better than nanoseconds when looking at the file by hand
+        json.append(",\"").append(name).append("\":{\"count\":").append(histogram.count)
+            .append(",\"meanMs\":").append(histogram.meanNanos() / 1e6)
+            .append(",\"p50Ms\":").append(histogram.percentileNanos(0.5) / 1e6)
+            .append(",\"p90Ms\":").append(histogram.percentileNanos(0.9) / 1e6)
+            .append(",\"p99Ms\":").append(histogram.percentileNanos(0.99) / 1e6)
+            .append(",\"p999Ms\":").append(histogram.percentileNanos(0.999) / 1e6)
+            .append(",\"maxMs\":").append(histogram.maxNanos / 1e6)
+            .append('}');
+    }
+}
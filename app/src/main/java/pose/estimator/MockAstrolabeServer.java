@@ -0,0 +1,425 @@
+package pose.estimator;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.java_websocket.server.WebSocketServer;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.ApriltagList;
+import pose.estimator.CameraWebsocketClient.Piece;
+
+/**
+ * A stand in for Astrolabe that serves synthetic detections, for load and latency testing without a
+ * coprocessor. It answers the same commands as the real server on one port per camera, starting at
+ * 50000 like the discovery in {@link Vision} expects, and can add latency, jitter and dropped replies.
+ *
+ * <p>Run it on its own with {@code java pose.estimator.MockAstrolabeServer --cameras=6 --latency-ms=4},
+ * or start it from code with {@link #start(Config)}.
+ */
+public class MockAstrolabeServer {
+    private static final int KIND_APRILTAGS = 0;
+    private static final int KIND_PIECE = 1;
+    private static final int KIND_INFO = 2;
+    private static final int KIND_BATCH = 3;
+
+    /** How the mock behaves. The defaults reply instantly with four tags and never drop anything. */
+    public static class Config {
+        public String host = "localhost";
+        public int basePort = 50000;
+        public int cameras = 1;
+        public double latencyMs = 0; // Added to every reply
+        public double jitterMs = 0; // Up to this much more, picked at random per reply
+        public double frameRateHz = 30; // How often frames are pushed to subscribers
+        public double dropRate = 0; // Chance that a reply is never sent
+        public int tagCount = 4;
+        public boolean piecesVisible = true;
+        public int pieceCount = 1; // More than one is sent as a json array, which only clients that read every piece understand
+        public boolean binaryFrames = true; // Accept the binary subprotocol when a client offers it
+    }
+
+    private final Config config;
+    private final List<CameraServer> servers = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "mock-astrolabe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MockAstrolabeServer(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Starts one server per camera.
+
+     * @param config - how the servers behave
+     * @return server - the running mock, call {@link #stop()} when done
+     */
+    public static MockAstrolabeServer start(Config config) {
+        MockAstrolabeServer mock = new MockAstrolabeServer(config);
+        for (int i = 0; i < config.cameras; i++) {
+            CameraServer server = mock.new CameraServer(i, new InetSocketAddress(config.host, config.basePort + i));
+            server.setReuseAddr(true);
+            server.start();
+            mock.servers.add(server);
+        }
+        return mock;
+    }
+
+    /** Stops every camera server. */
+    public void stop() {
+        scheduler.shutdownNow();
+        for (CameraServer server : servers) {
+            try {
+                server.stop(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the address to give a client for one camera.
+
+     * @param camera - the camera number, from zero
+     * @return uri - the websocket address of that camera
+     */
+    public String uri(int camera) {
+        return "ws://" + config.host + ":" + (config.basePort + camera);
+    }
+
+    /** Returns how many requests have been answered across all cameras. */
+    public long getRepliesSent() {
+        long total = 0;
+        for (CameraServer server : servers) total += server.replies.get();
+        return total;
+    }
+
+    /** Returns how many replies were dropped on purpose across all cameras. */
+    public long getRepliesDropped() {
+        long total = 0;
+        for (CameraServer server : servers) total += server.dropped.get();
+        return total;
+    }
+
+    /** Per connection state, kept as the socket's attachment. */
+    private static class Connection {
+        final boolean binary;
+        long lastSendNanos = 0; // Replies never overtake each other, even with jitter
+        long sequence = 0;
+        ScheduledFuture<?> stream;
+
+        Connection(boolean binary) {
+            this.binary = binary;
+        }
+    }
+
+    private class CameraServer extends WebSocketServer {
+        private final int camera;
+        private final AtomicLong replies = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private int activeColor = 0;
+        private String colorList = "[{\"red\": 255, \"green\": 128, \"blue\": 0, \"difference\": 40, \"blur\": 5}]";
+
+        CameraServer(int camera, InetSocketAddress address) {
+            super(address, Collections.<Draft>singletonList(new Draft_6455(Collections.emptyList(), protocols())));
+            this.camera = camera;
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            boolean binary = false;
+            if (conn.getDraft() instanceof Draft_6455) {
+                IProtocol protocol = ((Draft_6455) conn.getDraft()).getProtocol();
+                binary = protocol != null && BinaryFrames.SUBPROTOCOL.equals(protocol.getProvidedProtocol());
+            }
+            conn.setAttachment(new Connection(binary));
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            Connection connection = conn.getAttachment();
+            if (connection != null && connection.stream != null) {
+                connection.stream.cancel(false);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            Connection connection = conn.getAttachment();
+            String command = message;
+            String requestId = null;
+            int idIndex = message.indexOf(" -request_id=");
+            if (idIndex >= 0) {
+                requestId = message.substring(idIndex + " -request_id=".length()).trim();
+                command = message.substring(0, idIndex);
+            }
+
+            if (command.startsWith("subscribe")) {
+                long period = (long) (1e9 / config.frameRateHz);
+                connection.stream = scheduler.scheduleAtFixedRate(() -> pushFrames(conn, connection),
+                    period, period, TimeUnit.NANOSECONDS);
+            } else if (command.equals("fa")) {
+                reply(conn, connection, requestId, KIND_APRILTAGS);
+            } else if (command.equals("fp")) {
+                reply(conn, connection, requestId, KIND_PIECE);
+            } else if (command.equals("info")) {
+                reply(conn, connection, requestId, KIND_INFO);
+            } else if (command.startsWith(CameraWebsocketClient.BATCH_COMMAND + " ")) {
+                String[] parts = command.substring(CameraWebsocketClient.BATCH_COMMAND.length()).trim().split(";");
+                reply(conn, connection, requestId, KIND_BATCH, parts);
+            } else if (command.startsWith("sc -new_color=")) {
+                activeColor = Integer.parseInt(command.substring("sc -new_color=".length()).trim());
+            } else if (command.startsWith("sp -values")) {
+                colorList = command.substring("sp -values".length()).trim();
+            } else {
+                conn.send("{\"error\": \"Unknown command: " + command.replace("\"", "'") + "\"}");
+            }
+        }
+
+        private void reply(WebSocket conn, Connection connection, String requestId, int kind) {
+            reply(conn, connection, requestId, kind, null);
+        }
+
+        private void reply(WebSocket conn, Connection connection, String requestId, int kind, String[] parts) {
+            if (config.dropRate > 0 && ThreadLocalRandom.current().nextDouble() < config.dropRate) {
+                dropped.incrementAndGet();
+                return;
+            }
+            long delay = delayNanos();
+            long sendAt;
+            synchronized (connection) {
+                sendAt = Math.max(System.nanoTime() + delay, connection.lastSendNanos);
+                connection.lastSendNanos = sendAt;
+            }
+            Runnable send = () -> {
+                if (!conn.isOpen()) return;
+                if (kind == KIND_BATCH) {
+                    conn.send(wrap(requestId, batchFrame(parts)));
+                } else if (connection.binary && requestId == null && kind != KIND_INFO) {
+                    conn.send(binaryFrame(connection, kind));
+                } else {
+                    conn.send(wrap(requestId, jsonFrame(kind)));
+                }
+                replies.incrementAndGet();
+            };
+            long wait = sendAt - System.nanoTime();
+            if (wait <= 0) send.run();
+            else scheduler.schedule(send, wait, TimeUnit.NANOSECONDS);
+        }
+
+        private void pushFrames(WebSocket conn, Connection connection) {
+            if (!conn.isOpen()) {
+                connection.stream.cancel(false);
+                return;
+            }
+            if (config.dropRate > 0 && ThreadLocalRandom.current().nextDouble() < config.dropRate) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (connection.binary) {
+                conn.send(binaryFrame(connection, KIND_APRILTAGS));
+                conn.send(binaryFrame(connection, KIND_PIECE));
+            } else {
+                conn.send(jsonFrame(KIND_APRILTAGS));
+                conn.send(jsonFrame(KIND_PIECE));
+            }
+            replies.addAndGet(2);
+        }
+
+        private long delayNanos() {
+            double ms = config.latencyMs;
+            if (config.jitterMs > 0) ms += ThreadLocalRandom.current().nextDouble() * config.jitterMs;
+            return (long) (ms * 1e6);
+        }
+
+        private String wrap(String requestId, String reply) {
+            return requestId == null ? reply : "{\"request_id\": " + requestId + ", \"result\": " + reply + "}";
+        }
+
+        /** Batches always come back as one JSON object, one member per command, even on a binary connection. */
+        private String batchFrame(String[] parts) {
+            StringBuilder builder = new StringBuilder(128 + 256 * config.tagCount);
+            builder.append('{');
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i].trim();
+                if (i > 0) builder.append(", ");
+                builder.append('"').append(part.replace("\"", "'")).append("\": ");
+                if (part.equals("fa")) builder.append(jsonFrame(KIND_APRILTAGS));
+                else if (part.equals("fp")) builder.append(jsonFrame(KIND_PIECE));
+                else if (part.equals("info")) builder.append(jsonFrame(KIND_INFO));
+                else builder.append("{\"error\": \"Unknown command: ").append(part.replace("\"", "'")).append("\"}");
+            }
+            return builder.append('}').toString();
+        }
+
+        private String jsonFrame(int kind) {
+            if (kind == KIND_INFO) return info();
+            StringBuilder builder = new StringBuilder(64 + 256 * config.tagCount);
+            if (kind == KIND_APRILTAGS) {
+                ApriltagList tags = syntheticTags();
+                builder.append('[');
+                for (int i = 0; i < tags.size(); i++) {
+                    Apriltag tag = tags.get(i);
+                    if (i > 0) builder.append(", ");
+                    builder.append(String.format(Locale.ROOT,
+                        "{\"tag_id\": %d, \"position\": [%.5f, %.5f, %.5f], \"orientation\": [%.4f, %.4f, %.4f], "
+                            + "\"distance\": %.5f, \"horizontal_angle\": %.5f, \"vertical_angle\": %.5f}",
+                        tag.id, tag.position[0], tag.position[1], tag.position[2],
+                        tag.orientation[0], tag.orientation[1], tag.orientation[2],
+                        tag.distance, tag.horizontalAngle, tag.verticalAngle));
+                }
+                return builder.append(']').toString();
+            }
+            List<Piece> pieces = syntheticPieces();
+            if (pieces.isEmpty()) return "{}";
+            if (pieces.size() == 1) return pieceJson(pieces.get(0));
+            builder.append('[');
+            for (int i = 0; i < pieces.size(); i++) {
+                if (i > 0) builder.append(", ");
+                builder.append(pieceJson(pieces.get(i)));
+            }
+            return builder.append(']').toString();
+        }
+
+        private String pieceJson(Piece piece) {
+            return String.format(Locale.ROOT,
+                "{\"distance\": %.5f, \"angle\": %.5f, \"center\": [%.1f, %.1f], \"piece_angle\": %.5f}",
+                piece.distance, piece.angle, piece.center[0], piece.center[1], piece.pieceAngle);
+        }
+
+        private ByteBuffer binaryFrame(Connection connection, int kind) {
+            long sequence;
+            synchronized (connection) {
+                sequence = ++connection.sequence;
+            }
+            long captureMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+            ByteBuffer buffer = ByteBuffer.allocate(BinaryFrames.HEADER_BYTES
+                + Math.max(BinaryFrames.APRILTAG_BYTES * config.tagCount, BinaryFrames.PIECE_BYTES * config.pieceCount));
+            if (kind == KIND_APRILTAGS) {
+                BinaryFrames.encodeApriltags(buffer, syntheticTags(), sequence, captureMicros);
+            } else {
+                BinaryFrames.encodePieces(buffer, syntheticPieces(), sequence, captureMicros);
+            }
+            return buffer.flip();
+        }
+
+        /** Tags drift slowly around fixed spots so consecutive frames look like a moving robot. */
+        private ApriltagList syntheticTags() {
+            double t = (System.nanoTime() - startNanos) / 1e9;
+            ApriltagList tags = new ApriltagList();
+            for (int i = 0; i < config.tagCount; i++) {
+                Apriltag tag = tags.add();
+                tag.id = 1 + (camera * 5 + i) % 22;
+                tag.tagId = DetectionDecoder.tagIdString(tag.id);
+                double phase = t * 0.5 + i;
+                tag.position[0] = Math.sin(phase) * 0.8;
+                tag.position[1] = 0.1 * Math.cos(phase * 0.3);
+                tag.position[2] = 1.5 + i * 0.75 + 0.3 * Math.cos(phase);
+                tag.orientation[0] = 2 * Math.sin(phase * 0.7);
+                tag.orientation[1] = 20 * Math.sin(phase * 0.4);
+                tag.orientation[2] = 1.5 * Math.cos(phase * 0.9);
+                tag.distance = Math.sqrt(tag.position[0] * tag.position[0]
+                    + tag.position[1] * tag.position[1] + tag.position[2] * tag.position[2]);
+                tag.horizontalAngle = Math.atan2(tag.position[0], tag.position[2]);
+                tag.verticalAngle = Math.atan2(tag.position[1], tag.position[2]);
+            }
+            return tags;
+        }
+
+        /** The first piece wanders in front of the camera, the rest sit further out and spread to the sides. */
+        private List<Piece> syntheticPieces() {
+            List<Piece> pieces = new ArrayList<>();
+            if (!config.piecesVisible) return pieces;
+            double t = (System.nanoTime() - startNanos) / 1e9;
+            for (int i = 0; i < config.pieceCount; i++) {
+                Piece piece = new Piece();
+                double phase = t * 0.5 + i;
+                piece.distance = 1.2 + 0.6 * i + 0.5 * Math.sin(t * 0.3 + i);
+                piece.angle = 0.4 * Math.sin(phase) + (i % 2 == 0 ? 0.15 : -0.15) * i;
+                piece.center[0] = 320 + 200 * Math.sin(phase);
+                piece.center[1] = 300 - 10 * i;
+                piece.pieceAngle = Math.PI / 4 * Math.cos(t * 0.2 + i);
+                pieces.add(piece);
+            }
+            return pieces;
+        }
+
+        private String info() {
+            return String.format(Locale.ROOT,
+                "{\"cam_name\": \"mock%d\", \"identifier\": \"mock-camera-%d\", \"horizontal_focal_length\": 600.0, "
+                    + "\"vertical_focal_length\": 600.0, \"height\": 0, \"horizontal_resolution_pixels\": 640, "
+                    + "\"vertical_resolution_pixels\": 480, \"processing_scale\": 1, \"tilt_angle_radians\": 0.0, "
+                    + "\"horizontal_field_of_view_radians\": 1.0472, \"vertical_field_of_view_radians\": 0.7854, "
+                    + "\"color_list\": %s, \"active_color\": %d}",
+                camera, camera, colorList, activeColor);
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+            ex.printStackTrace();
+        }
+
+        @Override
+        public void onStart() {
+            System.out.println("Mock Astrolabe camera " + camera + " listening on " + uri(camera));
+        }
+    }
+
+    private List<IProtocol> protocols() {
+        List<IProtocol> protocols = new ArrayList<>();
+        if (config.binaryFrames) protocols.add(new Protocol(BinaryFrames.SUBPROTOCOL));
+        protocols.add(new Protocol("")); // Clients that ask for nothing get JSON
+        return protocols;
+    }
+
+    /**
+     * Runs the mock until the process is killed. Options are --name=value, named like the {@link Config} fields
+     * in kebab case, for example --cameras=6 --latency-ms=5 --jitter-ms=2 --drop-rate=0.01 --tag-count=8.
+
+     * @param args - the options
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Config config = new Config();
+        for (String arg : args) {
+            String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+            String value = parts.length > 1 ? parts[1] : "true";
+            switch (parts[0]) {
+                case "host": config.host = value; break;
+                case "base-port": config.basePort = Integer.parseInt(value); break;
+                case "cameras": config.cameras = Integer.parseInt(value); break;
+                case "latency-ms": config.latencyMs = Double.parseDouble(value); break;
+                case "jitter-ms": config.jitterMs = Double.parseDouble(value); break;
+                case "frame-rate-hz": config.frameRateHz = Double.parseDouble(value); break;
+                case "drop-rate": config.dropRate = Double.parseDouble(value); break;
+                case "tag-count": config.tagCount = Integer.parseInt(value); break;
+                case "pieces-visible": config.piecesVisible = Boolean.parseBoolean(value); break;
+                case "piece-count": config.pieceCount = Integer.parseInt(value); break;
+                case "binary-frames": config.binaryFrames = Boolean.parseBoolean(value); break;
+                default:
+                    System.out.println("Unknown option " + arg);
+                    return;
+            }
+        }
+        start(config);
+        Thread.currentThread().join();
+    }
+}
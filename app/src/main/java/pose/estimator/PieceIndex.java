@@ -0,0 +1,288 @@
+package pose.estimator;
+
+import java.util.Arrays;
+import java.util.List;
+
+import pose.estimator.CameraWebsocketClient.Piece;
+
+/**
+ * Every piece every camera sees, placed in the robot's frame (x forward, y left, meters) and bucketed
+ * into a square grid of cells centered on the robot. Nearest piece queries walk the cells outward in
+ * rings from the robot and stop as soon as no unvisited cell can hold anything closer, so they only
+ * look at the pieces near the answer no matter how many there are.
+ *
+ * <p>Each camera's pieces are set on their own, and only cameras with a new frame are transformed
+ * again. The grid itself is re-sorted with one counting pass the first time it is queried after a
+ * change. Pieces past the edge of the grid are kept in a list that is only searched when nothing in
+ * the grid is closer. Nothing allocates once the arrays have grown to the most pieces seen. It is not
+ * thread safe, so fill and query it from one loop.
+ */
+public class PieceIndex {
+    private final double cellSize;
+    private final int half; // Cells from the center cell to the edge
+    private final int width;
+
+    // Each camera's pieces in the robot frame, as set
+    private double[][] cameraX = new double[0][];
+    private double[][] cameraY = new double[0][];
+    private Piece[][] cameraPieces = new Piece[0][];
+    private int[] cameraCounts = new int[0];
+    private boolean dirty = false;
+
+    // Every piece, rebuilt from the cameras when dirty
+    private int size = 0;
+    private double[] x = new double[32];
+    private double[] y = new double[32];
+    private int[] camera = new int[32];
+    private Piece[] pieces = new Piece[32];
+    private int[] cellOf = new int[32]; // -1 for pieces past the edge
+
+    // Point ids sorted by cell, cell c holds order[cellStart[c]] to order[cellStart[c + 1] - 1]
+    private final int[] cellStart;
+    private int[] order = new int[32];
+    private int[] outside = new int[8];
+    private int outsideCount = 0;
+
+    // Scratch for k nearest
+    private double[] bestDistances = new double[8];
+    private final int[] single = new int[1];
+
+    /**
+     * @param cellSize - the width of a cell in meters, about the spacing of pieces that matter
+     * @param range - how far from the robot the grid reaches in meters, further pieces still work but are searched one by one
+     */
+    public PieceIndex(double cellSize, double range) {
+        this.cellSize = cellSize;
+        this.half = Math.max((int) Math.ceil(range / cellSize - 0.5), 0);
+        this.width = 2 * half + 1;
+        this.cellStart = new int[width * width + 1];
+    }
+
+    /**
+     * Replaces the pieces one camera sees.
+
+     * @param cam - the camera index
+     * @param seen - the pieces, only the references are kept so they must stay put until the camera's next set
+     * @param cameraRotationRadians - which way the camera faces on the robot
+     */
+    public void setCamera(int cam, List<Piece> seen, double cameraRotationRadians) {
+        ensureCamera(cam);
+        int count = seen.size();
+        if (cameraX[cam].length < count) {
+            int capacity = Math.max(count, cameraX[cam].length * 2);
+            cameraX[cam] = new double[capacity];
+            cameraY[cam] = new double[capacity];
+            cameraPieces[cam] = new Piece[capacity];
+        }
+        for (int i = 0; i < count; i++) {
+            Piece piece = seen.get(i);
+            double heading = piece.angle + cameraRotationRadians;
+            cameraX[cam][i] = Math.cos(heading) * piece.distance;
+            cameraY[cam][i] = Math.sin(heading) * piece.distance;
+            cameraPieces[cam][i] = piece;
+        }
+        cameraCounts[cam] = count;
+        dirty = true;
+    }
+
+    /** Forgets the pieces one camera saw. */
+    public void clearCamera(int cam) {
+        if (cam < cameraCounts.length && cameraCounts[cam] != 0) {
+            cameraCounts[cam] = 0;
+            dirty = true;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(cameraCounts, 0);
+        dirty = true;
+    }
+
+    private void ensureCamera(int cam) {
+        if (cam < cameraCounts.length) return;
+        int cameras = cam + 1;
+        int old = cameraCounts.length;
+        cameraX = Arrays.copyOf(cameraX, cameras);
+        cameraY = Arrays.copyOf(cameraY, cameras);
+        cameraPieces = Arrays.copyOf(cameraPieces, cameras);
+        cameraCounts = Arrays.copyOf(cameraCounts, cameras);
+        for (int c = old; c < cameras; c++) {
+            cameraX[c] = new double[4];
+            cameraY[c] = new double[4];
+            cameraPieces[c] = new Piece[4];
+        }
+    }
+
+    /** Gathers every camera's pieces and sorts them into cells, if anything changed since last time. */
+    private void rebuild() {
+        if (!dirty) return;
+        dirty = false;
+        int total = 0;
+        for (int count : cameraCounts) total += count;
+        if (x.length < total) grow(total);
+
+        size = 0;
+        outsideCount = 0;
+        Arrays.fill(cellStart, 0);
+        for (int c = 0; c < cameraCounts.length; c++) {
+            for (int i = 0; i < cameraCounts[c]; i++) {
+                x[size] = cameraX[c][i];
+                y[size] = cameraY[c][i];
+                camera[size] = c;
+                pieces[size] = cameraPieces[c][i];
+                int cell = cellIndex(x[size], y[size]);
+                cellOf[size] = cell;
+                if (cell >= 0) {
+                    cellStart[cell + 1]++;
+                } else {
+                    if (outsideCount == outside.length) outside = Arrays.copyOf(outside, outsideCount * 2);
+                    outside[outsideCount++] = size;
+                }
+                size++;
+            }
+        }
+        for (int cell = 0; cell < width * width; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        // Fill each cell from its end so cellStart ends up back at each cell's start
+        for (int i = size - 1; i >= 0; i--) {
+            int cell = cellOf[i];
+            if (cell >= 0) order[--cellStart[cell + 1]] = i;
+        }
+        // cellStart[c + 1] has been counted back down to where cell c starts, so shift it into place
+        System.arraycopy(cellStart, 1, cellStart, 0, width * width);
+        cellStart[width * width] = size - outsideCount;
+    }
+
+    /** Returns how many pieces there are across every camera. */
+    public int size() {
+        rebuild();
+        return size;
+    }
+
+    /** Returns how far forward of the robot a piece is, in meters. Pieces are numbered 0 to size() - 1. */
+    public double getX(int piece) {
+        return x[piece];
+    }
+
+    /** Returns how far left of the robot a piece is, in meters. */
+    public double getY(int piece) {
+        return y[piece];
+    }
+
+    public double getDistance(int piece) {
+        return Math.hypot(x[piece], y[piece]);
+    }
+
+    /** Returns which way a piece is from the robot in radians, 0 straight ahead and positive to the left. */
+    public double getAngle(int piece) {
+        return Math.atan2(y[piece], x[piece]);
+    }
+
+    /** Returns the index of the camera that saw a piece. */
+    public int getCamera(int piece) {
+        return camera[piece];
+    }
+
+    /** Returns the piece as the camera reported it. Read it in the same tick, the camera recycles its pieces. */
+    public Piece getPiece(int piece) {
+        return pieces[piece];
+    }
+
+    /**
+     * Finds the nearest piece inside a cone in front of the robot, like the intake's.
+
+     * @param maxAngle - the cone's half angle in radians, Math.PI for any direction
+     * @return piece - the piece's number, or -1 if there is none in the cone
+     */
+    public int nearest(double maxAngle) {
+        return nearest(1, maxAngle, single) > 0 ? single[0] : -1;
+    }
+
+    /**
+     * Finds the k nearest pieces inside a cone in front of the robot.
+
+     * @param k - how many to find at most
+     * @param maxAngle - the cone's half angle in radians, Math.PI for any direction
+     * @param out - receives the pieces' numbers, nearest first, must hold at least k
+     * @return found - how many were written to out
+     */
+    public int nearest(int k, double maxAngle, int[] out) {
+        rebuild();
+        if (k <= 0 || size == 0) return 0;
+        if (bestDistances.length < k) bestDistances = new double[k];
+        boolean forwardOnly = maxAngle < Math.PI / 2;
+        double cosMax = Math.cos(maxAngle);
+        int found = 0;
+
+        for (int ring = 0; ring <= half + 1; ring++) {
+            // Nothing in this ring or past it can be closer than this
+            double bound = ring == 0 ? 0 : (ring - 0.5) * cellSize;
+            if (found == k && bound * bound >= bestDistances[k - 1]) break;
+            if (ring > half) {
+                for (int i = 0; i < outsideCount; i++) {
+                    found = offer(outside[i], k, cosMax, out, found);
+                }
+                break;
+            }
+            // Forward only cones can skip the cells that are wholly behind the robot
+            int minX = forwardOnly ? 0 : -ring;
+            for (int dy = -ring; dy <= ring; dy++) {
+                if (dy == -ring || dy == ring) {
+                    for (int dx = minX; dx <= ring; dx++) {
+                        found = searchCell(dx, dy, k, cosMax, out, found);
+                    }
+                } else {
+                    // Rows in between only have a cell at each end of the ring
+                    if (minX == -ring) found = searchCell(-ring, dy, k, cosMax, out, found);
+                    found = searchCell(ring, dy, k, cosMax, out, found);
+                }
+            }
+        }
+        return found;
+    }
+
+    private int searchCell(int dx, int dy, int k, double cosMax, int[] out, int found) {
+        int cell = (dy + half) * width + dx + half;
+        for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+            found = offer(order[j], k, cosMax, out, found);
+        }
+        return found;
+    }
+
+    /** Inserts a piece into the sorted best list if it is in the cone and closer than the worst kept. */
+    private int offer(int piece, int k, double cosMax, int[] out, int found) {
+        double px = x[piece];
+        double py = y[piece];
+        double squared = px * px + py * py;
+        // Inside the cone when the angle off forward is at most maxAngle: x >= |p| cos(maxAngle)
+        if (px < Math.sqrt(squared) * cosMax) return found;
+        if (found == k && squared >= bestDistances[k - 1]) return found;
+        int i = found == k ? k - 1 : found++;
+        while (i > 0 && bestDistances[i - 1] > squared) {
+            bestDistances[i] = bestDistances[i - 1];
+            out[i] = out[i - 1];
+            i--;
+        }
+        bestDistances[i] = squared;
+        out[i] = piece;
+        return found;
+    }
+
+    private void grow(int needed) {
+        int capacity = Math.max(needed, x.length * 2);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        camera = Arrays.copyOf(camera, capacity);
+        pieces = Arrays.copyOf(pieces, capacity);
+        cellOf = Arrays.copyOf(cellOf, capacity);
+        order = Arrays.copyOf(order, capacity);
+    }
+
+    private int cellIndex(double px, double py) {
+        long cx = (long) Math.floor(px / cellSize + 0.5) + half;
+        long cy = (long) Math.floor(py / cellSize + 0.5) + half;
+        if (cx < 0 || cy < 0 || cx >= width || cy >= width) return -1;
+        return (int) (cy * width + cx);
+    }
+}
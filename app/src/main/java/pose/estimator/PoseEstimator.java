@@ -0,0 +1,333 @@
+package pose.estimator;
+
+/**
+ * Fuses field relative robot poses measured from apriltags into one continuous estimate.
+ *
+ * <p>The state is x and y in meters and heading in radians, each with its own variance, so the filter
+ * is three independent scalar Kalman filters. Between measurements the variance grows with time. Each
+ * measurement is weighted by its own standard deviation, which {@link Vision} makes grow with tag
+ * distance, and measurements that disagree wildly with the estimate are thrown out. Everything is kept
+ * in primitive fields so updating never allocates. It is not thread safe, so update and read it from one loop.
+ *
+ * <p>Camera frames show the robot as it was when the image was taken, which can be tens of milliseconds
+ * ago. Every update is recorded in a {@link PoseHistory}, and a measurement with an older timestamp is
+ * applied to the pose from that moment and then replayed forward through the odometry recorded since.
+ *
+ * <p>Nothing in this project calls {@link #addOdometry} yet, so until the drivetrain feeds it the
+ * estimate only moves when a tag is seen, and in between its variance just grows with time like a
+ * random walk. Latency compensation still works without it, there is simply no motion to replay.
+ */
+public class PoseEstimator {
+    private double x;
+    private double y;
+    private double heading;
+    private double varianceX;
+    private double varianceY;
+    private double varianceHeading;
+    private boolean hasEstimate = false;
+    private long lastUpdateNanos;
+
+    private final double positionNoisePerSecond; // meters^2 added per second with no measurements
+    private final double headingNoisePerSecond; // radians^2 added per second with no measurements
+    private final double gate; // how many standard deviations an innovation may be before it is rejected
+
+    private long acceptedMeasurements = 0;
+    private long rejectedMeasurements = 0;
+
+    private final PoseHistory history;
+    private boolean hasOdometry = false;
+    private double odometryX;
+    private double odometryY;
+    private double odometryHeading;
+    private final double[] scratch = new double[3];
+
+    // The corrected pose at the capture time of the last late measurement. Every tag in a tick shares
+    // a capture time, and the history has no entry at that exact time to hold the correction.
+    private long correctedTimestamp = Long.MIN_VALUE;
+    private double correctedX;
+    private double correctedY;
+    private double correctedHeading;
+
+    public PoseEstimator() {
+        this(0.25, 0.05, 4.0, 128);
+    }
+
+    /**
+     * Creates an estimator with the given noise settings.
+
+     * @param positionStdDevPerSecond - how fast position confidence decays with no measurements, in meters
+     * @param headingStdDevPerSecond - how fast heading confidence decays with no measurements, in radians
+     * @param gate - how many standard deviations a measurement may be off before it is ignored
+     * @param historySize - how many past states to keep for latency compensation
+     */
+    public PoseEstimator(double positionStdDevPerSecond, double headingStdDevPerSecond, double gate, int historySize) {
+        this.positionNoisePerSecond = positionStdDevPerSecond * positionStdDevPerSecond;
+        this.headingNoisePerSecond = headingStdDevPerSecond * headingStdDevPerSecond;
+        this.gate = gate;
+        this.history = new PoseHistory(historySize);
+    }
+
+    /**
+     * Forces the estimate to a known pose, for example at the start of a match.
+
+     * @param x - field x in meters
+     * @param y - field y in meters
+     * @param heading - field heading in radians
+     * @param timestampNanos - when the robot was at this pose, in System.nanoTime() time
+     */
+    public void reset(double x, double y, double heading, long timestampNanos) {
+        this.x = x;
+        this.y = y;
+        this.heading = wrapAngle(heading);
+        varianceX = 0;
+        varianceY = 0;
+        varianceHeading = 0;
+        lastUpdateNanos = timestampNanos;
+        hasEstimate = true;
+        history.clear();
+        correctedTimestamp = Long.MIN_VALUE;
+        recordHistory(timestampNanos);
+    }
+
+    /**
+     * Moves the estimate by however far odometry says the robot moved since the last call. The motion
+     * is taken in the robot's own frame, so odometry that has drifted on the field still moves the
+     * estimate the right way.
+
+     * @param timestampNanos - when odometry was read, in System.nanoTime() time
+     * @param x - odometry x in meters
+     * @param y - odometry y in meters
+     * @param heading - odometry heading in radians
+     */
+    public void addOdometry(long timestampNanos, double x, double y, double heading) {
+        if (hasOdometry && hasEstimate) {
+            applyOdometryDelta(this.x, this.y, this.heading,
+                odometryX, odometryY, odometryHeading, x, y, heading, scratch);
+            this.x = scratch[0];
+            this.y = scratch[1];
+            this.heading = scratch[2];
+        }
+        odometryX = x;
+        odometryY = y;
+        odometryHeading = heading;
+        hasOdometry = true;
+        predict(timestampNanos);
+        if (hasEstimate) recordHistory(timestampNanos);
+    }
+
+    /** Moves a fused pose by the odometry motion between two odometry poses and writes it to out. */
+    private static void applyOdometryDelta(double poseX, double poseY, double poseHeading,
+            double fromX, double fromY, double fromHeading,
+            double toX, double toY, double toHeading, double[] out) {
+        double dx = toX - fromX;
+        double dy = toY - fromY;
+        // Into the robot frame using the odometry heading, then out using the fused heading
+        double cosFrom = Math.cos(fromHeading);
+        double sinFrom = Math.sin(fromHeading);
+        double forward = dx * cosFrom + dy * sinFrom;
+        double left = -dx * sinFrom + dy * cosFrom;
+        double cosPose = Math.cos(poseHeading);
+        double sinPose = Math.sin(poseHeading);
+        out[0] = poseX + forward * cosPose - left * sinPose;
+        out[1] = poseY + forward * sinPose + left * cosPose;
+        out[2] = wrapAngle(poseHeading + (toHeading - fromHeading));
+    }
+
+    private void recordHistory(long timestampNanos) {
+        if (timestampNanos < history.newestTimestamp()) return;
+        history.record(timestampNanos, x, y, heading, odometryX, odometryY, odometryHeading);
+    }
+
+    /**
+     * Grows the uncertainty for the time that passed since the last update.
+
+     * @param timestampNanos - the current time, in System.nanoTime() time
+     */
+    public void predict(long timestampNanos) {
+        if (!hasEstimate || timestampNanos <= lastUpdateNanos) return;
+        double seconds = (timestampNanos - lastUpdateNanos) / 1e9;
+        varianceX += positionNoisePerSecond * seconds;
+        varianceY += positionNoisePerSecond * seconds;
+        varianceHeading += headingNoisePerSecond * seconds;
+        lastUpdateNanos = timestampNanos;
+    }
+
+    /**
+     * Folds one field relative robot pose into the estimate. The first measurement seeds the estimate.
+
+     * @param measuredX - measured field x in meters
+     * @param measuredY - measured field y in meters
+     * @param measuredHeading - measured field heading in radians
+     * @param positionStdDev - standard deviation of the measured position, in meters
+     * @param headingStdDev - standard deviation of the measured heading, in radians
+     * @param timestampNanos - when the measurement was taken, in System.nanoTime() time
+     * @return accepted - false if the measurement was rejected as an outlier
+     */
+    public boolean addMeasurement(double measuredX, double measuredY, double measuredHeading,
+            double positionStdDev, double headingStdDev, long timestampNanos) {
+        double positionVariance = positionStdDev * positionStdDev;
+        double headingVariance = headingStdDev * headingStdDev;
+        if (!hasEstimate) {
+            x = measuredX;
+            y = measuredY;
+            heading = wrapAngle(measuredHeading);
+            varianceX = positionVariance;
+            varianceY = positionVariance;
+            varianceHeading = headingVariance;
+            lastUpdateNanos = timestampNanos;
+            hasEstimate = true;
+            acceptedMeasurements++;
+            recordHistory(timestampNanos);
+            return true;
+        }
+
+        long replayFrom = timestampNanos < lastUpdateNanos ? history.indexAtOrBefore(timestampNanos) : -1;
+        double priorX = x;
+        double priorY = y;
+        double priorHeading = heading;
+        if (replayFrom >= 0 && timestampNanos == correctedTimestamp) {
+            // Another measurement from the same frame, so build on the one before it
+            priorX = correctedX;
+            priorY = correctedY;
+            priorHeading = correctedHeading;
+        } else if (replayFrom >= 0 && history.sampleFused(timestampNanos, scratch)) {
+            // Compare against where we thought the robot was when the image was taken
+            priorX = scratch[0];
+            priorY = scratch[1];
+            priorHeading = scratch[2];
+        } else {
+            replayFrom = -1;
+            predict(timestampNanos);
+        }
+
+        double innovationX = measuredX - priorX;
+        double innovationY = measuredY - priorY;
+        double innovationHeading = wrapAngle(measuredHeading - priorHeading);
+        double limit = gate * gate;
+        if (innovationX * innovationX > limit * (varianceX + positionVariance)
+                || innovationY * innovationY > limit * (varianceY + positionVariance)
+                || innovationHeading * innovationHeading > limit * (varianceHeading + headingVariance)) {
+            rejectedMeasurements++;
+            return false;
+        }
+
+        double gainX = varianceX / (varianceX + positionVariance);
+        double gainY = varianceY / (varianceY + positionVariance);
+        double gainHeading = varianceHeading / (varianceHeading + headingVariance);
+        double correctedX = priorX + gainX * innovationX;
+        double correctedY = priorY + gainY * innovationY;
+        double correctedHeading = wrapAngle(priorHeading + gainHeading * innovationHeading);
+        varianceX *= 1 - gainX;
+        varianceY *= 1 - gainY;
+        varianceHeading *= 1 - gainHeading;
+        acceptedMeasurements++;
+
+        if (replayFrom < 0) {
+            x = correctedX;
+            y = correctedY;
+            heading = correctedHeading;
+            recordHistory(timestampNanos);
+        } else {
+            replay(replayFrom, timestampNanos, correctedX, correctedY, correctedHeading);
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the history after a late measurement: starting from the corrected pose at the capture
+     * time, each later entry is moved by the odometry recorded between it and the capture time.
+     */
+    private void replay(long fromIndex, long timestampNanos, double correctedX, double correctedY, double correctedHeading) {
+        this.correctedTimestamp = timestampNanos;
+        this.correctedX = correctedX;
+        this.correctedY = correctedY;
+        this.correctedHeading = correctedHeading;
+        history.sampleOdometry(timestampNanos, scratch);
+        double startOdomX = scratch[0];
+        double startOdomY = scratch[1];
+        double startOdomHeading = scratch[2];
+        x = correctedX;
+        y = correctedY;
+        heading = correctedHeading;
+        if (history.timestampAt(fromIndex) == timestampNanos) {
+            // An entry right at the capture time is the corrected pose itself
+            history.overwriteFused(fromIndex, correctedX, correctedY, correctedHeading);
+        }
+        for (long i = fromIndex + 1; i <= history.newestIndex(); i++) {
+            applyOdometryDelta(correctedX, correctedY, correctedHeading,
+                startOdomX, startOdomY, startOdomHeading,
+                history.odometryXAt(i), history.odometryYAt(i), history.odometryHeadingAt(i), scratch);
+            history.overwriteFused(i, scratch[0], scratch[1], scratch[2]);
+            x = scratch[0];
+            y = scratch[1];
+            heading = scratch[2];
+        }
+        if (hasOdometry) {
+            // Odometry that came in after the newest history entry
+            applyOdometryDelta(correctedX, correctedY, correctedHeading,
+                startOdomX, startOdomY, startOdomHeading, odometryX, odometryY, odometryHeading, scratch);
+            x = scratch[0];
+            y = scratch[1];
+            heading = scratch[2];
+        }
+    }
+
+    /**
+     * Returns the recorded history, so other threads can look up past poses.
+
+     * @return history - the pose history, only read from it
+     */
+    public PoseHistory getHistory() {
+        return history;
+    }
+
+    public boolean hasEstimate() {
+        return hasEstimate;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    /** Returns the field heading in radians, between -pi and pi. */
+    public double getHeading() {
+        return heading;
+    }
+
+    /** Returns the standard deviation of the position estimate in meters, the larger of x and y. */
+    public double getPositionStdDev() {
+        return Math.sqrt(Math.max(varianceX, varianceY));
+    }
+
+    /** Returns the standard deviation of the heading estimate in radians. */
+    public double getHeadingStdDev() {
+        return Math.sqrt(varianceHeading);
+    }
+
+    public long getLastUpdateNanos() {
+        return lastUpdateNanos;
+    }
+
+    public long getAcceptedMeasurements() {
+        return acceptedMeasurements;
+    }
+
+    public long getRejectedMeasurements() {
+        return rejectedMeasurements;
+    }
+
+    /**
+     * Wraps an angle into -pi to pi.
+
+     * @param radians - any angle
+     * @return wrapped - the same angle between -pi and pi
+     */
+    public static double wrapAngle(double radians) {
+        if (radians >= -Math.PI && radians < Math.PI) return radians;
+        return radians - 2 * Math.PI * Math.floor((radians + Math.PI) / (2 * Math.PI));
+    }
+}
@@ -0,0 +1,214 @@
+package pose.estimator;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * A fixed size, time ordered ring of past robot states, used to look up where the robot was when a
+ * camera image was taken. Each entry holds the fused field pose and the raw odometry pose at that time.
+ *
+ * <p>Everything lives in primitive arrays. There must be only one writer, but any number of threads can
+ * read at the same time without locking: readers check a sequence number before and after reading and
+ * retry if the writer touched the buffer in between.
+ */
+public class PoseHistory {
+    private final int mask;
+    private final long[] timestamps;
+    private final double[] fusedX;
+    private final double[] fusedY;
+    private final double[] fusedHeading;
+    private final double[] odometryX;
+    private final double[] odometryY;
+    private final double[] odometryHeading;
+
+    private volatile long version = 0; // Odd while the writer is in the middle of a change
+    private long count = 0; // Total entries ever written, guarded by version
+
+    /**
+     * Creates a history that keeps the most recent entries.
+
+     * @param capacity - how many entries to keep, rounded up to a power of two
+     */
+    public PoseHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        timestamps = new long[size];
+        fusedX = new double[size];
+        fusedY = new double[size];
+        fusedHeading = new double[size];
+        odometryX = new double[size];
+        odometryY = new double[size];
+        odometryHeading = new double[size];
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds a new entry. Only the writer thread may call this, and timestamps must not go backwards.
+
+     * @param timestampNanos - when the robot was in this state
+     * @param x - fused field x in meters
+     * @param y - fused field y in meters
+     * @param heading - fused field heading in radians
+     * @param odomX - odometry x in meters
+     * @param odomY - odometry y in meters
+     * @param odomHeading - odometry heading in radians
+     */
+    public void record(long timestampNanos, double x, double y, double heading,
+            double odomX, double odomY, double odomHeading) {
+        beginWrite();
+        int slot = (int) (count & mask);
+        timestamps[slot] = timestampNanos;
+        fusedX[slot] = x;
+        fusedY[slot] = y;
+        fusedHeading[slot] = heading;
+        odometryX[slot] = odomX;
+        odometryY[slot] = odomY;
+        odometryHeading[slot] = odomHeading;
+        count++;
+        endWrite();
+    }
+
+    /**
+     * Replaces the fused pose of an existing entry, used when a late measurement is replayed. Writer only.
+
+     * @param index - the entry, as counted by {@link #newestIndex()}
+     */
+    void overwriteFused(long index, double x, double y, double heading) {
+        beginWrite();
+        int slot = (int) (index & mask);
+        fusedX[slot] = x;
+        fusedY[slot] = y;
+        fusedHeading[slot] = heading;
+        endWrite();
+    }
+
+    /**
+     * Looks up the fused pose at a time, interpolating between the two entries around it. Safe to call
+     * from any thread.
+
+     * @param timestampNanos - the time to look up
+     * @param out - receives x, y and heading
+     * @return found - false if the time is older than the oldest entry or newer than the newest
+     */
+    public boolean sampleFused(long timestampNanos, double[] out) {
+        return sample(timestampNanos, out, fusedX, fusedY, fusedHeading);
+    }
+
+    /**
+     * Looks up the odometry pose at a time, interpolating between the two entries around it. Safe to call
+     * from any thread.
+
+     * @param timestampNanos - the time to look up
+     * @param out - receives x, y and heading
+     * @return found - false if the time is outside the history
+     */
+    public boolean sampleOdometry(long timestampNanos, double[] out) {
+        return sample(timestampNanos, out, odometryX, odometryY, odometryHeading);
+    }
+
+    private boolean sample(long timestampNanos, double[] out, double[] xs, double[] ys, double[] headings) {
+        while (true) {
+            long before = version;
+            if ((before & 1) == 0) {
+                boolean found = false;
+                long index = indexAtOrBefore(timestampNanos);
+                if (index >= 0) {
+                    int slot = (int) (index & mask);
+                    long next = index + 1;
+                    if (timestamps[slot] == timestampNanos || next >= count) {
+                        found = timestamps[slot] == timestampNanos;
+                        out[0] = xs[slot];
+                        out[1] = ys[slot];
+                        out[2] = headings[slot];
+                    } else {
+                        int nextSlot = (int) (next & mask);
+                        double t = (double) (timestampNanos - timestamps[slot]) / (timestamps[nextSlot] - timestamps[slot]);
+                        out[0] = xs[slot] + (xs[nextSlot] - xs[slot]) * t;
+                        out[1] = ys[slot] + (ys[nextSlot] - ys[slot]) * t;
+                        out[2] = PoseEstimator.wrapAngle(headings[slot]
+                            + PoseEstimator.wrapAngle(headings[nextSlot] - headings[slot]) * t);
+                        found = true;
+                    }
+                }
+                VarHandle.loadLoadFence();
+                if (version == before) return found;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Binary searches for the newest entry at or before a time. The writer can use the result directly;
+     * readers must be inside a version check.
+
+     * @param timestampNanos - the time to look for
+     * @return index - the entry, or -1 if the time is older than everything kept
+     */
+    long indexAtOrBefore(long timestampNanos) {
+        long newest = count - 1;
+        long oldest = Math.max(0, count - capacity());
+        if (newest < 0 || timestamps[(int) (oldest & mask)] > timestampNanos) return -1;
+        long low = oldest;
+        long high = newest;
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (timestamps[(int) (mid & mask)] <= timestampNanos) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /** Returns the index of the newest entry, or -1 if there is none. Writer only. */
+    long newestIndex() {
+        return count - 1;
+    }
+
+    long timestampAt(long index) {
+        return timestamps[(int) (index & mask)];
+    }
+
+    double odometryXAt(long index) {
+        return odometryX[(int) (index & mask)];
+    }
+
+    double odometryYAt(long index) {
+        return odometryY[(int) (index & mask)];
+    }
+
+    double odometryHeadingAt(long index) {
+        return odometryHeading[(int) (index & mask)];
+    }
+
+    /**
+     * Returns the newest timestamp in the history. Safe to call from any thread.
+
+     * @return timestamp - the newest timestamp, or Long.MIN_VALUE if the history is empty
+     */
+    public long newestTimestamp() {
+        while (true) {
+            long before = version;
+            long newest = count > 0 ? timestamps[(int) ((count - 1) & mask)] : Long.MIN_VALUE;
+            VarHandle.loadLoadFence();
+            if ((before & 1) == 0 && version == before) return newest;
+            Thread.onSpinWait();
+        }
+    }
+
+    /** Empties the history. Writer only. */
+    public void clear() {
+        beginWrite();
+        count = 0;
+        endWrite();
+    }
+
+    private void beginWrite() {
+        version = version + 1;
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite() {
+        version = version + 1; // Volatile write publishes everything written before it
+    }
+}
@@ -0,0 +1,111 @@
+package pose.estimator;
+
+/**
+ * Estimates one camera's round trip time and how much it varies, the way TCP does (RFC 6298), and
+ * turns that into a request timeout: the smoothed RTT plus four times the smoothed deviation, kept
+ * between a floor and a ceiling. A fast, steady camera ends up with a timeout a little over its
+ * usual reply time instead of a fixed second, and a jittery one gets more room.
+ *
+ * <p>Until the first reply the timeout is the ceiling. Each timeout doubles it, up to the ceiling,
+ * until a reply brings it back down, so a camera that just got slow is not given up on over and over.
+ * Samples come from the socket's listener thread and the timeout is read from any thread.
+ */
+public class RttEstimator {
+    private static final double ALPHA = 1.0 / 8; // Gain for the smoothed RTT
+    private static final double BETA = 1.0 / 4; // Gain for the smoothed deviation
+
+    private volatile long minTimeoutNanos;
+    private volatile long maxTimeoutNanos;
+
+    private boolean sampled = false;
+    private double smoothedNanos = 0;
+    private double deviationNanos = 0;
+    private int backoffs = 0;
+    private volatile long timeoutNanos;
+
+    /**
+     * @param minTimeoutMs - the shortest timeout, so a run of fast replies cannot make it twitchy
+     * @param maxTimeoutMs - the longest timeout, and the one used before the first reply
+     */
+    public RttEstimator(long minTimeoutMs, long maxTimeoutMs) {
+        applyBounds(minTimeoutMs, maxTimeoutMs);
+    }
+
+    /**
+     * Changes the floor and ceiling of the timeout.
+
+     * @param minTimeoutMs - the shortest timeout
+     * @param maxTimeoutMs - the longest timeout
+     */
+    public synchronized void setBounds(long minTimeoutMs, long maxTimeoutMs) {
+        applyBounds(minTimeoutMs, maxTimeoutMs);
+    }
+
+    // Private so the constructor can use it without a subclass seeing a half built estimator
+    private void applyBounds(long minTimeoutMs, long maxTimeoutMs) {
+        minTimeoutNanos = Math.max(minTimeoutMs, 1) * 1_000_000L;
+        maxTimeoutNanos = Math.max(maxTimeoutMs * 1_000_000L, minTimeoutNanos);
+        update();
+    }
+
+    /**
+     * Adds one measured round trip.
+
+     * @param rttNanos - from sending the request to receiving its reply
+     */
+    public synchronized void sample(long rttNanos) {
+        double rtt = Math.max(rttNanos, 0);
+        if (!sampled) {
+            smoothedNanos = rtt;
+            deviationNanos = rtt / 2;
+            sampled = true;
+        } else {
+            // Deviation first, it is measured against the old average
+            deviationNanos += BETA * (Math.abs(smoothedNanos - rtt) - deviationNanos);
+            smoothedNanos += ALPHA * (rtt - smoothedNanos);
+        }
+        backoffs = 0;
+        update();
+    }
+
+    /** Doubles the timeout after a request timed out, until the next reply. */
+    public synchronized void backoff() {
+        if (backoffs < 20) backoffs++;
+        update();
+    }
+
+    private void update() {
+        long base = sampled ? (long) (smoothedNanos + 4 * deviationNanos) : maxTimeoutNanos;
+        long timeout = Math.max(base, minTimeoutNanos) << backoffs;
+        timeoutNanos = Math.min(Math.max(timeout, minTimeoutNanos), maxTimeoutNanos);
+    }
+
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    public long getTimeoutMs() {
+        return Math.max(timeoutNanos / 1_000_000L, 1);
+    }
+
+    /**
+     * Returns about how long most replies take: the smoothed RTT plus twice the deviation, which for
+     * roughly normal delays is around the 95th percentile. Hedged requests wait this long before
+     * asking another camera.
+
+     * @return nanos - the delay, the timeout before the first reply
+     */
+    public synchronized long getHedgeDelayNanos() {
+        if (!sampled) return timeoutNanos;
+        return Math.min((long) (smoothedNanos + 2 * deviationNanos), timeoutNanos);
+    }
+
+    /** Returns the smoothed round trip time, or -1 before the first reply. */
+    public synchronized long getSmoothedNanos() {
+        return sampled ? (long) smoothedNanos : -1;
+    }
+
+    public synchronized long getDeviationNanos() {
+        return (long) deviationNanos;
+    }
+}
@@ -0,0 +1,145 @@
+package pose.estimator;
+
+import java.util.Arrays;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+
+/**
+ * The apriltags from one tick kept as parallel primitive arrays, one row per tag, so the camera to
+ * robot to field transform can run over all of them in one pass. {@link #transform()} uses the
+ * Vector API when the jdk.incubator.vector module is loaded and a plain loop when it is not. Both
+ * give the same answer as {@link Vision#tagToFieldPose} to within rounding of the trig functions.
+ *
+ * <p>Fill it with {@link #add}, call {@link #transform()}, then read the field pose of each row.
+ * The arrays grow to the most tags seen in a tick and are reused after that.
+ */
+public class TagBatch {
+    /** Whether the Vector API module is loaded, which needs --add-modules jdk.incubator.vector. */
+    public static final boolean VECTOR_API = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private int size = 0;
+
+    // Inputs, filled by add()
+    int[] id = new int[16];
+    double[] forward = new double[16]; // Tag distance in front of the camera, meters
+    double[] left = new double[16]; // Tag distance to the left of the camera, meters
+    double[] yaw = new double[16]; // Tag yaw as the camera sees it, radians
+    double[] cameraRotation = new double[16]; // Which way the camera faces on the robot, radians
+    double[] tagX = new double[16]; // Where the tag is on the field
+    double[] tagY = new double[16];
+    double[] tagAngle = new double[16];
+    double[] distance = new double[16];
+    long[] captureNanos = new long[16];
+
+    // Outputs, filled by transform()
+    double[] fieldX = new double[16];
+    double[] fieldY = new double[16];
+    double[] heading = new double[16];
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a tag if the field layout knows where it is.
+
+     * @param tag - the detection, only read during the call
+     * @param cameraRotationDegrees - which way the camera that saw it faces on the robot
+     * @param captureNanos - when the image was taken, carried through for the caller
+     * @param layout - where the tags are on the field
+     * @return added - false if the tag is not in the layout
+     */
+    public boolean add(Apriltag tag, double cameraRotationDegrees, long captureNanos, FieldLayout layout) {
+        int tagId = tag.id;
+        if (!layout.has(tagId)) return false;
+        if (size == id.length) grow();
+        id[size] = tagId;
+        forward[size] = tag.position[2];
+        left[size] = -tag.position[0];
+        yaw[size] = Math.toRadians(tag.orientation[1]);
+        cameraRotation[size] = Math.toRadians(cameraRotationDegrees);
+        tagX[size] = layout.getX(tagId);
+        tagY[size] = layout.getY(tagId);
+        tagAngle[size] = layout.getAngle(tagId);
+        distance[size] = tag.distance;
+        this.captureNanos[size] = captureNanos;
+        size++;
+        return true;
+    }
+
+    private void grow() {
+        int capacity = id.length * 2;
+        id = Arrays.copyOf(id, capacity);
+        forward = Arrays.copyOf(forward, capacity);
+        left = Arrays.copyOf(left, capacity);
+        yaw = Arrays.copyOf(yaw, capacity);
+        cameraRotation = Arrays.copyOf(cameraRotation, capacity);
+        tagX = Arrays.copyOf(tagX, capacity);
+        tagY = Arrays.copyOf(tagY, capacity);
+        tagAngle = Arrays.copyOf(tagAngle, capacity);
+        distance = Arrays.copyOf(distance, capacity);
+        captureNanos = Arrays.copyOf(captureNanos, capacity);
+        fieldX = Arrays.copyOf(fieldX, capacity);
+        fieldY = Arrays.copyOf(fieldY, capacity);
+        heading = Arrays.copyOf(heading, capacity);
+    }
+
+    /** Works out the robot's field pose from every row, with the Vector API if it is there. */
+    public void transform() {
+        if (VECTOR_API) {
+            VectorTagTransform.transform(this, size);
+        } else {
+            transformScalar(0);
+        }
+    }
+
+    /**
+     * Works out the robot's field pose from the rows from one index on, one row at a time. This is
+     * the fallback and also finishes the rows left over after the last full vector.
+
+     * @param from - the first row to do
+     */
+    public void transformScalar(int from) {
+        for (int i = from; i < size; i++) {
+            double h = PoseEstimator.wrapAngle(tagAngle[i] + cameraRotation[i] + yaw[i]);
+            double cosCamera = Math.cos(cameraRotation[i]);
+            double sinCamera = Math.sin(cameraRotation[i]);
+            double robotX = forward[i] * cosCamera - left[i] * sinCamera;
+            double robotY = forward[i] * sinCamera + left[i] * cosCamera;
+            double cosHeading = Math.cos(h);
+            double sinHeading = Math.sin(h);
+            fieldX[i] = tagX[i] - (robotX * cosHeading - robotY * sinHeading);
+            fieldY[i] = tagY[i] - (robotX * sinHeading + robotY * cosHeading);
+            heading[i] = h;
+        }
+    }
+
+    public int getId(int row) {
+        return id[row];
+    }
+
+    public double getDistance(int row) {
+        return distance[row];
+    }
+
+    public long getCaptureNanos(int row) {
+        return captureNanos[row];
+    }
+
+    public double getFieldX(int row) {
+        return fieldX[row];
+    }
+
+    public double getFieldY(int row) {
+        return fieldY[row];
+    }
+
+    /** Returns the robot's field heading from a row in radians, wrapped to [-pi, pi). */
+    public double getHeading(int row) {
+        return heading[row];
+    }
+}
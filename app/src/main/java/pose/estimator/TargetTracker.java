@@ -0,0 +1,240 @@
+package pose.estimator;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.Piece;
+
+/**
+ * Tracks where the targets one camera sees are relative to it, and how fast that is changing, so the
+ * control loop can ask where a target is now instead of where it was in the last frame. Each target
+ * is a {@link Track} with an alpha-beta filter per value: a measurement pulls the value toward it by
+ * alpha and the rate by beta over the time since the last one, and between measurements the value is
+ * extrapolated along the rate.
+ *
+ * <p>Tags are tracked by id. There is one piece track, and a piece whose center jumps further than
+ * the gate is treated as a different piece and starts the track over. Tracks are made the first time
+ * a target is seen and reused after that, so updating and predicting do not allocate. It is not
+ * thread safe, so update and read it from one loop or lock on it, like {@link Vision} does.
+ */
+public class TargetTracker {
+    // Tag track values
+    public static final int TAG_X = 0; // position[0], meters to the right
+    public static final int TAG_Z = 1; // position[2], meters forward
+    public static final int TAG_YAW = 2; // orientation[1], degrees
+    public static final int TAG_DISTANCE = 3;
+    public static final int TAG_HORIZONTAL_ANGLE = 4;
+    static final int TAG_VALUES = 5;
+
+    // Piece track values
+    public static final int PIECE_DISTANCE = 0;
+    public static final int PIECE_ANGLE = 1;
+    public static final int PIECE_CENTER_X = 2;
+    public static final int PIECE_CENTER_Y = 3;
+    static final int PIECE_VALUES = 4;
+
+    private final double alpha;
+    private final double beta;
+    private final long maxAgeNanos;
+    private final long maxExtrapolationNanos;
+    private final double pieceGatePixels;
+
+    private Track[] tags = new Track[0]; // Indexed by tag id, null until that tag is seen
+    private final Track piece = new Track(-1, PIECE_VALUES);
+    private final double[] measurement = new double[TAG_VALUES];
+
+    /** One target's filtered values and rates. */
+    public class Track {
+        public final int id; // The tag id, or -1 for the piece
+        private final double[] value;
+        private final double[] rate; // Per second
+        private final double[] residualVariance; // Smoothed square of how far measurements land from the prediction
+        private long updateNanos;
+        private long meanIntervalNanos = 0;
+        private long updates = 0;
+
+        Track(int id, int values) {
+            this.id = id;
+            value = new double[values];
+            rate = new double[values];
+            residualVariance = new double[values];
+        }
+
+        void update(double[] measured, long timeNanos) {
+            long dt = timeNanos - updateNanos;
+            if (updates == 0 || dt > maxAgeNanos) {
+                // First sighting, or lost for long enough that the old rate means nothing
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = measured[i];
+                    rate[i] = 0;
+                    residualVariance[i] = 0;
+                }
+                updates = 1;
+                meanIntervalNanos = 0;
+                updateNanos = timeNanos;
+                return;
+            }
+            if (dt <= 0) return; // Same frame again, or out of order
+            double seconds = dt / 1e9;
+            for (int i = 0; i < value.length; i++) {
+                double residual = measured[i] - (value[i] + rate[i] * seconds);
+                value[i] += rate[i] * seconds + alpha * residual;
+                rate[i] += beta * residual / seconds;
+                residualVariance[i] += alpha * (residual * residual - residualVariance[i]);
+            }
+            meanIntervalNanos = meanIntervalNanos == 0 ? dt : meanIntervalNanos + (dt - meanIntervalNanos) / 8;
+            updateNanos = timeNanos;
+            updates++;
+        }
+
+        /**
+         * Extrapolates a value to a time. Past the longest extrapolation the value stops moving.
+
+         * @param index - which value, one of the TAG_ or PIECE_ constants
+         * @param nowNanos - the time to predict for, in System.nanoTime() time
+         * @return value - the predicted value
+         */
+        public double predict(int index, long nowNanos) {
+            long dt = Math.min(Math.max(nowNanos - updateNanos, 0), maxExtrapolationNanos);
+            return value[index] + rate[index] * (dt / 1e9);
+        }
+
+        /** Returns the rate of change of a value per second. */
+        public double getRate(int index) {
+            return rate[index];
+        }
+
+        /** Returns how long ago the last measurement was taken. */
+        public double getAgeMillis(long nowNanos) {
+            return (nowNanos - updateNanos) / 1e6;
+        }
+
+        /**
+         * Returns a rough standard deviation for a predicted value: the typical miss of recent
+         * predictions, growing with how many frame intervals the prediction reaches past the last frame.
+
+         * @param index - which value, one of the TAG_ or PIECE_ constants
+         * @param nowNanos - the time the prediction is for
+         * @return uncertainty - in the units of the value
+         */
+        public double getUncertainty(int index, long nowNanos) {
+            double spread = Math.sqrt(residualVariance[index]);
+            if (meanIntervalNanos == 0) return spread;
+            return spread * (1 + Math.max(nowNanos - updateNanos, 0) / (double) meanIntervalNanos);
+        }
+
+        /** Returns whether the target was measured recently enough to be driven to. */
+        public boolean isFresh(long nowNanos) {
+            return updates > 0 && nowNanos - updateNanos <= maxAgeNanos;
+        }
+
+        public long getUpdates() {
+            return updates;
+        }
+    }
+
+    public TargetTracker() {
+        this(0.5, 0.1, 250, 100, 80);
+    }
+
+    /**
+     * @param alpha - how far each measurement pulls a value, 0 to 1
+     * @param beta - how far each measurement pulls a rate, usually well under alpha
+     * @param maxAgeMs - how long a target keeps being served after its last measurement
+     * @param maxExtrapolationMs - the furthest past its last measurement a value is extrapolated
+     * @param pieceGatePixels - how far the piece center may move between frames and still be the same piece
+     */
+    public TargetTracker(double alpha, double beta, long maxAgeMs, long maxExtrapolationMs, double pieceGatePixels) {
+        this.alpha = alpha;
+        this.beta = beta;
+        this.maxAgeNanos = maxAgeMs * 1_000_000;
+        this.maxExtrapolationNanos = maxExtrapolationMs * 1_000_000;
+        this.pieceGatePixels = pieceGatePixels;
+    }
+
+    /**
+     * Feeds in every tag from one frame.
+
+     * @param frame - the tags, only read during the call
+     * @param captureNanos - when the image was taken
+     */
+    public void updateTags(List<Apriltag> frame, long captureNanos) {
+        for (int i = 0; i < frame.size(); i++) {
+            Apriltag tag = frame.get(i);
+            if (tag.id < 0) continue;
+            if (tag.id >= tags.length) tags = Arrays.copyOf(tags, Math.max(tag.id + 1, tags.length * 2));
+            Track track = tags[tag.id];
+            if (track == null) track = tags[tag.id] = new Track(tag.id, TAG_VALUES);
+            measurement[TAG_X] = tag.position[0];
+            measurement[TAG_Z] = tag.position[2];
+            measurement[TAG_YAW] = tag.orientation[1];
+            measurement[TAG_DISTANCE] = tag.distance;
+            measurement[TAG_HORIZONTAL_ANGLE] = tag.horizontalAngle;
+            track.update(measurement, captureNanos);
+        }
+    }
+
+    /**
+     * Feeds in the piece from one frame.
+
+     * @param seen - the piece, or null if the frame had none, which leaves the track to age out
+     * @param captureNanos - when the image was taken
+     */
+    public void updatePiece(Piece seen, long captureNanos) {
+        if (seen == null) return;
+        if (piece.updates > 0) {
+            double dx = seen.center[0] - piece.predict(PIECE_CENTER_X, captureNanos);
+            double dy = seen.center[1] - piece.predict(PIECE_CENTER_Y, captureNanos);
+            if (dx * dx + dy * dy > pieceGatePixels * pieceGatePixels) {
+                piece.updates = 0; // A different piece, so its motion has nothing to do with the old one
+            }
+        }
+        measurement[PIECE_DISTANCE] = seen.distance;
+        measurement[PIECE_ANGLE] = seen.angle;
+        measurement[PIECE_CENTER_X] = seen.center[0];
+        measurement[PIECE_CENTER_Y] = seen.center[1];
+        piece.update(measurement, captureNanos);
+    }
+
+    /** Returns a tag's track, or null if that tag has never been seen. */
+    public Track getTag(int id) {
+        return id >= 0 && id < tags.length ? tags[id] : null;
+    }
+
+    /**
+     * Finds the fresh tag that is predicted to be nearest.
+
+     * @param ids - the tags to choose from, or null for any
+     * @param nowNanos - the time to predict for
+     * @return track - the nearest tag, or null if none is fresh
+     */
+    public Track nearestTag(BitSet ids, long nowNanos) {
+        Track best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for (int id = 0; id < tags.length; id++) {
+            Track track = tags[id];
+            if (track == null || !track.isFresh(nowNanos) || (ids != null && !ids.get(id))) continue;
+            double distance = track.predict(TAG_DISTANCE, nowNanos);
+            if (distance < bestDistance) {
+                best = track;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /** Returns the piece track, or null if no piece is fresh. */
+    public Track getPiece(long nowNanos) {
+        return piece.isFresh(nowNanos) ? piece : null;
+    }
+
+    /** Forgets every target. */
+    public void clear() {
+        for (Track track : tags) {
+            if (track != null) track.updates = 0;
+        }
+        piece.updates = 0;
+    }
+}
@@ -0,0 +1,483 @@
+package pose.estimator;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.Piece;
+import pose.estimator.Utils.ChassisSpeeds;
+
+/**
+ * A binary log of raw frames, decoded detections, drive outputs and timings, cheap enough to leave on
+ * for every frame.
+ *
+ * <p>Any thread can log. A record is written straight into a preallocated in-memory ring: the writer
+ * claims space with one atomic add, fills it in, and publishes it by writing its length last. Nothing
+ * locks, allocates or touches the disk on the caller's thread, and if the ring is full the record is
+ * dropped and counted rather than making the caller wait. A background thread copies published records
+ * into a memory-mapped file and flushes it now and then. When a file fills up logging moves on to the
+ * next one. {@link TelemetryReader} turns the files back into CSV or JSONL.
+ *
+ * <p>Every record starts with a 16 byte little-endian header: u32 length (header included, padded to
+ * 8 bytes), u16 type, i16 source (camera or task index, -1 for none), i64 System.nanoTime(). Payloads:
+ * <ul>
+ * <li>RAW_TEXT / RAW_BINARY: u8 frame kind ({@link BinaryFrames#KIND_APRILTAGS}, {@link BinaryFrames#KIND_PIECE}
+ * or {@link #FRAME_KIND_OTHER}), u8 flags ({@link #FLAG_STREAM} if it was pushed), u16 zero, u32 byte
+ * count, then the frame. Text frames are UTF-8. These are enough to replay a match, see {@link TrafficReplay}.</li>
+ * <li>MESSAGE: u32 byte count, then the text one byte per char.</li>
+ * <li>APRILTAGS: u32 count, then per tag i32 id and float32 distance, horizontalAngle, verticalAngle,
+ * position[3], orientation[3].</li>
+ * <li>PIECE: float32 distance, angle, center[2], pieceAngle.</li>
+ * <li>CHASSIS_SPEEDS: float64 vx, vy, omega.</li>
+ * <li>TIMING: i64 nanoseconds.</li>
+ * </ul>
+ * Each file starts with a {@link #FILE_HEADER_BYTES} byte header: u32 magic, u32 version, i64 wall
+ * clock millis and i64 System.nanoTime() taken at the same moment, so record times can be turned into
+ * wall clock times, then 8 reserved bytes. The records after it end at the first zero length.
+ */
+public class TelemetryLog implements AutoCloseable {
+    public static final int MAGIC = 0x314D4C54; // "TLM1" in little-endian
+    public static final int VERSION = 2;
+    public static final int FILE_HEADER_BYTES = 32;
+    public static final int RECORD_HEADER_BYTES = 16;
+
+    public static final short TYPE_PADDING = 0; // Fills the end of the ring, never reaches the file
+    public static final short TYPE_RAW_TEXT = 1;
+    public static final short TYPE_RAW_BINARY = 2;
+    public static final short TYPE_APRILTAGS = 3;
+    public static final short TYPE_PIECE = 4;
+    public static final short TYPE_CHASSIS_SPEEDS = 5;
+    public static final short TYPE_TIMING = 6;
+    public static final short TYPE_MESSAGE = 7;
+
+    public static final byte FRAME_KIND_OTHER = 0; // Info and anything else that is not a detection
+    public static final byte FLAG_STREAM = 1;
+    public static final int FRAME_HEADER_BYTES = 8;
+
+    public static final int APRILTAG_BYTES = 40;
+    public static final int PIECE_BYTES = 20;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final TelemetryLog DISABLED = new TelemetryLog();
+    private static volatile TelemetryLog global = DISABLED;
+
+    private final boolean enabled;
+    private final ByteBuffer ring;
+    private final int mask;
+    private final int maxPayloadBytes;
+    private final AtomicLong tail = new AtomicLong(); // Next byte a writer will claim
+    private volatile long head = 0; // Next byte the flush thread will read
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean logRawFrames = true;
+
+    private final Path basePath;
+    private final long fileBytes;
+    private final long flushPeriodNanos;
+    private FileChannel channel;
+    private MappedByteBuffer file;
+    private int fileIndex = 0;
+    private volatile boolean running;
+    private volatile String failure; // Why the flush thread stopped early, null while it is fine
+    private Thread flushThread;
+
+    private TelemetryLog() {
+        enabled = false;
+        ring = null;
+        mask = 0;
+        maxPayloadBytes = 0;
+        basePath = null;
+        fileBytes = 0;
+        flushPeriodNanos = 0;
+    }
+
+    /**
+     * Opens a log and starts its flush thread.
+
+     * @param path - the first file, later ones get .1, .2 and so on added before the extension
+     * @param fileBytes - how big each file is, the whole size is mapped up front
+     * @param ringBytes - how much logging can pile up before the flush thread catches up, rounded up to a power of two
+     * @param flushPeriodMs - how often mapped pages are forced to disk
+     * @throws IllegalArgumentException if a file is too small to hold the largest record
+     */
+    public TelemetryLog(Path path, long fileBytes, int ringBytes, long flushPeriodMs) throws IOException {
+        int size = Integer.highestOneBit(Math.max(ringBytes, 4096) - 1) << 1;
+        maxPayloadBytes = size / 4 - RECORD_HEADER_BYTES;
+        // Otherwise the largest record never fits and every file gets rolled over as soon as it is made
+        long smallestFile = FILE_HEADER_BYTES + maxPayloadBytes + RECORD_HEADER_BYTES + 4;
+        if (fileBytes < smallestFile) {
+            throw new IllegalArgumentException("Telemetry files must be at least " + smallestFile + " bytes for a "
+                + size + " byte ring, got " + fileBytes);
+        }
+        enabled = true;
+        ring = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        mask = size - 1;
+        basePath = path;
+        this.fileBytes = fileBytes;
+        flushPeriodNanos = flushPeriodMs * 1_000_000L;
+        openFile();
+        running = true;
+        flushThread = new Thread(this::flushLoop, "telemetry-flush");
+        flushThread.setDaemon(true);
+        flushThread.start();
+    }
+
+    /** Returns the log everything writes to, which does nothing until {@link #setGlobal(TelemetryLog)}. */
+    public static TelemetryLog global() {
+        return global;
+    }
+
+    public static void setGlobal(TelemetryLog log) {
+        global = log == null ? DISABLED : log;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Sets whether raw frames are logged. They are the largest records, so turn this off if the ring keeps filling. */
+    public void setLogRawFrames(boolean log) {
+        logRawFrames = log;
+    }
+
+    /**
+     * Returns how many records were thrown away because the ring was full. That includes everything
+     * after a failure, see {@link #getFailure()}.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Returns why the log stopped writing, or null if it has not. */
+    public String getFailure() {
+        return failure;
+    }
+
+    /** Returns how many records have reached a file. */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Logs a whole text message as it came off the socket. Messages longer than a quarter of the ring are cut short.
+
+     * @param source - the camera index
+     * @param kind - what the message holds, a BinaryFrames kind or FRAME_KIND_OTHER
+     * @param stream - whether it was pushed on the stream socket rather than answering a request
+     * @param frame - the message, only read during the call
+     */
+    public void rawText(int source, int kind, boolean stream, CharSequence frame) {
+        if (!enabled || !logRawFrames) return;
+        // Work out the UTF-8 size first so the record can be claimed in one go
+        int limit = maxPayloadBytes - FRAME_HEADER_BYTES;
+        int chars = 0;
+        int length = 0;
+        while (chars < frame.length()) {
+            char c = frame.charAt(chars);
+            int size = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 4 : 3;
+            if (length + size > limit) break;
+            length += size;
+            chars += size == 4 ? 2 : 1;
+        }
+        long record = claim(TYPE_RAW_TEXT, source, FRAME_HEADER_BYTES + length);
+        if (record < 0) return;
+        int offset = putFrameHeader(payloadOffset(record), kind, stream, length);
+        for (int i = 0; i < chars; i++) {
+            char c = frame.charAt(i);
+            if (c < 0x80) {
+                ring.put(offset++, (byte) c);
+            } else if (c < 0x800) {
+                ring.put(offset++, (byte) (0xC0 | c >> 6));
+                ring.put(offset++, (byte) (0x80 | c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                int codePoint = i + 1 < frame.length() ? Character.toCodePoint(c, frame.charAt(++i)) : '?';
+                ring.put(offset++, (byte) (0xF0 | codePoint >> 18));
+                ring.put(offset++, (byte) (0x80 | codePoint >> 12 & 0x3F));
+                ring.put(offset++, (byte) (0x80 | codePoint >> 6 & 0x3F));
+                ring.put(offset++, (byte) (0x80 | codePoint & 0x3F));
+            } else {
+                ring.put(offset++, (byte) (0xE0 | c >> 12));
+                ring.put(offset++, (byte) (0x80 | c >> 6 & 0x3F));
+                ring.put(offset++, (byte) (0x80 | c & 0x3F));
+            }
+        }
+        publish(record);
+    }
+
+    /**
+     * Logs a whole binary message as it came off the socket.
+
+     * @param source - the camera index
+     * @param kind - what the message holds, a BinaryFrames kind or FRAME_KIND_OTHER
+     * @param stream - whether it was pushed on the stream socket rather than answering a request
+     * @param frame - the message between its position and limit, which are left alone
+     */
+    public void rawBinary(int source, int kind, boolean stream, ByteBuffer frame) {
+        if (!enabled || !logRawFrames) return;
+        int length = Math.min(frame.remaining(), maxPayloadBytes - FRAME_HEADER_BYTES);
+        long record = claim(TYPE_RAW_BINARY, source, FRAME_HEADER_BYTES + length);
+        if (record < 0) return;
+        int offset = putFrameHeader(payloadOffset(record), kind, stream, length);
+        ring.put(offset, frame, frame.position(), length);
+        publish(record);
+    }
+
+    private int putFrameHeader(int offset, int kind, boolean stream, int length) {
+        ring.put(offset, (byte) kind);
+        ring.put(offset + 1, stream ? FLAG_STREAM : 0);
+        ring.putShort(offset + 2, (short) 0);
+        ring.putInt(offset + 4, length);
+        return offset + FRAME_HEADER_BYTES;
+    }
+
+    /**
+     * Logs a free form message, for errors that used to be printed.
+
+     * @param source - the camera or task index, -1 for none
+     * @param message - the message, stored one byte per char
+     * @return logged - false if the log is disabled, so the caller can print instead
+     */
+    public boolean message(int source, String message) {
+        if (!enabled) return false;
+        int length = Math.min(message.length(), maxPayloadBytes - 4);
+        long record = claim(TYPE_MESSAGE, source, 4 + length);
+        if (record < 0) return true;
+        int offset = payloadOffset(record);
+        ring.putInt(offset, length);
+        offset += 4;
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            ring.put(offset + i, c < 0x80 ? (byte) c : (byte) '?');
+        }
+        publish(record);
+        return true;
+    }
+
+    /**
+     * Logs one camera's decoded apriltags.
+
+     * @param source - the camera index
+     * @param tags - the tags
+     */
+    public void apriltags(int source, List<Apriltag> tags) {
+        if (!enabled) return;
+        int count = Math.min(tags.size(), (maxPayloadBytes - 4) / APRILTAG_BYTES);
+        long record = claim(TYPE_APRILTAGS, source, 4 + count * APRILTAG_BYTES);
+        if (record < 0) return;
+        int offset = payloadOffset(record);
+        ring.putInt(offset, count);
+        offset += 4;
+        for (int i = 0; i < count; i++) {
+            Apriltag tag = tags.get(i);
+            ring.putInt(offset, tag.id);
+            ring.putFloat(offset + 4, (float) tag.distance);
+            ring.putFloat(offset + 8, (float) tag.horizontalAngle);
+            ring.putFloat(offset + 12, (float) tag.verticalAngle);
+            for (int j = 0; j < 3; j++) {
+                ring.putFloat(offset + 16 + 4 * j, (float) tag.position[j]);
+                ring.putFloat(offset + 28 + 4 * j, (float) tag.orientation[j]);
+            }
+            offset += APRILTAG_BYTES;
+        }
+        publish(record);
+    }
+
+    /**
+     * Logs one camera's decoded piece.
+
+     * @param source - the camera index
+     * @param piece - the piece, nothing is logged for null
+     */
+    public void piece(int source, Piece piece) {
+        if (!enabled || piece == null) return;
+        long record = claim(TYPE_PIECE, source, PIECE_BYTES);
+        if (record < 0) return;
+        int offset = payloadOffset(record);
+        ring.putFloat(offset, (float) piece.distance);
+        ring.putFloat(offset + 4, (float) piece.angle);
+        ring.putFloat(offset + 8, (float) piece.center[0]);
+        ring.putFloat(offset + 12, (float) piece.center[1]);
+        ring.putFloat(offset + 16, (float) piece.pieceAngle);
+        publish(record);
+    }
+
+    /**
+     * Logs a computed drive output.
+
+     * @param source - which output this is, -1 if there is only one
+     * @param speeds - the speeds, nothing is logged for null
+     */
+    public void chassisSpeeds(int source, ChassisSpeeds speeds) {
+        if (!enabled || speeds == null) return;
+        long record = claim(TYPE_CHASSIS_SPEEDS, source, 24);
+        if (record < 0) return;
+        int offset = payloadOffset(record);
+        ring.putDouble(offset, speeds.vxMetersPerSecond);
+        ring.putDouble(offset + 8, speeds.vyMetersPerSecond);
+        ring.putDouble(offset + 16, speeds.omegaRadiansPerSecond);
+        publish(record);
+    }
+
+    /**
+     * Logs how long something took.
+
+     * @param source - the task index
+     * @param nanos - the duration
+     */
+    public void timing(int source, long nanos) {
+        if (!enabled) return;
+        long record = claim(TYPE_TIMING, source, 8);
+        if (record < 0) return;
+        ring.putLong(payloadOffset(record), nanos);
+        publish(record);
+    }
+
+    /**
+     * Reserves space in the ring and fills in the header except the length, which {@link #publish(long)}
+     * writes once the payload is in.
+
+     * @return claim - the record's length in the high 32 bits and its ring offset in the low 32 bits, or -1 if it was dropped
+     */
+    private long claim(short type, int source, int payloadBytes) {
+        int length = (RECORD_HEADER_BYTES + payloadBytes + 7) & ~7;
+        int capacity = mask + 1;
+        if (failure != null) {
+            dropped.incrementAndGet(); // Nothing is being written out any more
+            return -1;
+        }
+        while (true) {
+            long start = tail.get();
+            int offset = (int) (start & mask);
+            int toEnd = capacity - offset;
+            int needed = length <= toEnd ? length : toEnd + length; // Records never wrap, pad to the start instead
+            if (start + needed - head > capacity) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (!tail.compareAndSet(start, start + needed)) continue;
+
+            if (needed != length) {
+                ring.putShort(offset + 4, TYPE_PADDING);
+                INT.setRelease(ring, offset, toEnd);
+                offset = 0;
+            }
+            ring.putShort(offset + 4, type);
+            ring.putShort(offset + 6, (short) source);
+            ring.putLong(offset + 8, System.nanoTime());
+            return (long) length << 32 | offset;
+        }
+    }
+
+    private static int payloadOffset(long claim) {
+        return (int) claim + RECORD_HEADER_BYTES;
+    }
+
+    /** Makes a claimed record visible to the flush thread. */
+    private void publish(long claim) {
+        INT.setRelease(ring, (int) claim, (int) (claim >>> 32));
+    }
+
+    private void flushLoop() {
+        long lastForce = System.nanoTime();
+        while (running) {
+            if (!drain()) {
+                if (System.nanoTime() - lastForce > flushPeriodNanos) {
+                    file.force();
+                    lastForce = System.nanoTime();
+                }
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+        drain(); // Whatever was published before close
+        file.force();
+    }
+
+    /** Copies every published record to the file. Returns whether anything was copied. */
+    private boolean drain() {
+        boolean any = false;
+        while (true) {
+            int offset = (int) (head & mask);
+            int length = (int) INT.getAcquire(ring, offset);
+            if (length == 0) return any;
+            short type = ring.getShort(offset + 4);
+            if (type != TYPE_PADDING) {
+                if (failure == null && file.remaining() < length + 4) rollFile();
+                if (failure != null) {
+                    dropped.incrementAndGet(); // The old file is full and there is no new one
+                } else {
+                    file.put(file.position(), ring, offset, length);
+                    file.position(file.position() + length);
+                    written.incrementAndGet();
+                }
+            }
+            for (int i = 0; i < length; i += 8) {
+                ring.putLong(offset + i, 0);
+            }
+            head = head + length; // Volatile write hands the cleared space back to the writers
+            any = true;
+        }
+    }
+
+    private void openFile() throws IOException {
+        Path path = fileIndex == 0 ? basePath : numbered(basePath, fileIndex);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        file = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(MAGIC);
+        file.putInt(VERSION);
+        file.putLong(System.currentTimeMillis());
+        file.putLong(System.nanoTime());
+        file.putLong(0);
+    }
+
+    /** Moves on to the next file, or stops the log if it can not be opened. */
+    private void rollFile() {
+        try {
+            file.force();
+            channel.close();
+            fileIndex++;
+            openFile();
+        } catch (IOException e) {
+            failure = "Could not open telemetry file " + numbered(basePath, fileIndex) + ", logging stopped: " + e.getMessage();
+            System.out.println(failure);
+            running = false;
+        }
+    }
+
+    /** Returns the name of a later file: telemetry.bin becomes telemetry.1.bin and so on. */
+    static Path numbered(Path path, int index) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String numbered = dot < 0 ? name + "." + index : name.substring(0, dot) + "." + index + name.substring(dot);
+        Path parent = path.getParent();
+        return parent == null ? Paths.get(numbered) : parent.resolve(numbered);
+    }
+
+    /** Writes out everything logged so far and closes the file. */
+    @Override
+    public void close() throws IOException {
+        if (!enabled) return;
+        running = false;
+        if (flushThread != null) {
+            LockSupport.unpark(flushThread);
+            try {
+                flushThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+}
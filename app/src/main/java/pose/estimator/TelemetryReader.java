@@ -0,0 +1,230 @@
+package pose.estimator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Turns a {@link TelemetryLog} file into CSV or JSONL, one line per record.
+ *
+ * <p>Usage: {@code TelemetryReader <file> [--format=csv|jsonl]}. Times are printed as milliseconds
+ * since the log was opened, along with the wall clock time. CSV rows have the same first four columns
+ * for every record type, and the rest depend on the type. Raw frames start with their kind and
+ * whether they were pushed on the stream.
+ */
+public class TelemetryReader {
+    private final MappedByteBuffer buffer;
+    private final long startMillis;
+    private final long startNanos;
+
+    public TelemetryReader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < TelemetryLog.FILE_HEADER_BYTES || buffer.getInt(0) != TelemetryLog.MAGIC) {
+            throw new IOException(file + " is not a telemetry log");
+        }
+        int version = buffer.getInt(4);
+        if (version != TelemetryLog.VERSION) {
+            throw new IOException("Unsupported telemetry log version " + version);
+        }
+        startMillis = buffer.getLong(8);
+        startNanos = buffer.getLong(16);
+    }
+
+    /**
+     * Writes every record in the file.
+
+     * @param out - where to write the lines
+     * @param jsonl - true for JSONL, false for CSV
+     * @return count - how many records were written
+     */
+    public long write(Writer out, boolean jsonl) throws IOException {
+        if (!jsonl) out.write("time_ms,wall_ms,type,source,values\n");
+        long count = 0;
+        int offset = TelemetryLog.FILE_HEADER_BYTES;
+        StringBuilder line = new StringBuilder(256);
+        while (offset + TelemetryLog.RECORD_HEADER_BYTES <= buffer.limit()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0) break; // The rest of the file was never written
+            short type = buffer.getShort(offset + 4);
+            short source = buffer.getShort(offset + 6);
+            long nanos = buffer.getLong(offset + 8);
+            double timeMs = (nanos - startNanos) / 1e6;
+            long wallMs = startMillis + (nanos - startNanos) / 1_000_000;
+
+            line.setLength(0);
+            if (jsonl) {
+                line.append("{\"timeMs\":").append(timeMs).append(",\"wallMs\":").append(wallMs)
+                    .append(",\"type\":\"").append(typeName(type)).append("\",\"source\":").append(source);
+            } else {
+                line.append(timeMs).append(',').append(wallMs).append(',').append(typeName(type)).append(',').append(source);
+            }
+            appendPayload(line, type, offset + TelemetryLog.RECORD_HEADER_BYTES, jsonl);
+            line.append(jsonl ? "}\n" : "\n");
+            out.append(line);
+            offset += length;
+            count++;
+        }
+        out.flush();
+        return count;
+    }
+
+    private void appendPayload(StringBuilder line, short type, int offset, boolean jsonl) {
+        switch (type) {
+            case TelemetryLog.TYPE_RAW_TEXT: {
+                int length = appendFrameHeader(line, offset, jsonl);
+                byte[] bytes = new byte[length];
+                buffer.get(offset + TelemetryLog.FRAME_HEADER_BYTES, bytes);
+                if (jsonl) line.append(",\"text\":");
+                else line.append(',');
+                appendQuoted(line, new String(bytes, StandardCharsets.UTF_8), jsonl);
+                break;
+            }
+            case TelemetryLog.TYPE_MESSAGE: {
+                int length = buffer.getInt(offset);
+                StringBuilder text = new StringBuilder(length);
+                for (int i = 0; i < length; i++) {
+                    text.append((char) (buffer.get(offset + 4 + i) & 0xFF));
+                }
+                if (jsonl) line.append(",\"text\":");
+                else line.append(',');
+                appendQuoted(line, text, jsonl);
+                break;
+            }
+            case TelemetryLog.TYPE_RAW_BINARY: {
+                int length = appendFrameHeader(line, offset, jsonl);
+                line.append(jsonl ? ",\"hex\":\"" : ",");
+                for (int i = 0; i < length; i++) {
+                    int b = buffer.get(offset + TelemetryLog.FRAME_HEADER_BYTES + i) & 0xFF;
+                    line.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 15, 16));
+                }
+                if (jsonl) line.append('"');
+                break;
+            }
+            case TelemetryLog.TYPE_APRILTAGS: {
+                int count = buffer.getInt(offset);
+                line.append(jsonl ? ",\"tags\":[" : ",");
+                for (int i = 0; i < count; i++) {
+                    int tag = offset + 4 + i * TelemetryLog.APRILTAG_BYTES;
+                    if (jsonl) {
+                        if (i > 0) line.append(',');
+                        line.append("{\"id\":").append(buffer.getInt(tag))
+                            .append(",\"distance\":").append(buffer.getFloat(tag + 4))
+                            .append(",\"horizontalAngle\":").append(buffer.getFloat(tag + 8))
+                            .append(",\"verticalAngle\":").append(buffer.getFloat(tag + 12))
+                            .append(",\"position\":[").append(buffer.getFloat(tag + 16)).append(',')
+                            .append(buffer.getFloat(tag + 20)).append(',').append(buffer.getFloat(tag + 24))
+                            .append("],\"orientation\":[").append(buffer.getFloat(tag + 28)).append(',')
+                            .append(buffer.getFloat(tag + 32)).append(',').append(buffer.getFloat(tag + 36)).append("]}");
+                    } else {
+                        // One cell per tag: id distance horizontal vertical x y z roll pitch yaw
+                        if (i > 0) line.append(';');
+                        line.append(buffer.getInt(tag));
+                        for (int f = 4; f < TelemetryLog.APRILTAG_BYTES; f += 4) {
+                            line.append(' ').append(buffer.getFloat(tag + f));
+                        }
+                    }
+                }
+                if (jsonl) line.append(']');
+                break;
+            }
+            case TelemetryLog.TYPE_PIECE:
+                if (jsonl) {
+                    line.append(",\"distance\":").append(buffer.getFloat(offset))
+                        .append(",\"angle\":").append(buffer.getFloat(offset + 4))
+                        .append(",\"center\":[").append(buffer.getFloat(offset + 8)).append(',').append(buffer.getFloat(offset + 12))
+                        .append("],\"pieceAngle\":").append(buffer.getFloat(offset + 16));
+                } else {
+                    for (int f = 0; f < TelemetryLog.PIECE_BYTES; f += 4) {
+                        line.append(',').append(buffer.getFloat(offset + f));
+                    }
+                }
+                break;
+            case TelemetryLog.TYPE_CHASSIS_SPEEDS:
+                if (jsonl) {
+                    line.append(",\"vx\":").append(buffer.getDouble(offset))
+                        .append(",\"vy\":").append(buffer.getDouble(offset + 8))
+                        .append(",\"omega\":").append(buffer.getDouble(offset + 16));
+                } else {
+                    line.append(',').append(buffer.getDouble(offset))
+                        .append(',').append(buffer.getDouble(offset + 8))
+                        .append(',').append(buffer.getDouble(offset + 16));
+                }
+                break;
+            case TelemetryLog.TYPE_TIMING:
+                line.append(jsonl ? ",\"nanos\":" : ",").append(buffer.getLong(offset));
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Writes the kind and whether it was streamed, and returns the frame length
+    private int appendFrameHeader(StringBuilder line, int offset, boolean jsonl) {
+        String kind = frameKindName(buffer.get(offset));
+        boolean stream = (buffer.get(offset + 1) & TelemetryLog.FLAG_STREAM) != 0;
+        if (jsonl) line.append(",\"kind\":\"").append(kind).append("\",\"stream\":").append(stream);
+        else line.append(',').append(kind).append(',').append(stream);
+        return buffer.getInt(offset + 4);
+    }
+
+    static String frameKindName(byte kind) {
+        switch (kind) {
+            case BinaryFrames.KIND_APRILTAGS: return "apriltags";
+            case BinaryFrames.KIND_PIECE: return "piece";
+            default: return "other";
+        }
+    }
+
+    private static void appendQuoted(StringBuilder line, CharSequence text, boolean jsonl) {
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') line.append(jsonl ? "\\\"" : "\"\"");
+            else if (jsonl && c == '\\') line.append("\\\\");
+            else if (jsonl && c < 0x20) line.append(String.format("\\u%04x", (int) c));
+            else line.append(c);
+        }
+        line.append('"');
+    }
+
+    static String typeName(short type) {
+        switch (type) {
+            case TelemetryLog.TYPE_RAW_TEXT: return "raw_text";
+            case TelemetryLog.TYPE_RAW_BINARY: return "raw_binary";
+            case TelemetryLog.TYPE_APRILTAGS: return "apriltags";
+            case TelemetryLog.TYPE_PIECE: return "piece";
+            case TelemetryLog.TYPE_CHASSIS_SPEEDS: return "chassis_speeds";
+            case TelemetryLog.TYPE_TIMING: return "timing";
+            case TelemetryLog.TYPE_MESSAGE: return "message";
+            default: return "unknown_" + type;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: TelemetryReader <file> [--format=csv|jsonl]");
+            return;
+        }
+        boolean jsonl = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--format=jsonl")) jsonl = true;
+            else if (!args[i].equals("--format=csv")) {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        new TelemetryReader(Paths.get(args[0])).write(out, jsonl);
+    }
+}
@@ -0,0 +1,293 @@
+package pose.estimator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link TelemetryLog} opened for reading record by record, along with the files it rolled over to.
+ * The files are memory mapped and never copied onto the heap, so a whole match can be opened at once.
+ * A sparse index of record times is built when the recording is opened so {@link Cursor#seek(long)}
+ * only has to walk a few records.
+ *
+ * <p>Records are in the order they were published, which is the order the times were taken in apart
+ * from threads racing each other by a few microseconds.
+ */
+public class TelemetryRecording {
+    private static final int INDEX_STRIDE = 256; // Records between index entries
+
+    private final MappedByteBuffer[] files;
+    private final long startMillis;
+    private final long startNanos;
+    private long endNanos;
+    private long recordCount;
+    private int sourceCount;
+
+    // Every INDEX_STRIDE'th record: its time, file and offset
+    private long[] indexNanos = new long[64];
+    private int[] indexFile = new int[64];
+    private int[] indexOffset = new int[64];
+    private int indexSize;
+
+    /**
+     * Opens a recording and every numbered file after it.
+
+     * @param file - the first file, the path that was passed to {@link TelemetryLog#TelemetryLog(Path, long, int, long)}
+     */
+    public TelemetryRecording(Path file) throws IOException {
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        Path path = file;
+        while (Files.exists(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                checkHeader(path, buffer);
+                mapped.add(buffer);
+            }
+            path = TelemetryLog.numbered(file, mapped.size());
+        }
+        if (mapped.isEmpty()) throw new IOException(file + " does not exist");
+        files = mapped.toArray(new MappedByteBuffer[0]);
+        startMillis = files[0].getLong(8);
+        startNanos = files[0].getLong(16);
+        endNanos = startNanos;
+        buildIndex();
+    }
+
+    private static void checkHeader(Path path, ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < TelemetryLog.FILE_HEADER_BYTES || buffer.getInt(0) != TelemetryLog.MAGIC) {
+            throw new IOException(path + " is not a telemetry log");
+        }
+        int version = buffer.getInt(4);
+        if (version != TelemetryLog.VERSION) {
+            throw new IOException("Unsupported telemetry log version " + version + " in " + path);
+        }
+    }
+
+    private void buildIndex() {
+        // Only the headers are touched, hopping from one to the next by length
+        for (int f = 0; f < files.length; f++) {
+            MappedByteBuffer buffer = files[f];
+            int offset = TelemetryLog.FILE_HEADER_BYTES;
+            while (offset + TelemetryLog.RECORD_HEADER_BYTES <= buffer.limit()) {
+                int length = buffer.getInt(offset);
+                if (length <= 0) break;
+                long nanos = buffer.getLong(offset + 8);
+                if (recordCount % INDEX_STRIDE == 0) {
+                    if (indexSize == indexNanos.length) {
+                        indexNanos = Arrays.copyOf(indexNanos, indexSize * 2);
+                        indexFile = Arrays.copyOf(indexFile, indexSize * 2);
+                        indexOffset = Arrays.copyOf(indexOffset, indexSize * 2);
+                    }
+                    indexNanos[indexSize] = nanos;
+                    indexFile[indexSize] = f;
+                    indexOffset[indexSize] = offset;
+                    indexSize++;
+                }
+                endNanos = Math.max(endNanos, nanos);
+                sourceCount = Math.max(sourceCount, buffer.getShort(offset + 6) + 1);
+                recordCount++;
+                offset += length;
+            }
+        }
+    }
+
+    /** Returns the System.nanoTime() the log was opened at, which record times are relative to. */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /** Returns the wall clock time the log was opened at. */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /** Returns the time of the latest record. */
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /** Returns one more than the highest source in the recording, which is the number of cameras that were logged. */
+    public int getSourceCount() {
+        return sourceCount;
+    }
+
+    public int getFileCount() {
+        return files.length;
+    }
+
+    /**
+     * Makes a cursor positioned before the first record. Each cursor is for one thread, but any number
+     * of them can read the same recording.
+
+     * @return cursor - a new cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Walks the records in order. Only {@link #frameText()} allocates. The getters describe the record
+     * {@link #next()} last moved to.
+     */
+    public class Cursor {
+        private final ByteBuffer[] views = new ByteBuffer[files.length]; // Private views so frame() can move their bounds
+        private byte[] text = new byte[1024];
+        private int file = 0;
+        private int offset = 0; // Offset of the current record, 0 before the first
+        private int nextOffset = TelemetryLog.FILE_HEADER_BYTES;
+
+        Cursor() {
+            for (int i = 0; i < files.length; i++) {
+                views[i] = files[i].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        /**
+         * Moves to the next record.
+
+         * @return moved - false once there are no more records
+         */
+        public boolean next() {
+            while (file < files.length) {
+                MappedByteBuffer buffer = files[file];
+                if (nextOffset + TelemetryLog.RECORD_HEADER_BYTES <= buffer.limit()) {
+                    int length = buffer.getInt(nextOffset);
+                    if (length > 0) {
+                        offset = nextOffset;
+                        nextOffset += length;
+                        return true;
+                    }
+                }
+                // The rest of this file was never written
+                file++;
+                nextOffset = TelemetryLog.FILE_HEADER_BYTES;
+            }
+            offset = 0;
+            return false;
+        }
+
+        /**
+         * Moves so that the next call to {@link #next()} returns the first record at or after a time.
+
+         * @param nanos - the time to seek to, on the same clock as {@link #getStartNanos()}
+         */
+        public void seek(long nanos) {
+            // Binary search the index for the last entry before the time, then walk forward from it
+            int low = 0;
+            int high = indexSize - 1;
+            int entry = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexNanos[mid] < nanos) {
+                    entry = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            rewind();
+            if (entry < 0) return;
+            file = indexFile[entry];
+            nextOffset = indexOffset[entry];
+            while (file < files.length) {
+                MappedByteBuffer buffer = files[file];
+                if (nextOffset + TelemetryLog.RECORD_HEADER_BYTES > buffer.limit() || buffer.getInt(nextOffset) <= 0) {
+                    file++;
+                    nextOffset = TelemetryLog.FILE_HEADER_BYTES;
+                } else if (buffer.getLong(nextOffset + 8) < nanos) {
+                    nextOffset += buffer.getInt(nextOffset);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /** Moves back to before the first record. */
+        public void rewind() {
+            file = 0;
+            offset = 0;
+            nextOffset = TelemetryLog.FILE_HEADER_BYTES;
+        }
+
+        /** Returns the buffer the current record is in. Read it with absolute gets only, it is shared. */
+        public ByteBuffer buffer() {
+            return files[file];
+        }
+
+        public short type() {
+            return files[file].getShort(offset + 4);
+        }
+
+        public short source() {
+            return files[file].getShort(offset + 6);
+        }
+
+        public long timeNanos() {
+            return files[file].getLong(offset + 8);
+        }
+
+        /** Returns where the current record's payload starts in {@link #buffer()}. */
+        public int payloadOffset() {
+            return offset + TelemetryLog.RECORD_HEADER_BYTES;
+        }
+
+        /** Returns the frame kind of a raw text or raw binary record. */
+        public byte frameKind() {
+            return files[file].get(payloadOffset());
+        }
+
+        /** Returns whether a raw text or raw binary record was pushed on the stream socket. */
+        public boolean isStream() {
+            return (files[file].get(payloadOffset() + 1) & TelemetryLog.FLAG_STREAM) != 0;
+        }
+
+        /** Returns where the frame of a raw text or raw binary record starts in {@link #buffer()}. */
+        public int frameOffset() {
+            return payloadOffset() + TelemetryLog.FRAME_HEADER_BYTES;
+        }
+
+        public int frameLength() {
+            return files[file].getInt(payloadOffset() + 4);
+        }
+
+        /**
+         * Returns the frame of a raw binary record as a buffer whose position and limit bound it. The
+         * buffer belongs to this cursor and is moved by the next call.
+
+         * @return frame - the bytes that came off the socket
+         */
+        public ByteBuffer frame() {
+            ByteBuffer view = views[file];
+            int start = frameOffset();
+            view.clear();
+            view.position(start).limit(start + frameLength());
+            return view;
+        }
+
+        /**
+         * Decodes the frame of a raw text record.
+
+         * @return text - the message that came off the socket
+         */
+        public String frameText() {
+            int length = frameLength();
+            if (text.length < length) text = new byte[Math.max(length, text.length * 2)];
+            files[file].get(frameOffset(), text, 0, length);
+            return new String(text, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
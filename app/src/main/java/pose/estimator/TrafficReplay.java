@@ -0,0 +1,266 @@
+package pose.estimator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import pose.estimator.Constants.VisionConstants;
+import pose.estimator.Utils.ChassisSpeeds;
+
+/**
+ * Plays the camera traffic in a {@link TelemetryRecording} back into {@link Vision} with no network.
+ * Every apriltag and piece frame the cameras sent, pushed or as a reply, is handed to a
+ * {@link ReplayCamera} through the same decode path a live stream uses, in the order it was recorded.
+ * Playback can keep the recorded gaps between frames or go as fast as the decoding allows.
+ *
+ * <p>Frame times are stamped when a frame is decoded, like they are live, so anything that looks at
+ * frame age, like the pose estimator, sees compressed time when replaying as fast as possible. The
+ * drive and angle outputs only depend on which frames have arrived, so they come out the same on
+ * every run and can be diffed between versions.
+ *
+ * <p>Usage: {@code TrafficReplay <file> [--rate-hz=50] [--real-time] [--rotations=0,90] [--layout=field_layout.json]}.
+ * It prints one CSV row of outputs per tick, then how long the ticks took.
+ */
+public class TrafficReplay {
+    private final TelemetryRecording.Cursor cursor;
+    private final ReplayCamera[] cameras;
+    private boolean pending = false; // The cursor is on a frame that has not been delivered yet
+    private long replayedFrames = 0;
+
+    /**
+     * A camera that serves whatever the replay last handed it. It always says it is connected so
+     * Vision takes it, and serves its latest frame however old it is since nothing newer is coming.
+     */
+    public static class ReplayCamera extends CameraWebsocketClient {
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return getLatestApriltagFrame() != null || getLatestPieceFrame() != null;
+        }
+
+        @Override
+        public CompletableFuture<List<Apriltag>> getApriltagsAsync() {
+            DetectionFrame<ApriltagList> frame = getLatestApriltagFrame();
+            return CompletableFuture.completedFuture(frame == null ? Collections.emptyList() : frame.value);
+        }
+
+        @Override
+        public CompletableFuture<Piece> getPieceAsync() {
+            DetectionFrame<Piece> frame = getLatestPieceFrame();
+            return CompletableFuture.completedFuture(frame == null ? null : frame.value);
+        }
+    }
+
+    public TrafficReplay(TelemetryRecording recording) {
+        this(recording, Math.max(recording.getSourceCount(), 1));
+    }
+
+    /**
+     * @param recording - the recording to play
+     * @param cameraCount - how many cameras to make, frames from higher sources are skipped
+     */
+    public TrafficReplay(TelemetryRecording recording, int cameraCount) {
+        cursor = recording.cursor();
+        cameras = new ReplayCamera[cameraCount];
+        for (int i = 0; i < cameraCount; i++) {
+            cameras[i] = new ReplayCamera();
+        }
+    }
+
+    /** Returns the cameras, indexed by the source they were logged under. */
+    public ReplayCamera[] getCameras() {
+        return cameras;
+    }
+
+    public long getReplayedFrames() {
+        return replayedFrames;
+    }
+
+    /**
+     * Delivers the next frame to its camera.
+
+     * @return time - when the frame was recorded, or -1 once the recording has run out
+     */
+    public long step() {
+        if (!pending && !nextFrame()) return -1;
+        pending = false;
+        long time = cursor.timeNanos();
+        ReplayCamera camera = cameras[cursor.source()];
+        if (cursor.type() == TelemetryLog.TYPE_RAW_TEXT) {
+            camera.onStreamMessage(cursor.frameText());
+        } else {
+            camera.onStreamBinary(cursor.frame());
+        }
+        replayedFrames++;
+        return time;
+    }
+
+    /**
+     * Delivers every frame recorded before a time.
+
+     * @param nanos - the recorded time to stop at
+     * @return delivered - how many frames were delivered
+     */
+    public int replayUntil(long nanos) {
+        int delivered = 0;
+        while (pending || nextFrame()) {
+            pending = true;
+            if (cursor.timeNanos() >= nanos) break;
+            step();
+            delivered++;
+        }
+        return delivered;
+    }
+
+    /**
+     * Skips to a time without delivering what comes before it. The cameras keep the frames they had.
+
+     * @param nanos - the recorded time to continue from
+     */
+    public void seek(long nanos) {
+        cursor.seek(nanos);
+        pending = false;
+    }
+
+    /**
+     * Delivers every remaining frame.
+
+     * @param realTime - true to sleep through the recorded gaps between frames, false to go as fast as possible
+     * @return delivered - how many frames were delivered
+     */
+    public long run(boolean realTime) {
+        long delivered = 0;
+        long firstRecorded = -1;
+        long firstReplayed = 0;
+        while (pending || nextFrame()) {
+            pending = true;
+            if (realTime) {
+                long recorded = cursor.timeNanos();
+                if (firstRecorded < 0) {
+                    firstRecorded = recorded;
+                    firstReplayed = System.nanoTime();
+                }
+                sleepUntil(firstReplayed + recorded - firstRecorded);
+            }
+            step();
+            delivered++;
+        }
+        return delivered;
+    }
+
+    // Moves the cursor to the next detection frame from a camera we have
+    private boolean nextFrame() {
+        while (cursor.next()) {
+            short type = cursor.type();
+            if (type != TelemetryLog.TYPE_RAW_TEXT && type != TelemetryLog.TYPE_RAW_BINARY) continue;
+            byte kind = cursor.frameKind();
+            if (kind != BinaryFrames.KIND_APRILTAGS && kind != BinaryFrames.KIND_PIECE) continue;
+            short source = cursor.source();
+            if (source >= 0 && source < cameras.length) return true;
+        }
+        return false;
+    }
+
+    private static void sleepUntil(long nanos) {
+        long wait = nanos - System.nanoTime();
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: TrafficReplay <file> [--rate-hz=50] [--real-time] [--rotations=0,90] [--layout=field_layout.json]");
+            return;
+        }
+        double rateHz = 50;
+        boolean realTime = false;
+        double[] rotations = new double[0];
+        Path layoutFile = Paths.get(VisionConstants.fieldLayoutFile);
+        for (int i = 1; i < args.length; i++) {
+            String[] parts = args[i].replaceFirst("^--", "").split("=", 2);
+            String value = parts.length > 1 ? parts[1] : "true";
+            switch (parts[0]) {
+                case "rate-hz": rateHz = Double.parseDouble(value); break;
+                case "real-time": realTime = Boolean.parseBoolean(value); break;
+                case "layout": layoutFile = Paths.get(value); break;
+                case "rotations": {
+                    String[] values = value.split(",");
+                    rotations = new double[values.length];
+                    for (int r = 0; r < values.length; r++) rotations[r] = Double.parseDouble(values[r]);
+                    break;
+                }
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        TelemetryRecording recording = new TelemetryRecording(Paths.get(args[0]));
+        TrafficReplay replay = new TrafficReplay(recording);
+        ReplayCamera[] cameras = replay.getCameras();
+        for (int i = 0; i < cameras.length && i < rotations.length; i++) {
+            cameras[i].setRotation(rotations[i]);
+        }
+        FieldLayout layout;
+        try {
+            layout = FieldLayout.load(layoutFile);
+        } catch (IOException e) {
+            System.err.println("No field layout at " + layoutFile + ", tag angles will be 0");
+            layout = new FieldLayout();
+        }
+        Vision vision = new Vision(cameras, layout);
+        boolean pieceCamera = VisionConstants.pieceDetectionCamIndex < cameras.length;
+
+        // Ticks are laid over the recorded time, so the same recording always gives the same rows
+        long tickNanos = (long) (1e9 / rateHz);
+        long start = recording.getStartNanos();
+        long replayStart = System.nanoTime();
+        LatencyHistogram tickTimes = new LatencyHistogram();
+        StringBuilder row = new StringBuilder(256);
+        System.out.println("time_ms,frames,z_angle,tag_vx,tag_vy,tag_omega,piece_vx,piece_vy,piece_omega");
+        for (long t = start + tickNanos; t < recording.getEndNanos() + tickNanos; t += tickNanos) {
+            if (realTime) sleepUntil(replayStart + t - start);
+            int frames = replay.replayUntil(t);
+
+            long tickStart = System.nanoTime();
+            vision.beginTick();
+            double zAngle = vision.getZAngle();
+            ChassisSpeeds tagDrive = vision.getTagDrive(0);
+            ChassisSpeeds pieceDrive = pieceCamera ? vision.getPieceDrive() : null;
+            tickTimes.recordSince(tickStart);
+
+            row.setLength(0);
+            row.append((t - start) / 1e6).append(',').append(frames).append(',').append(zAngle);
+            appendSpeeds(row, tagDrive);
+            appendSpeeds(row, pieceDrive);
+            System.out.println(row);
+        }
+        // Timing goes to stderr so the rows can be diffed between runs
+        long elapsed = System.nanoTime() - replayStart;
+        System.err.println("Replayed " + replay.getReplayedFrames() + " frames of " + (recording.getEndNanos() - start) / 1e6
+            + " ms in " + elapsed / 1e6 + " ms");
+        System.err.println("Tick: " + tickTimes.snapshot());
+    }
+
+    private static void appendSpeeds(StringBuilder row, ChassisSpeeds speeds) {
+        if (speeds == null) {
+            row.append(",,,");
+        } else {
+            row.append(',').append(speeds.vxMetersPerSecond)
+                .append(',').append(speeds.vyMetersPerSecond)
+                .append(',').append(speeds.omegaRadiansPerSecond);
+        }
+    }
+}
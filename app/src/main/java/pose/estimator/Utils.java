@@ -1,7 +1,7 @@
 package pose.estimator;
 
 class Utils{
-    static class PIDController{
+    static final class PIDController{
         double kP;
         double kI;
         double kD;
@@ -41,11 +41,26 @@ class Utils{
         double vyMetersPerSecond;
         double omegaRadiansPerSecond;
 
+        public ChassisSpeeds() {
+        }
+
         public ChassisSpeeds(double vxMetersPerSecond, double vyMetersPerSecond, double omegaRadiansPerSecond) {
             this.vxMetersPerSecond = vxMetersPerSecond;
             this.vyMetersPerSecond = vyMetersPerSecond;
             this.omegaRadiansPerSecond = omegaRadiansPerSecond;
         }
+
+        // Lets one object be reused as the output of every tick
+        public ChassisSpeeds set(double vxMetersPerSecond, double vyMetersPerSecond, double omegaRadiansPerSecond) {
+            this.vxMetersPerSecond = vxMetersPerSecond;
+            this.vyMetersPerSecond = vyMetersPerSecond;
+            this.omegaRadiansPerSecond = omegaRadiansPerSecond;
+            return this;
+        }
+
+        public ChassisSpeeds set(ChassisSpeeds other) {
+            return set(other.vxMetersPerSecond, other.vyMetersPerSecond, other.omegaRadiansPerSecond);
+        }
         public void print(){
             System.out.println("vx: " + vxMetersPerSecond + ", vy: " + vyMetersPerSecond + ", omega: " + omegaRadiansPerSecond);
         }
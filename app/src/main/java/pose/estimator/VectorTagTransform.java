@@ -0,0 +1,55 @@
+package pose.estimator;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The Vector API version of {@link TagBatch#transformScalar}. It lives in its own class so the
+ * incubator module is only loaded when {@link TagBatch#VECTOR_API} says it is there.
+ */
+final class VectorTagTransform {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final double TWO_PI = 2 * Math.PI;
+    // Pushes (heading + pi) / 2pi above zero so truncating it is the same as flooring it. Headings
+    // are a sum of three angles so they never get anywhere near this many turns.
+    private static final double TURN_OFFSET = 1024;
+
+    private VectorTagTransform() {}
+
+    static void transform(TagBatch batch, int size) {
+        int bound = SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector rotation = DoubleVector.fromArray(SPECIES, batch.cameraRotation, i);
+            DoubleVector h = DoubleVector.fromArray(SPECIES, batch.tagAngle, i)
+                .add(rotation)
+                .add(DoubleVector.fromArray(SPECIES, batch.yaw, i));
+            // Same as PoseEstimator.wrapAngle: h - 2pi * floor((h + pi) / 2pi)
+            DoubleVector turns = h.add(Math.PI).div(TWO_PI).add(TURN_OFFSET)
+                .convert(VectorOperators.D2L, 0)
+                .convert(VectorOperators.L2D, 0)
+                .reinterpretAsDoubles()
+                .sub(TURN_OFFSET);
+            h = h.sub(turns.mul(TWO_PI));
+
+            DoubleVector cosCamera = rotation.lanewise(VectorOperators.COS);
+            DoubleVector sinCamera = rotation.lanewise(VectorOperators.SIN);
+            DoubleVector forward = DoubleVector.fromArray(SPECIES, batch.forward, i);
+            DoubleVector left = DoubleVector.fromArray(SPECIES, batch.left, i);
+            DoubleVector robotX = forward.mul(cosCamera).sub(left.mul(sinCamera));
+            DoubleVector robotY = forward.mul(sinCamera).add(left.mul(cosCamera));
+
+            DoubleVector cosHeading = h.lanewise(VectorOperators.COS);
+            DoubleVector sinHeading = h.lanewise(VectorOperators.SIN);
+            DoubleVector.fromArray(SPECIES, batch.tagX, i)
+                .sub(robotX.mul(cosHeading).sub(robotY.mul(sinHeading)))
+                .intoArray(batch.fieldX, i);
+            DoubleVector.fromArray(SPECIES, batch.tagY, i)
+                .sub(robotX.mul(sinHeading).add(robotY.mul(cosHeading)))
+                .intoArray(batch.fieldY, i);
+            h.intoArray(batch.heading, i);
+        }
+        batch.transformScalar(i);
+    }
+}
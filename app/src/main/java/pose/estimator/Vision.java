@@ -1,9 +1,23 @@
 package pose.estimator;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 
 import pose.estimator.Utils.PIDController;
@@ -11,62 +25,494 @@ import pose.estimator.Utils.ChassisSpeeds;
 import pose.estimator.Constants.DriverConstants;
 import pose.estimator.Constants.VisionConstants;
 import pose.estimator.CameraWebsocketClient.Apriltag;
+import pose.estimator.CameraWebsocketClient.ApriltagList;
 import pose.estimator.CameraWebsocketClient.Info;
 
 public class Vision {
     public static enum Side {FRONT, LEFT, BACK, RIGHT}
 
+    /** What the drive methods that fill in a ChassisSpeeds found. The speeds are zeroed unless it is OK. */
+    public static enum DriveStatus {
+        OK,
+        NO_TARGET, // The camera sees no tag or piece to drive to
+        NO_CAMERA // There is no camera at that index
+    }
+
     private String ip;
+    private CameraRegistry registry; // Only set when the cameras came from one
     private ArrayList<CameraWebsocketClient> camClientList = new ArrayList<CameraWebsocketClient>();
-    private HashMap<String, Integer[]> apriltagPoses; // Hashmap of [angle, x, y] where angle is the angle of the tag in rads, where 
+    private final HashMap<String, Integer> cameraIndexes = new HashMap<>(); // Logical id to camera index
+    private final List<String> cameraIds = new ArrayList<>();
+    private FieldLayout fieldLayout; // Where each tag is on the field, looked up by int tag id
+
+    private final ConnectionManager connectionManager = new ConnectionManager(
+        VisionConstants.connectionCheckPeriodMs, VisionConstants.reconnectBaseDelayMs, VisionConstants.reconnectMaxDelayMs);
+
+    private final BitSet lateCameras = new BitSet();
+    private long lateCameraCount = 0;
+
+    private final PoseEstimator poseEstimator = new PoseEstimator();
+    private final TagBatch tagBatch = new TagBatch(); // Every tag fused in a tick, transformed together
 
+    // Target motion per camera, fed at the vision rate and read at the control rate. The control task
+    // has its own thread so a slow fetch can not hold it up, so each tracker is locked while in use.
+    private volatile TargetTracker[] trackers = new TargetTracker[0];
+    private long[] trackedTagSequences = new long[0]; // Last frame or tick fed to each tracker
+    private long[] trackedPieceSequences = new long[0];
+    private long[] fusedFrameSequences = new long[0]; // Last streamed frame fused per camera, so none is used twice
+
+    // Every piece from every camera in the robot frame, for nearest piece queries
+    private final PieceIndex pieceIndex = new PieceIndex(VisionConstants.pieceCellSize, VisionConstants.pieceIndexRange);
+    private long[] indexedPieceSequences = new long[0]; // Last streamed frame put in the index per camera
+
+    // Tags each camera saw this tick, so every query in one tick works from the same frame
+    private long tickSequence = 0; // Stays 0 until beginTick is first called, which leaves the snapshot off
+    private long[] snapshotTicks = new long[0];
+    private List<?>[] snapshotTags = new List<?>[0];
+
+    // Single camera fetches that were hedged to an overlapping camera
+    private int answeringCamera = -1; // Which camera answered the last hedged fetch
+    private long hedgeCount = 0;
+    private ApriltagList[] reframedTags = new ApriltagList[0]; // Another camera's tags moved into each camera's frame
+
+    // The controllers keep an integral and the last error, so each pair belongs to one thread. The fetching
+    // drive methods use the first pair from whichever loop calls them, and the predicted ones use their
+    // own pair on the control thread.
     private PIDController turnPID = new PIDController(0.1, 0.0, 0.0);
     private PIDController movePID = new PIDController(0.1, 0.0, 0.0);
+    private final PIDController predictedTurnPID = new PIDController(0.1, 0.0, 0.0);
+    private final PIDController predictedMovePID = new PIDController(0.1, 0.0, 0.0);
     
     public Vision(String ipAddress, int[] cameraRotation, HashMap<String, Integer[]> apriltagPoses) {
+        // apriltagPoses maps tag ids to [angle, x, y] with the angle in radians
+        this(ipAddress, cameraRotation, FieldLayout.fromTagPoses(apriltagPoses));
+    }
+
+    public Vision(String ipAddress, int[] cameraRotation, FieldLayout fieldLayout) {
         // This constructor is not ideal but it works for the example. IRL you would want to use the other constructor so you can still have a list of cameras outside of the Interface.
         // Maybe I will make this the only class that you need to use with the cameras then it will be fine.
         // Camera Rotation is the rotation of each camera in degrees. 0 is the default rotation.
         // Apriltag Angles is a hashmap of the apriltag id to the angle of the tag in degrees. 0 is facing the camera.
 
         this.ip = ipAddress;
-        this.apriltagPoses = apriltagPoses;
-        boolean failed = false;
-        int i = 0;
-        while(!failed) {
-            System.out.println("Trying to commect to: " + ip + ":" + (i + 50000));
-            CameraWebsocketClient newCam = new CameraWebsocketClient(ip + ":" + (i + 50000), 1000);
-            newCam.setupConnection();
+        this.fieldLayout = fieldLayout;
+        int firstPort = VisionConstants.firstCameraPort;
+        Path snapshotFile = Paths.get(VisionConstants.cameraSnapshotFile);
+        CameraSnapshot snapshot = loadSnapshot(snapshotFile, cameraRotation.length);
+        int[] ports = null;
+        CameraWebsocketClient[] found = null;
+        if (snapshot != null) {
+            // Only the ports that had a camera last time, so no time goes to waiting on empty ones
+            ports = snapshot.getPorts();
+            System.out.println("Connecting to " + ports.length + " cameras from " + snapshotFile);
+            found = ConnectionManager.connectAll(ip, ports, VisionConstants.connectTimeoutMs);
+            boolean any = false;
+            for (int i = 0; i < found.length; i++) {
+                found[i].setKnownInfo(snapshot.getInfo(ports[i]));
+                any |= found[i].isConnected();
+            }
+            if (!any) {
+                System.out.println("No camera in " + snapshotFile + " answered, looking on every port");
+                snapshot = null;
+                found = null;
+            }
+        }
+        if (found == null) {
+            // Every port gets probed at once, and the rotation goes with the port so a gap does not shift them
+            System.out.println("Looking for cameras on " + ip + " ports " + firstPort
+                + " to " + (firstPort + cameraRotation.length - 1));
+            found = ConnectionManager.discover(ip, firstPort, cameraRotation.length, VisionConstants.connectTimeoutMs);
+            ports = new int[found.length];
+            for (int i = 0; i < ports.length; i++) {
+                ports[i] = firstPort + i;
+            }
+        }
+        // A camera from the snapshot that did not answer is kept, it was there last time and the manager keeps trying it
+        int[] cameraPorts = new int[found.length];
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] != null) {
+                cameraPorts[camClientList.size()] = ports[i];
+                found[i].setRotation(cameraRotation[ports[i] - firstPort]);
+                addCamera(found[i], "camera" + camClientList.size());
+                connectionManager.addCamera(found[i]);
+            }
+        }
+        connectionManager.start();
+        startSnapshotCheck(snapshot, snapshotFile, Arrays.copyOf(cameraPorts, camClientList.size()), cameraRotation.length);
 
-            if(newCam.isConnected()) {
-                newCam.setRotation(cameraRotation[i]);
-                camClientList.add(newCam);
-                i++;
-            } else {
-                failed = true;
+        setUpControllers();
+
+    }
+
+    private CameraSnapshot loadSnapshot(Path file, int portCount) {
+        if (!Files.exists(file)) return null;
+        try {
+            CameraSnapshot snapshot = CameraSnapshot.load(file);
+            if (!snapshot.getHost().equals(ip)) return null; // A different robot, or a bench setup
+            for (int port : snapshot.getPorts()) {
+                if (port < VisionConstants.firstCameraPort || port >= VisionConstants.firstCameraPort + portCount) return null;
             }
+            return snapshot.size() > 0 ? snapshot : null;
+        } catch (IOException e) {
+            System.out.println("Ignoring the camera snapshot " + file + ": " + e.getMessage());
+            return null;
         }
+    }
 
-        turnPID.enableContinuousInput(-180, 180);
-        turnPID.setSetpoint(0);
-        movePID.enableContinuousInput(-180, 180);
-        movePID.setSetpoint(0);
+    /**
+     * Checks the cameras against the snapshot they were started from on a background thread, so the
+     * robot does not wait for it. Every camera is asked for its info again, which replaces the info
+     * from the snapshot, and after a snapshot start the ports that were left out are probed in case a
+     * camera was added. The snapshot is saved again if anything changed, which after a start without
+     * one is always.
+     */
+    private void startSnapshotCheck(CameraSnapshot loaded, Path file, int[] cameraPorts, int portCount) {
+        List<CameraWebsocketClient> cameras = new ArrayList<>(camClientList);
+        Thread checker = new Thread(() -> {
+            CameraSnapshot fresh = new CameraSnapshot(ip);
+            CompletableFuture<?>[] replies = new CompletableFuture<?>[cameras.size()]; // Only waited on, the info lands in the clients
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = cameras.get(i).getInfoAsync();
+            }
+            try {
+                CompletableFuture.allOf(replies).get(VisionConstants.snapshotCheckTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Cameras that did not answer keep the info they were started with
+            }
+            for (int i = 0; i < cameras.size(); i++) {
+                Info info = cameras.get(i).getKnownInfo();
+                String was = loaded == null ? null : loaded.getIdentifier(cameraPorts[i]);
+                if (was != null && info != null && info.identifier != null && !was.equals(info.identifier)) {
+                    System.out.println("The camera on port " + cameraPorts[i] + " is " + info.identifier + " now, it was " + was);
+                }
+                fresh.put(cameraPorts[i], info);
+            }
+
+            if (loaded != null) {
+                int[] missing = new int[portCount];
+                int missingCount = 0;
+                for (int port = VisionConstants.firstCameraPort; port < VisionConstants.firstCameraPort + portCount; port++) {
+                    if (loaded.getIdentifier(port) == null) missing[missingCount++] = port;
+                }
+                CameraWebsocketClient[] extra = ConnectionManager.connectAll(ip, Arrays.copyOf(missing, missingCount), VisionConstants.connectTimeoutMs);
+                for (int i = 0; i < extra.length; i++) {
+                    if (!extra[i].isConnected()) continue;
+                    Info info = extra[i].getInfo();
+                    extra[i].disconnect();
+                    if (fresh.put(missing[i], info)) {
+                        System.out.println("Found a camera on port " + missing[i] + " that is not in the snapshot, it will be used after a restart");
+                    }
+                }
+            }
 
+            if (fresh.size() == 0 || fresh.equals(loaded)) return;
+            try {
+                fresh.save(file);
+            } catch (IOException e) {
+                System.out.println("Could not save the camera snapshot " + file);
+            }
+        }, "camera-snapshot");
+        checker.setDaemon(true);
+        checker.start();
     }
 
     public Vision(CameraWebsocketClient[] camList, HashMap<String, Integer[]> apriltagPoses) {
-        this.apriltagPoses = apriltagPoses;
+        this(camList, FieldLayout.fromTagPoses(apriltagPoses));
+    }
+
+    public Vision(CameraWebsocketClient[] camList, FieldLayout fieldLayout) {
+        this.fieldLayout = fieldLayout;
         for(CameraWebsocketClient newCam : camList) {
             if(newCam.isConnected()) {
-                camClientList.add(newCam);
+                addCamera(newCam, "camera" + camClientList.size());
+                connectionManager.addCamera(newCam); // Reconnects it if its socket drops later
             }
         }
+        connectionManager.start();
 
         // Erm, what the sigma? IS this corect? I think it is but I am not sure
+        setUpControllers();
+    }
+
+    /**
+     * Uses every camera in a registry, which may span several coprocessors. Camera indexes are the
+     * registry's, so cameras that are down at startup keep their place and their logical id.
+
+     * @param registry - the cameras, connected or not, see {@link CameraRegistry#connect()}
+     * @param fieldLayout - where the tags are on the field
+     */
+    public Vision(CameraRegistry registry, FieldLayout fieldLayout) {
+        this.registry = registry;
+        this.fieldLayout = fieldLayout;
+        for (int i = 0; i < registry.size(); i++) {
+            addCamera(registry.getCameras().get(i), registry.getId(i));
+        }
+
+        setUpControllers();
+    }
+
+    private void setUpControllers() {
         turnPID.enableContinuousInput(-180, 180);
         turnPID.setSetpoint(0);
         movePID.enableContinuousInput(-180, 180);
         movePID.setSetpoint(0);
+        predictedTurnPID.enableContinuousInput(-180, 180);
+        predictedTurnPID.setSetpoint(0);
+        predictedMovePID.enableContinuousInput(-180, 180);
+        predictedMovePID.setSetpoint(0);
+    }
+
+    private void addCamera(CameraWebsocketClient cam, String id) {
+        cam.setDetectionCacheTtlMs(VisionConstants.detectionCacheTtlMs);
+        cam.getRttEstimator().setBounds(VisionConstants.minRequestTimeoutMs, VisionConstants.connectTimeoutMs);
+        cam.getCircuitBreaker().configure(VisionConstants.breakerFailureThreshold,
+            VisionConstants.breakerProbeBaseDelayMs, VisionConstants.breakerProbeMaxDelayMs);
+        cam.setStreamOverflowPolicy(VisionConstants.streamOverflowPolicy);
+        cam.setTelemetrySource(camClientList.size());
+        cameraIndexes.put(id, camClientList.size());
+        cameraIds.add(id);
+        camClientList.add(cam);
+    }
+
+    /**
+     * Looks up a camera index from a logical id. Cameras that did not come from a
+     * {@link CameraRegistry} are "camera0", "camera1" and so on.
+
+     * @param id - the logical id
+     * @return camIndex - the index to pass to the other queries, or -1 if there is no such camera
+     */
+    public int getCameraIndex(String id) {
+        Integer index = cameraIndexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    public String getCameraId(int camIndex) {
+        return cameraIds.get(camIndex);
+    }
+
+    /**
+     * Builds a set of camera indexes from logical ids, for the queries that take a subset of cameras.
+
+     * @param ids - the logical ids, unknown ones are left out
+     * @return cameras - the set, build it once and reuse it
+     */
+    public BitSet cameraSet(String... ids) {
+        BitSet set = new BitSet(camClientList.size());
+        for (String id : ids) {
+            int index = getCameraIndex(id);
+            if (index >= 0) set.set(index);
+        }
+        return set;
+    }
+
+    /**
+     * Asks every camera to push its detections instead of waiting to be asked. After this the tag and
+     * piece queries read the newest pushed frame and do not block. Cameras whose server does not
+     * support streaming keep using request and response.
+
+     * @return streaming - how many cameras accepted the subscription
+     */
+    public int enableStreaming() {
+        int streaming = 0;
+        for (CameraWebsocketClient cam : camClientList) {
+            if (cam.subscribe()) {
+                streaming++;
+            }
+        }
+        return streaming;
+    }
+
+    public void disableStreaming() {
+        for (CameraWebsocketClient cam : camClientList) {
+            cam.unsubscribe();
+        }
+    }
+
+    /**
+     * Starts a new tick. Until the next call, every query that needs a camera's tags uses the first
+     * set fetched from that camera this tick, so calling getTagDrive, lockonTagSpeeds and getZAngle
+     * in the same tick costs one request per camera. Call it at the top of each loop, from the thread
+     * that runs the loop. Without it every query fetches on its own, still merged by the client's cache.
+     */
+    public void beginTick() {
+        if (snapshotTicks.length != camClientList.size()) {
+            snapshotTicks = new long[camClientList.size()];
+            snapshotTags = new List<?>[camClientList.size()];
+        }
+        tickSequence++;
+    }
+
+    /** Returns this tick's tags for a camera, fetching them if nothing has this tick yet. */
+    @SuppressWarnings("unchecked")
+    private List<Apriltag> tagsThisTick(int camIndex) {
+        if (tickSequence == 0) {
+            return fetchTags(camIndex);
+        }
+        if (snapshotTicks[camIndex] != tickSequence) {
+            rememberTags(camIndex, fetchTags(camIndex));
+        }
+        return (List<Apriltag>) snapshotTags[camIndex];
+    }
+
+    /** Fetches a camera's tags, from an overlapping camera if that one answers first. */
+    private List<Apriltag> fetchTags(int camIndex) {
+        CameraWebsocketClient cam = camClientList.get(camIndex);
+        if (cam.isStreaming()) return cam.getApriltags(); // Already pushed, nothing to wait on
+        List<Apriltag> tags = hedgedFetch(camIndex, CameraWebsocketClient::getApriltagsAsync, found -> !found.isEmpty());
+        if (tags == null) return Collections.emptyList();
+        if (answeringCamera == camIndex) return tags;
+        return reframeTags(tags, answeringCamera, camIndex);
+    }
+
+    /**
+     * Asks one camera for something, and if it has not answered by the time it usually has, asks the
+     * nearest camera that overlaps it as well and takes whichever answer comes first. A camera whose
+     * breaker is open is skipped straight to the other one, so the wait depends on the faster of the
+     * two, not the slower. Answers that found nothing only win if nothing better comes. Sets
+     * answeringCamera to whichever camera the result came from.
+
+     * @param camIndex - the camera that was asked for
+     * @param fetch - starts the request on a camera
+     * @param usable - whether an answer found what was being looked for
+     * @return result - the answer, or null if neither camera answered in time
+     */
+    private <T> T hedgedFetch(int camIndex, Function<CameraWebsocketClient, CompletableFuture<T>> fetch, Predicate<T> usable) {
+        answeringCamera = camIndex;
+        CameraWebsocketClient primary = camClientList.get(camIndex);
+        CompletableFuture<T> first = fetch.apply(primary);
+        if (first.isDone() && !first.isCompletedExceptionally()) return first.getNow(null); // Cached, the usual case
+
+        long start = System.nanoTime();
+        long end = start + primary.getRttEstimator().getTimeoutNanos();
+        int hedge = VisionConstants.hedgeRequests ? hedgeCameraFor(camIndex) : -1;
+        if (hedge < 0) return await(first, end);
+        long hedgeAt = primary.getCircuitBreaker().allowRequest() ? start + primary.getRttEstimator().getHedgeDelayNanos() : start;
+        T result = await(first, Math.min(hedgeAt, end));
+        // Only hedge for speed, a camera that answered with nothing is not late
+        if (first.isDone() && !first.isCompletedExceptionally()) return result;
+
+        hedgeCount++;
+        CameraWebsocketClient other = camClientList.get(hedge);
+        CompletableFuture<T> second = fetch.apply(other);
+        end = Math.max(end, System.nanoTime() + other.getRttEstimator().getTimeoutNanos());
+        while (true) {
+            T firstResult = resultOrNull(first);
+            if (firstResult != null && usable.test(firstResult)) return firstResult;
+            T secondResult = resultOrNull(second);
+            if (secondResult != null && usable.test(secondResult)) {
+                answeringCamera = hedge;
+                return secondResult;
+            }
+            if (first.isDone() && second.isDone()) {
+                if (firstResult != null) return firstResult;
+                answeringCamera = hedge;
+                return secondResult;
+            }
+            CompletableFuture<?> next = first.isDone() ? second : second.isDone() ? first : CompletableFuture.anyOf(first, second);
+            if (await(next, end) == null && System.nanoTime() - end >= 0) return null;
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future, long endNanos) {
+        try {
+            return future.get(Math.max(endNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null; // Timed out or failed, the caller checks the future itself
+        }
+    }
+
+    private static <T> T resultOrNull(CompletableFuture<T> future) {
+        return future.isDone() && !future.isCompletedExceptionally() ? future.getNow(null) : null;
+    }
+
+    /**
+     * Picks the camera to hedge a request to: the one pointed closest to it within a field of view,
+     * so they see some of the same things, that is connected and not being skipped.
+
+     * @param camIndex - the camera being hedged
+     * @return hedge - the other camera's index, or -1 if none overlaps
+     */
+    int hedgeCameraFor(int camIndex) {
+        double rotation = camClientList.get(camIndex).getRotation();
+        int best = -1;
+        double bestDifference = VisionConstants.cameraFieldOfViewDegrees;
+        for (int c = 0; c < camClientList.size(); c++) {
+            if (c == camIndex) continue;
+            CameraWebsocketClient cam = camClientList.get(c);
+            if (!cam.isConnected() || !cam.getCircuitBreaker().allowRequest()) continue;
+            double difference = Math.abs(Math.IEEEremainder(cam.getRotation() - rotation, 360));
+            if (difference < bestDifference) {
+                best = c;
+                bestDifference = difference;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Copies tags another camera saw into how this camera would have seen them. Cameras are taken to
+     * sit at the robot's center, like everywhere else here, so this is just a turn about the vertical.
+     * The vertical angle is left alone since turning does not change it.
+
+     * @param tags - the tags as the other camera saw them
+     * @param from - the camera that saw them
+     * @param to - the camera to move them into
+     * @return tags - the moved tags, valid until the next time tags are moved into this camera
+     */
+    private List<Apriltag> reframeTags(List<Apriltag> tags, int from, int to) {
+        if (reframedTags.length != camClientList.size()) {
+            reframedTags = Arrays.copyOf(reframedTags, camClientList.size());
+        }
+        if (reframedTags[to] == null) reframedTags[to] = new ApriltagList();
+        ApriltagList out = reframedTags[to];
+        out.clear();
+        double turnDegrees = camClientList.get(from).getRotation() - camClientList.get(to).getRotation();
+        double turn = Math.toRadians(turnDegrees);
+        double cos = Math.cos(turn);
+        double sin = Math.sin(turn);
+        for (int i = 0; i < tags.size(); i++) {
+            Apriltag tag = tags.get(i);
+            Apriltag moved = out.add();
+            moved.tagId = tag.tagId;
+            moved.id = tag.id;
+            moved.fullString = tag.fullString;
+            // x is to the right and z forward, so left is -x
+            double forward = tag.position[2];
+            double left = -tag.position[0];
+            moved.position[0] = -(forward * sin + left * cos);
+            moved.position[1] = tag.position[1];
+            moved.position[2] = forward * cos - left * sin;
+            moved.orientation[0] = tag.orientation[0];
+            moved.orientation[1] = tag.orientation[1] + turnDegrees;
+            moved.orientation[2] = tag.orientation[2];
+            moved.distance = tag.distance;
+            moved.horizontalAngle = Math.atan2(moved.position[0], moved.position[2]);
+            moved.verticalAngle = tag.verticalAngle;
+        }
+        return out;
+    }
+
+    /**
+     * Returns how many single camera fetches have been hedged to another camera since startup.
+
+     * @return count - the number of hedged fetches
+     */
+    public long getHedgeCount() {
+        return hedgeCount;
+    }
+
+    private void rememberTags(int camIndex, List<Apriltag> tags) {
+        if (tickSequence == 0) return;
+        snapshotTicks[camIndex] = tickSequence;
+        snapshotTags[camIndex] = tags;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Apriltag> snapshotOrNull(int camIndex) {
+        return tickSequence != 0 && snapshotTicks[camIndex] == tickSequence ? (List<Apriltag>) snapshotTags[camIndex] : null;
     }
 
     public void clear(){
@@ -76,48 +522,165 @@ public class Vision {
     }
 
     public ChassisSpeeds frontToSide(ChassisSpeeds inSpeeds, Side side){
+        if (side == Side.FRONT) return inSpeeds;
+        return frontToSide(inSpeeds, side, new ChassisSpeeds());
+    }
+
+    /**
+     * Turns speeds for driving toward the front into speeds for driving toward another side, without allocating.
+
+     * @param inSpeeds - the speeds relative to the front
+     * @param side - the side to drive toward
+     * @param out - receives the turned speeds, may be inSpeeds itself
+     * @return out - the same object that was passed in
+     */
+    public ChassisSpeeds frontToSide(ChassisSpeeds inSpeeds, Side side, ChassisSpeeds out){
+        double vx = inSpeeds.vxMetersPerSecond;
+        double vy = inSpeeds.vyMetersPerSecond;
+        double omega = inSpeeds.omegaRadiansPerSecond;
         switch(side) {
-            case FRONT:
-                return inSpeeds;
             case LEFT:
-                return new ChassisSpeeds(-inSpeeds.vyMetersPerSecond, inSpeeds.vxMetersPerSecond, inSpeeds.omegaRadiansPerSecond);
+                return out.set(-vy, vx, omega);
             case RIGHT:
-                return new ChassisSpeeds(inSpeeds.vyMetersPerSecond, -inSpeeds.vxMetersPerSecond, inSpeeds.omegaRadiansPerSecond);
+                return out.set(vy, -vx, omega);
             case BACK:
-                return new ChassisSpeeds(-inSpeeds.vxMetersPerSecond, -inSpeeds.vyMetersPerSecond, inSpeeds.omegaRadiansPerSecond);
+                return out.set(-vx, -vy, omega);
             default:
-                return inSpeeds;
-          }
-          
+                return out.set(vx, vy, omega);
+        }
     }
 
     public double getZAngle(int maxTags) {
-        // This function returns the average calculated angle of the robot in degrees on the z axis, aka the only one the robot turns on. Limit the number of tags to use with maxTags if you want.
+        return getZAngle(null, maxTags);
+    }
 
-        double ZAngle = 0;
-        double numTags = 0;
-        for(CameraWebsocketClient cam : camClientList) {
-            List<CameraWebsocketClient.Apriltag> tags = cam.getApriltags();
+    /**
+     * Averages the robot's field heading from the tags some of the cameras can see.
 
-            System.out.println(tags.size());
+     * @param cameras - the camera indexes to use, null for all of them
+     * @param maxTags - stop after this many tags
+     * @return angle - degrees, or 69420 if no camera saw a tag
+     */
+    public double getZAngle(BitSet cameras, int maxTags) {
+        // This function returns the average calculated angle of the robot in degrees on the z axis, aka the only one the robot turns on. Limit the number of tags to use with maxTags if you want.
 
+        double[] sum = {0, 0}; // [ZAngle, numTags]
+        forEachCameraTags(cameras, VisionConstants.tickDeadlineMs, (cam, tags) -> {
             for (CameraWebsocketClient.Apriltag tag : tags) {
-                Integer[] tagAngleArray = apriltagPoses.getOrDefault(tag.tagId, new Integer[]{0, 0, 0});
-                int tagAngle = tagAngleArray[0];
-                ZAngle += tagAngle * (180/Math.PI) + cam.getRotation() + tag.orientation[1];
-                numTags++;
-                if(numTags == maxTags) {
+                double tagAngle = fieldLayout.has(tag.id) ? fieldLayout.getAngle(tag.id) : 0;
+                sum[0] += tagAngle * (180/Math.PI) + cam.getRotation() + tag.orientation[1];
+                sum[1]++;
+                if(sum[1] == maxTags) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        if(sum[1] == 0) {
+            return 69420.0; // nice
+        }
+        return sum[0]/sum[1] % 360;
+    }
+
+    /**
+     * Asks every camera for apriltags at the same time and hands each answer to merge as soon as it
+     * arrives. Cameras that have not answered when the deadline passes are dropped for this tick and
+     * reported through {@link #getLateCameras()}, so one dead camera costs the deadline, not a timeout each.
+
+     * @param cameras - the camera indexes to ask, null for all of them
+     * @param deadlineMs - how long the whole fan out may take
+     * @param merge - called once per answering camera, return false to stop waiting for the rest
+     */
+    private void forEachCameraTags(BitSet cameras, long deadlineMs, BiPredicate<CameraWebsocketClient, List<Apriltag>> merge) {
+        int camCount = camClientList.size();
+        BitSet pending = new BitSet(camCount);
+        pending.set(0, camCount);
+        if (cameras != null) pending.and(cameras);
+        BlockingQueue<Integer> answered = new ArrayBlockingQueue<>(Math.max(camCount, 1));
+        List<CompletableFuture<List<Apriltag>>> requests = new ArrayList<>(Collections.nCopies(camCount, null));
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+            int camIndex = i;
+            List<Apriltag> snapshot = snapshotOrNull(i);
+            CompletableFuture<List<Apriltag>> request = snapshot != null ? CompletableFuture.completedFuture(snapshot) : camClientList.get(i).getApriltagsAsync();
+            requests.set(i, request);
+            request.whenComplete((tags, error) -> answered.offer(camIndex));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        boolean timedOut = false;
+        try {
+            while (!pending.isEmpty()) {
+                Integer camIndex = answered.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (camIndex == null) {
+                    timedOut = true;
                     break;
                 }
+                pending.clear(camIndex);
+                CompletableFuture<List<Apriltag>> request = requests.get(camIndex);
+                List<Apriltag> tags = request.isCompletedExceptionally() ? null : request.getNow(null);
+                if (tags == null) continue;
+                rememberTags(camIndex, tags);
+                if (!merge.test(camClientList.get(camIndex), tags)) {
+                    pending.clear();
+                }
             }
-            if(numTags == maxTags) {
-                break;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lateCameras) {
+            lateCameras.clear();
+            for (int i = 0; timedOut && i < camCount; i++) {
+                if (pending.get(i)) {
+                    lateCameras.set(i);
+                    lateCameraCount++;
+                }
             }
         }
-        if(numTags == 0) {
-            return 69420.0; // nice
+    }
+
+    /**
+     * Returns the cameras that missed the deadline during the last fan out.
+
+     * @return lateCameras - the indexes of the cameras that were dropped
+     */
+    public BitSet getLateCameras() {
+        synchronized (lateCameras) {
+            return (BitSet) lateCameras.clone();
+        }
+    }
+
+    /**
+     * Returns how many camera answers have been dropped for being late since startup.
+
+     * @return count - the number of late camera answers
+     */
+    public long getLateCameraCount() {
+        synchronized (lateCameras) {
+            return lateCameraCount;
+        }
+    }
+
+    /**
+     * Returns the connected cameras, in the same order as the camera indexes used everywhere else.
+
+     * @return cameras - the camera clients, do not add or remove from it
+     */
+    public List<CameraWebsocketClient> getCameras() {
+        return Collections.unmodifiableList(camClientList);
+    }
+
+    /**
+     * Returns the connection state of every camera, in camera index order.
+
+     * @return states - one state per camera
+     */
+    public CameraWebsocketClient.ConnectionState[] getConnectionStates() {
+        CameraWebsocketClient.ConnectionState[] states = new CameraWebsocketClient.ConnectionState[camClientList.size()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = camClientList.get(i).getConnectionState();
         }
-        return ZAngle/numTags % 360;
+        return states;
     }
 
     public double getZAngle() {
@@ -125,6 +688,270 @@ public class Vision {
         return getZAngle(4);
     }
 
+    /**
+     * Turns every tag every camera can see into a field relative robot pose and fuses them into the
+     * pose estimate. Each tag is applied at the time its image was taken rather than now, see
+     * {@link PoseEstimator}. Call it once per loop; it does not allocate once the cameras are streaming.
+
+     * @return used - how many tags were accepted into the estimate this call
+     */
+    public int updatePoseEstimate() {
+        return updatePoseEstimate(null);
+    }
+
+    /**
+     * Same as {@link #updatePoseEstimate()}, using only some of the cameras. Cameras that are not
+     * streaming are all asked at once, so a tick takes as long as the slowest of them rather than
+     * all of them added up, and one that misses the deadline is left out of this tick.
+
+     * @param cameras - the camera indexes to use, null for all of them
+     * @return used - how many tags were accepted into the estimate this call
+     */
+    public int updatePoseEstimate(BitSet cameras) {
+        long now = System.nanoTime();
+        long latency = (long) (VisionConstants.visionLatencyMs * 1e6);
+        poseEstimator.predict(now);
+        if (fusedFrameSequences.length != camClientList.size()) {
+            fusedFrameSequences = new long[camClientList.size()];
+        }
+        tagBatch.clear();
+        BitSet polled = null;
+        for (int c = 0; c < camClientList.size(); c++) {
+            if (cameras != null && !cameras.get(c)) continue;
+            CameraWebsocketClient cam = camClientList.get(c);
+            CameraWebsocketClient.DetectionFrame<CameraWebsocketClient.ApriltagList> frame = cam.getLatestApriltagFrame();
+            if (frame != null && cam.isStreaming()) {
+                if (frame.sequence == fusedFrameSequences[c]) continue;
+                fusedFrameSequences[c] = frame.sequence;
+                addTags(frame.value, cam, frame.receivedNanos - latency);
+            } else {
+                if (polled == null) polled = new BitSet(camClientList.size());
+                polled.set(c);
+            }
+        }
+        if (polled != null) {
+            forEachCameraTags(polled, VisionConstants.tickDeadlineMs, (cam, tags) -> {
+                addTags(tags, cam, now - latency);
+                return true;
+            });
+        }
+
+        // Same math as tagToFieldPose, for every camera's tags in one go
+        tagBatch.transform();
+        int used = 0;
+        for (int row = 0; row < tagBatch.size(); row++) {
+            double distance = Math.max(tagBatch.getDistance(row), 0.1);
+            double scale = distance * distance;
+            if (poseEstimator.addMeasurement(tagBatch.getFieldX(row), tagBatch.getFieldY(row), tagBatch.getHeading(row),
+                    VisionConstants.visionPositionStdDevAtOneMeter * scale,
+                    VisionConstants.visionHeadingStdDevAtOneMeter * scale, tagBatch.getCaptureNanos(row))) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    private void addTags(List<Apriltag> tags, CameraWebsocketClient cam, long captureNanos) {
+        for (int t = 0; t < tags.size(); t++) {
+            tagBatch.add(tags.get(t), cam.getRotation(), captureNanos, fieldLayout);
+        }
+    }
+
+    /**
+     * Feeds each camera's newest tags and piece into its {@link TargetTracker}. Pushed frames are fed
+     * once each at their capture time. Polled cameras are fed the tags already fetched this tick, by
+     * {@link #updatePoseEstimate()} for example, and the piece camera is asked for its piece. Call it
+     * once per vision tick, after beginTick().
+     */
+    public void updateTargets() {
+        int camCount = camClientList.size();
+        TargetTracker[] trackers = this.trackers;
+        if (trackers.length != camCount) {
+            trackers = new TargetTracker[camCount];
+            for (int i = 0; i < camCount; i++) {
+                trackers[i] = new TargetTracker(VisionConstants.trackerAlpha, VisionConstants.trackerBeta,
+                    VisionConstants.targetMaxAgeMs, VisionConstants.targetMaxExtrapolationMs, VisionConstants.pieceGatePixels);
+            }
+            trackedTagSequences = new long[camCount];
+            trackedPieceSequences = new long[camCount];
+            this.trackers = trackers; // Only published once it is filled in
+        }
+        long now = System.nanoTime();
+        long latency = (long) (VisionConstants.visionLatencyMs * 1e6);
+        for (int c = 0; c < camCount; c++) {
+            CameraWebsocketClient cam = camClientList.get(c);
+            boolean streaming = cam.isStreaming();
+
+            CameraWebsocketClient.DetectionFrame<CameraWebsocketClient.ApriltagList> tagFrame = cam.getLatestApriltagFrame();
+            if (streaming && tagFrame != null) {
+                if (tagFrame.sequence != trackedTagSequences[c]) {
+                    trackedTagSequences[c] = tagFrame.sequence;
+                    synchronized (trackers[c]) {
+                        trackers[c].updateTags(tagFrame.value, tagFrame.receivedNanos - latency);
+                    }
+                }
+            } else {
+                List<Apriltag> tags = snapshotOrNull(c);
+                if (tags != null && trackedTagSequences[c] != -tickSequence) {
+                    trackedTagSequences[c] = -tickSequence; // Negative so it never matches a frame sequence
+                    synchronized (trackers[c]) {
+                        trackers[c].updateTags(tags, now - latency);
+                    }
+                }
+            }
+
+            CameraWebsocketClient.DetectionFrame<CameraWebsocketClient.Piece> pieceFrame = cam.getLatestPieceFrame();
+            if (streaming && pieceFrame != null) {
+                if (pieceFrame.sequence != trackedPieceSequences[c]) {
+                    trackedPieceSequences[c] = pieceFrame.sequence;
+                    synchronized (trackers[c]) {
+                        trackers[c].updatePiece(pieceFrame.value, pieceFrame.receivedNanos - latency);
+                    }
+                }
+            } else if (c == VisionConstants.pieceDetectionCamIndex) {
+                CameraWebsocketClient.Piece piece = cam.getPiece(); // Fetched before locking so the control task never waits on the camera
+                synchronized (trackers[c]) {
+                    trackers[c].updatePiece(piece, now - latency);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts every piece every camera sees into one index in the robot frame. Streamed cameras are only
+     * transformed again when they have a new frame. The rest are asked all at once, and any that miss
+     * the tick deadline or fail are left out until they answer again. Call it once per vision tick.
+
+     * @return index - the pieces, to query with nearest
+     */
+    public PieceIndex updatePieces() {
+        return updatePieces(null);
+    }
+
+    /**
+     * Same as {@link #updatePieces()}, using only some of the cameras. The others are cleared out of the index.
+
+     * @param cameras - the camera indexes to use, null for all of them
+     * @return index - the pieces, to query with nearest
+     */
+    public PieceIndex updatePieces(BitSet cameras) {
+        int camCount = camClientList.size();
+        if (indexedPieceSequences.length != camCount) {
+            indexedPieceSequences = new long[camCount];
+        }
+        List<CompletableFuture<CameraWebsocketClient.PieceList>> requests = new ArrayList<>(Collections.nCopies(camCount, null));
+        for (int c = 0; c < camCount; c++) {
+            if (cameras != null && !cameras.get(c)) {
+                pieceIndex.clearCamera(c);
+                indexedPieceSequences[c] = 0;
+                continue;
+            }
+            CameraWebsocketClient cam = camClientList.get(c);
+            CameraWebsocketClient.DetectionFrame<CameraWebsocketClient.PieceList> frame = cam.getLatestPiecesFrame();
+            if (frame != null && cam.isStreaming()) {
+                if (frame.sequence == indexedPieceSequences[c]) continue;
+                indexedPieceSequences[c] = frame.sequence;
+                pieceIndex.setCamera(c, frame.value, Math.toRadians(cam.getRotation()));
+            } else {
+                indexedPieceSequences[c] = 0;
+                requests.set(c, cam.getPiecesAsync());
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(VisionConstants.tickDeadlineMs);
+        for (int c = 0; c < camCount; c++) {
+            if (requests.get(c) == null) continue;
+            try {
+                CameraWebsocketClient.PieceList pieces = requests.get(c).get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                pieceIndex.setCamera(c, pieces, Math.toRadians(camClientList.get(c).getRotation()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pieceIndex.clearCamera(c);
+            } catch (Exception e) {
+                // Late or failed, so its old pieces would only mislead
+                pieceIndex.clearCamera(c);
+            }
+        }
+        return pieceIndex;
+    }
+
+    /**
+     * Returns the pieces from the last {@link #updatePieces()}.
+
+     * @return index - every camera's pieces in the robot frame
+     */
+    public PieceIndex getPieceIndex() {
+        return pieceIndex;
+    }
+
+    /**
+     * Drives toward the nearest piece any camera sees inside the intake's cone, maxIntakeAngle either
+     * side of straight ahead. Call {@link #updatePieces()} every vision tick to keep the pieces current,
+     * from the same thread as this, since the index is not locked.
+
+     * @param out - receives the speeds, zeroed if there is no piece in the cone
+     * @return status - OK if out holds speeds to drive with
+     */
+    public DriveStatus getIntakePieceDrive(double xOffset, double yOffset, ChassisSpeeds out) {
+        int piece = pieceIndex.nearest(VisionConstants.maxIntakeAngle);
+        if (piece < 0) return stop(out, DriveStatus.NO_TARGET);
+        // The index is already in the robot frame, so there is no camera rotation left to add
+        return pieceDrive(turnPID, movePID, pieceIndex.getAngle(piece), pieceIndex.getDistance(piece), 0, 0, xOffset, yOffset, out);
+    }
+
+    /**
+     * Returns the target tracks for a camera, to read prediction age and uncertainty.
+
+     * @param camIndex - the camera
+     * @return tracker - its tracker, or null before the first {@link #updateTargets()}. Lock on it while reading
+     */
+    public TargetTracker getTracker(int camIndex) {
+        TargetTracker[] trackers = this.trackers;
+        return camIndex >= 0 && camIndex < trackers.length ? trackers[camIndex] : null;
+    }
+
+    /**
+     * Works out where the robot is on the field from one tag. The heading follows the same convention
+     * as {@link #getZAngle(int)}. The tag position is in the camera frame with x to the right and z
+     * forward, and the camera is assumed to sit at the robot's center.
+
+     * @param tag - the detected tag
+     * @param cameraRotationDegrees - which way the camera faces on the robot
+     * @param out - receives field x and y in meters and heading in radians
+     * @return known - false if the tag is not in the field layout or came without a pose
+     */
+    boolean tagToFieldPose(Apriltag tag, double cameraRotationDegrees, double[] out) {
+        int id = tag.id;
+        if (!fieldLayout.has(id)) return false;
+
+        double cameraRotation = Math.toRadians(cameraRotationDegrees);
+        double heading = PoseEstimator.wrapAngle(fieldLayout.getAngle(id) + cameraRotation + Math.toRadians(tag.orientation[1]));
+
+        // Tag relative to the robot, x forward and y left
+        double forward = tag.position[2];
+        double left = -tag.position[0];
+        double cosCamera = Math.cos(cameraRotation);
+        double sinCamera = Math.sin(cameraRotation);
+        double robotX = forward * cosCamera - left * sinCamera;
+        double robotY = forward * sinCamera + left * cosCamera;
+
+        double cosHeading = Math.cos(heading);
+        double sinHeading = Math.sin(heading);
+        out[0] = fieldLayout.getX(id) - (robotX * cosHeading - robotY * sinHeading);
+        out[1] = fieldLayout.getY(id) - (robotX * sinHeading + robotY * cosHeading);
+        out[2] = heading;
+        // A tag the server sent without a position or orientation
+        return !Double.isNaN(out[0] + out[1] + out[2]);
+    }
+
+    public PoseEstimator getPoseEstimator() {
+        return poseEstimator;
+    }
+
+    public FieldLayout getFieldLayout() {
+        return fieldLayout;
+    }
+
     /**
      * Returns an INCOMPLETE ChassisSpeeds object - only the rotation unit - for locking on to a tag 
 
@@ -133,16 +960,32 @@ public class Vision {
      * @return speeds - the ChassisSpeeds object for the rotation to take
      */
     public ChassisSpeeds lockonTagSpeeds(int camIndex, String tagId) {
+        ChassisSpeeds speeds = new ChassisSpeeds();
+        return lockonTagSpeeds(camIndex, tagId, speeds) == DriveStatus.OK ? speeds : null;
+    }
+
+    /**
+     * Same as {@link #lockonTagSpeeds(int, String)} but fills in the caller's speeds instead of allocating.
+
+     * @param camIndex - the index of the desired camera to use
+     * @param tagId - the apriltag ID to search for, null if no preference
+     * @param out - receives the speeds, zeroed if there is no tag
+     * @return status - OK if out holds speeds to drive with
+     */
+    public DriveStatus lockonTagSpeeds(int camIndex, String tagId, ChassisSpeeds out) {
+        if (camIndex < 0 || camIndex >= camClientList.size()) return stop(out, DriveStatus.NO_CAMERA);
         Apriltag tag;
         if (tagId != null) tag = decideTag(camIndex, tagId);
         else tag = decideTag(camIndex);
-        if (tag == null) return null;
+        if (tag == null) return stop(out, DriveStatus.NO_TARGET);
 
-        return new ChassisSpeeds(
-            0,
-            0,
-            turnPID.calculate(tag.horizontalAngle)
-        );
+        out.set(0, 0, turnPID.calculate(tag.horizontalAngle));
+        return DriveStatus.OK;
+    }
+
+    private static DriveStatus stop(ChassisSpeeds out, DriveStatus status) {
+        out.set(0, 0, 0);
+        return status;
     }
 
     /**
@@ -153,79 +996,186 @@ public class Vision {
      * @return speeds - the ChassisSpeeds object for the robot to take
      */
     public ChassisSpeeds getTagDrive(int camIndex, String[] tagIds, Side side, double cameraHorizontalAngle, double xOffset, double yOffset) {
+        return getTagDrive(camIndex, tagIds == null ? null : FieldLayout.idSet(tagIds), side, cameraHorizontalAngle, xOffset, yOffset);
+    }
+
+    /**
+     * Same as the String[] version, but takes the tag ids as a set built once with {@link FieldLayout#idSet(String...)}.
+
+     * @param camIndex - the index of the desired camera to use
+     * @param tagIds - the apriltag IDs to search for, null if no preference
+     * @return speeds - the ChassisSpeeds object for the robot to take
+     */
+    public ChassisSpeeds getTagDrive(int camIndex, BitSet tagIds, Side side, double cameraHorizontalAngle, double xOffset, double yOffset) {
+        ChassisSpeeds speeds = new ChassisSpeeds();
+        return getTagDrive(camIndex, tagIds, side, cameraHorizontalAngle, xOffset, yOffset, speeds) == DriveStatus.OK ? speeds : null;
+    }
+
+    /**
+     * Same as the BitSet version, but fills in the caller's speeds instead of allocating and returning null.
+
+     * @param camIndex - the index of the desired camera to use
+     * @param tagIds - the apriltag IDs to search for, null if no preference
+     * @param out - receives the speeds, zeroed if there is no tag
+     * @return status - OK if out holds speeds to drive with
+     */
+    public DriveStatus getTagDrive(int camIndex, BitSet tagIds, Side side, double cameraHorizontalAngle, double xOffset, double yOffset, ChassisSpeeds out) {
         // The position is returned as a 3 element array of doubles in the form [x, y, z]
         // The position is in meters.
+        if (camIndex < 0 || camIndex >= camClientList.size()) return stop(out, DriveStatus.NO_CAMERA);
 
         Apriltag tag;
         if (tagIds != null) tag = decideTag(camIndex, tagIds);
         else tag = decideTag(camIndex);
-        if(tag == null) return null;
+        if(tag == null) return stop(out, DriveStatus.NO_TARGET);
+
+        return tagDrive(turnPID, movePID, tag.orientation[1], tag.distance, tag.position[0], tag.position[2], side, cameraHorizontalAngle, xOffset, yOffset, out);
+    }
+
+    /**
+     * Same as getTagDrive, but drives toward where the tracked tag should be right now instead of where
+     * it was in the last frame, so it can run faster than the cameras. Call {@link #updateTargets()}
+     * every vision tick to keep the tracks going. Call this and getPredictedPieceDrive from one thread
+     * only, the control loop. The fetching drive methods can run on another thread at the same time.
+
+     * @param camIndex - the index of the desired camera to use
+     * @param tagIds - the apriltag IDs to search for, null if no preference
+     * @param out - receives the speeds, zeroed if no tag has been seen recently
+     * @return status - OK if out holds speeds to drive with
+     */
+    public DriveStatus getPredictedTagDrive(int camIndex, BitSet tagIds, Side side, double cameraHorizontalAngle, double xOffset, double yOffset, ChassisSpeeds out) {
+        TargetTracker tracker = getTracker(camIndex);
+        if (tracker == null) return stop(out, DriveStatus.NO_CAMERA);
+        long now = System.nanoTime();
+        double yaw, distance, x, z;
+        synchronized (tracker) {
+            TargetTracker.Track track = tracker.nearestTag(tagIds, now);
+            if (track == null) return stop(out, DriveStatus.NO_TARGET);
+            yaw = track.predict(TargetTracker.TAG_YAW, now);
+            distance = track.predict(TargetTracker.TAG_DISTANCE, now);
+            x = track.predict(TargetTracker.TAG_X, now);
+            z = track.predict(TargetTracker.TAG_Z, now);
+        }
+        return tagDrive(predictedTurnPID, predictedMovePID, yaw, distance, x, z, side, cameraHorizontalAngle, xOffset, yOffset, out);
+    }
 
-        double turnSpeed = turnPID.calculate(tag.orientation[1] - cameraHorizontalAngle); // This seems to be fine it may need to be negative but idk
-        double moveSpeed = movePID.calculate(tag.distance); // I do not know if this is correct - it makes some sense but idk
+    private DriveStatus tagDrive(PIDController turnPID, PIDController movePID, double tagYaw, double tagDistance, double tagX, double tagZ,
+            Side side, double cameraHorizontalAngle, double xOffset, double yOffset, ChassisSpeeds out) {
+        double turnSpeed = turnPID.calculate(tagYaw - cameraHorizontalAngle); // This seems to be fine it may need to be negative but idk
+        double moveSpeed = movePID.calculate(tagDistance); // I do not know if this is correct - it makes some sense but idk
 
         // Look at this! Max is doing a weird normalization thing again!
-        double xMove = ((tag.position[2] - xOffset) / (Math.abs(tag.position[0]) + Math.abs(tag.position[2]))) * moveSpeed;
-        double yMove = ((tag.position[0] - yOffset) / (Math.abs(tag.position[0]) + Math.abs(tag.position[2]))) * moveSpeed;
+        double xMove = ((tagZ - xOffset) / (Math.abs(tagX) + Math.abs(tagZ))) * moveSpeed;
+        double yMove = ((tagX - yOffset) / (Math.abs(tagX) + Math.abs(tagZ))) * moveSpeed;
         
-        return frontToSide(new ChassisSpeeds(
+        out.set(
             DriverConstants.highDriveSpeed * xMove,
             DriverConstants.highDriveSpeed * yMove,
-            turnSpeed), side);
+            turnSpeed);
+        frontToSide(out, side, out);
+        return DriveStatus.OK;
     }
 
     public ChassisSpeeds getTagDrive(int camIndex) {
-        return getTagDrive(camIndex, null, Side.BACK, 0, 0, 0);
+        return getTagDrive(camIndex, (BitSet) null, Side.BACK, 0, 0, 0);
     }
 
     public ChassisSpeeds getPieceDrive(int camIndex, double cameraOffsetAngle, double xOffset, double yOffset) {
+        ChassisSpeeds speeds = new ChassisSpeeds();
+        return getPieceDrive(camIndex, cameraOffsetAngle, xOffset, yOffset, speeds) == DriveStatus.OK ? speeds : null;
+    }
+
+    /**
+     * Same as {@link #getPieceDrive(int, double, double, double)} but fills in the caller's speeds instead of allocating.
+
+     * @param camIndex - the index of the camera that looks for pieces
+     * @param out - receives the speeds, zeroed if there is no piece
+     * @return status - OK if out holds speeds to drive with
+     */
+    public DriveStatus getPieceDrive(int camIndex, double cameraOffsetAngle, double xOffset, double yOffset, ChassisSpeeds out) {
+        if (camIndex < 0 || camIndex >= camClientList.size()) return stop(out, DriveStatus.NO_CAMERA);
         CameraWebsocketClient cam = camClientList.get(camIndex);
-        CameraWebsocketClient.Piece piece = cam.getPiece();
+        boolean streaming = cam.isStreaming();
+        CameraWebsocketClient.Piece piece = streaming ? cam.getPiece()
+            : hedgedFetch(camIndex, CameraWebsocketClient::getPieceAsync, Objects::nonNull);
         
         if(piece == null) {
-            return null;
+            return stop(out, DriveStatus.NO_TARGET);
         }
-        
+        double angle = piece.angle;
+        if (!streaming && answeringCamera != camIndex) {
+            // Seen by an overlapping camera, so turn it into this camera's view
+            angle += Math.toRadians(camClientList.get(answeringCamera).getRotation() - cam.getRotation());
+        }
+        return pieceDrive(turnPID, movePID, angle, piece.distance, cam.getRotation(), cameraOffsetAngle, xOffset, yOffset, out);
+    }
+
+    /**
+     * Same as getPieceDrive, but drives toward where the tracked piece should be right now. Call
+     * {@link #updateTargets()} every vision tick to keep the track going. Only call it from the
+     * control thread, see {@link #getPredictedTagDrive}.
+
+     * @param camIndex - the index of the camera that looks for pieces
+     * @param out - receives the speeds, zeroed if no piece has been seen recently
+     * @return status - OK if out holds speeds to drive with
+     */
+    public DriveStatus getPredictedPieceDrive(int camIndex, double cameraOffsetAngle, double xOffset, double yOffset, ChassisSpeeds out) {
+        TargetTracker tracker = getTracker(camIndex);
+        if (tracker == null) return stop(out, DriveStatus.NO_CAMERA);
+        long now = System.nanoTime();
+        double angle, distance;
+        synchronized (tracker) {
+            TargetTracker.Track track = tracker.getPiece(now);
+            if (track == null) return stop(out, DriveStatus.NO_TARGET);
+            angle = track.predict(TargetTracker.PIECE_ANGLE, now);
+            distance = track.predict(TargetTracker.PIECE_DISTANCE, now);
+        }
+        return pieceDrive(predictedTurnPID, predictedMovePID, angle, distance, camClientList.get(camIndex).getRotation(), cameraOffsetAngle, xOffset, yOffset, out);
+    }
+
+    private DriveStatus pieceDrive(PIDController turnPID, PIDController movePID, double pieceAngle, double pieceDistance,
+            double cameraRotation, double cameraOffsetAngle, double xOffset, double yOffset, ChassisSpeeds out) {
         double driveAngleModifier;
-        if (piece.angle > VisionConstants.maxIntakeAngle) {
-            driveAngleModifier = VisionConstants.misallignedPieceOffset / piece.distance; 
+        if (pieceAngle > VisionConstants.maxIntakeAngle) {
+            driveAngleModifier = VisionConstants.misallignedPieceOffset / pieceDistance; 
             // This math works in my head. Make the angle larger if the piece is closer, and less when it is farther. 
             //Asymptotic to 0, so it will always theoretically adjust.
-        } else if (piece.angle < -VisionConstants.maxIntakeAngle) {
-            driveAngleModifier = -VisionConstants.misallignedPieceOffset / piece.distance;
+        } else if (pieceAngle < -VisionConstants.maxIntakeAngle) {
+            driveAngleModifier = -VisionConstants.misallignedPieceOffset / pieceDistance;
         } else {
             driveAngleModifier = 0;
         }
 
-        double x = Math.cos(piece.angle + cam.getRotation() + driveAngleModifier) * piece.distance - xOffset;
-        double y = Math.sin(piece.angle + cam.getRotation() + driveAngleModifier) * piece.distance - yOffset;
+        double x = Math.cos(pieceAngle + cameraRotation + driveAngleModifier) * pieceDistance - xOffset;
+        double y = Math.sin(pieceAngle + cameraRotation + driveAngleModifier) * pieceDistance - yOffset;
         
 
-        double turnSpeed = turnPID.calculate(piece.angle-cameraOffsetAngle);
-        double moveSpeed = movePID.calculate(piece.distance);
+        double turnSpeed = turnPID.calculate(pieceAngle-cameraOffsetAngle);
+        double moveSpeed = movePID.calculate(pieceDistance);
 
         double xMove = (x / Math.sqrt(x*x + y*y)) * moveSpeed;
         double yMove = (y / Math.sqrt(x*x + y*y)) * moveSpeed;
 
-        return new ChassisSpeeds(
+        out.set(
             DriverConstants.highDriveSpeed * xMove,
             DriverConstants.highDriveSpeed * yMove,
             turnSpeed
         );
+        return DriveStatus.OK;
     }
 
     public ChassisSpeeds getPieceDrive() {
         return getPieceDrive(VisionConstants.pieceDetectionCamIndex, 0, 0, 0);
     }
 
-    private Apriltag decideTag(int camIndex) {
-        CameraWebsocketClient cam = camClientList.get(camIndex);
-        List<CameraWebsocketClient.Apriltag> tags = cam.getApriltags();
+    Apriltag decideTag(int camIndex) {
+        List<CameraWebsocketClient.Apriltag> tags = tagsThisTick(camIndex);
         Apriltag tag = null;
 
         if (tags.size() > 0) {
             Apriltag bestTag = tags.get(0);
-            for (Apriltag t : tags) { // This is a weird way to do this but it works - I need to make this more efficient
+            for (int i = 0; i < tags.size(); i++) { // This is a weird way to do this but it works - I need to make this more efficient
+                Apriltag t = tags.get(i);
                 if(t.distance < bestTag.distance) {
                     tag = t;
                     break;
@@ -236,31 +1186,33 @@ public class Vision {
         return tag;
     }
 
-    private Apriltag decideTag(int camIndex, String tagId) {
-        CameraWebsocketClient cam = camClientList.get(camIndex);
-        List<CameraWebsocketClient.Apriltag> tags = cam.getApriltags();
-        Apriltag tag = null;
-        for (Apriltag t : tags) { // This is a weird way to do this but it works - I need to make this more efficient
-            if(t.tagId.equals(tagId)) {
-                tag = t;
-                break;
+    Apriltag decideTag(int camIndex, String tagId) {
+        List<CameraWebsocketClient.Apriltag> tags = tagsThisTick(camIndex);
+        int id = FieldLayout.parseId(tagId);
+        for (int i = 0; i < tags.size(); i++) {
+            Apriltag t = tags.get(i);
+            // Ids that are not numbers still get compared as strings
+            if (id >= 0 ? t.id == id : tagId.equals(t.tagId)) {
+                return t;
             }
         }
+        return null;
+    }
 
-        return tag;
+    Apriltag decideTag(int camIndex, String tagIds[]) {
+        return decideTag(camIndex, FieldLayout.idSet(tagIds));
     }
 
-    private Apriltag decideTag(int camIndex, String tagIds[]) {
-        CameraWebsocketClient cam = camClientList.get(camIndex);
-        List<CameraWebsocketClient.Apriltag> tags = cam.getApriltags();
-        List<String> tagIdList = Arrays.asList(tagIds);
-        Apriltag bestTag = tags.getFirst();
-        for (Apriltag t : tags) { // This is a weird way to do this but it works - I need to make this more efficient
-            if(tagIdList.contains(t.tagId) && t.distance <= bestTag.distance) {
+    Apriltag decideTag(int camIndex, BitSet tagIds) {
+        List<CameraWebsocketClient.Apriltag> tags = tagsThisTick(camIndex);
+        if (tags.isEmpty()) return null;
+        Apriltag bestTag = tags.get(0);
+        for (int i = 0; i < tags.size(); i++) {
+            Apriltag t = tags.get(i);
+            if (t.id >= 0 && tagIds.get(t.id) && t.distance <= bestTag.distance) {
                 bestTag = t;
             }
         }
-
         return bestTag;
     }
 
@@ -270,6 +1222,8 @@ public class Vision {
     @Override
     protected void finalize() throws Throwable {
         try {
+            connectionManager.stop();
+            if (registry != null) registry.close();
             for (CameraWebsocketClient cam : camClientList) {
                 if (cam.isConnected()) {
                     cam.disconnect();